@@ -51,6 +51,12 @@ public class CameraPreviewActivity extends AppCompatActivity implements SurfaceH
         this.mOrientationListener.disable();
     }
 
+    @Override
+    protected void onDestroy() {
+        this.mDevice.close();
+        super.onDestroy();
+    }
+
     @Override
     public void surfaceCreated(final SurfaceHolder surfaceHolder) {
         this.mDevice.startPreview(surfaceHolder);
@@ -0,0 +1,74 @@
+package com.sdklite.media;
+
+import android.annotation.TargetApi;
+import android.hardware.camera2.CameraAccessException;
+import android.hardware.camera2.CameraCaptureSession;
+import android.hardware.camera2.CameraDevice;
+import android.os.Build;
+import android.view.Surface;
+
+import java.util.List;
+
+/**
+ * The calls of {@link Camera2Device} which reach the camera service, so that
+ * the device can be driven by a fake camera service in tests
+ *
+ * <p>
+ * The callbacks are delivered on the looper of the calling thread, just like
+ * the camera2 calls with a {@code null} handler.
+ * </p>
+ */
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+interface Camera2Backend {
+
+    /**
+     * Returns the ids of the connected cameras
+     */
+    String[] getCameraIdList() throws CameraAccessException;
+
+    /**
+     * Returns the capabilities of the specified camera
+     *
+     * @param cameraIndex
+     *            The camera index in the camera id list
+     * @param cameraId
+     *            The camera id
+     */
+    CameraCapabilities getCapabilities(int cameraIndex, String cameraId) throws CameraAccessException;
+
+    /**
+     * Opens the specified camera
+     *
+     * @param cameraId
+     *            The camera id
+     * @param callback
+     *            The callback to receive the opened camera
+     */
+    void openCamera(String cameraId, CameraDevice.StateCallback callback) throws CameraAccessException;
+
+    /**
+     * Creates a capture session of the specified camera
+     *
+     * @param camera
+     *            The opened camera
+     * @param outputs
+     *            The output surfaces
+     * @param callback
+     *            The callback to receive the configured session
+     */
+    void createCaptureSession(CameraDevice camera, List<Surface> outputs, CameraCaptureSession.StateCallback callback) throws CameraAccessException;
+
+    /**
+     * Selects the video profile of the specified camera
+     *
+     * @param cameraIndex
+     *            The camera index in the camera id list
+     * @param cameraId
+     *            The camera id
+     * @param capabilities
+     *            The camera capabilities
+     * @return the video profile or null if no profile available
+     */
+    VideoProfile getVideoProfile(int cameraIndex, String cameraId, CameraCapabilities capabilities);
+
+}
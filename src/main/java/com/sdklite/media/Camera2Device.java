@@ -0,0 +1,1403 @@
+package com.sdklite.media;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.graphics.ImageFormat;
+import android.graphics.Rect;
+import android.hardware.Camera;
+import android.hardware.camera2.CameraAccessException;
+import android.hardware.camera2.CameraCaptureSession;
+import android.hardware.camera2.CameraCharacteristics;
+import android.hardware.camera2.CameraMetadata;
+import android.hardware.camera2.CaptureRequest;
+import android.hardware.camera2.CaptureResult;
+import android.hardware.camera2.TotalCaptureResult;
+import android.media.Image;
+import android.media.ImageReader;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Message;
+import android.os.SystemClock;
+import android.util.Log;
+import android.util.Range;
+import android.view.Surface;
+import android.view.SurfaceHolder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The camera2 based implementation of {@link CameraDevice}
+ *
+ * <p>
+ * Preview is driven by a repeating request, preview frames are read from a YUV
+ * {@link ImageReader} which is attached to the repeating request only if there
+ * are preview frame callbacks, and pictures are read from a JPEG {@link ImageReader}.
+ * </p>
+ *
+ * <p>
+ * All of camera2 calls are made on the dispatch thread with a {@code null} handler,
+ * so that their callbacks are delivered on the looper of the dispatch thread.
+ * </p>
+ */
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+final class Camera2Device extends CameraDevice implements Handler.Callback {
+
+    private static final String TAG = "Camera2Device";
+
+    private static final int MSG_START_PREVIEW = 1;
+    private static final int MSG_STOP_PREVIEW = 2;
+    private static final int MSG_CONFIG_SURFACE = 3;
+    private static final int MSG_AUTO_FOCUS = 4;
+    private static final int MSG_TAKE_PICTURE = 5;
+    private static final int MSG_SETUP_PREVIEW_CALLBACK = 7;
+    private static final int MSG_CLOSE = 8;
+    private static final int MSG_TAKE_BURST = 9;
+    private static final int MSG_BURST_NEXT = 10;
+    private static final int MSG_APPLY_CAPTURE_PROFILE = 11;
+    private static final int MSG_START_RECORDING = 12;
+    private static final int MSG_STOP_RECORDING = 13;
+    private static final int MSG_RECORDING_STOPPED = 14;
+    private static final int MSG_RECORDING_PREPARED = 15;
+    private static final int MSG_SUSPEND_PREVIEW = 16;
+    private static final int MSG_RELEASE_SUSPENDED = 17;
+    private static final int MSG_APPLY_FRAME_RATE_POLICY = 18;
+
+    /**
+     * Returns whether all cameras of the device support camera2 natively,
+     * the legacy camera2 implementation is just a wrapper of the legacy camera
+     * API, so it brings nothing but overhead
+     *
+     * @param context
+     *            A context
+     */
+    static boolean isSupported(final Context context) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            return false;
+        }
+
+        try {
+            final android.hardware.camera2.CameraManager manager = (android.hardware.camera2.CameraManager) context.getSystemService(Context.CAMERA_SERVICE);
+            final String[] ids = manager.getCameraIdList();
+            if (ids.length <= 0) {
+                return false;
+            }
+
+            for (final String id : ids) {
+                final Integer level = manager.getCameraCharacteristics(id).get(CameraCharacteristics.INFO_SUPPORTED_HARDWARE_LEVEL);
+                if (null == level || CameraCharacteristics.INFO_SUPPORTED_HARDWARE_LEVEL_LEGACY == level) {
+                    return false;
+                }
+            }
+
+            return true;
+        } catch (final Throwable t) {
+            Log.w(TAG, "Camera2 is not available", t);
+            return false;
+        }
+    }
+
+    private static final Map<String, CameraCapabilities> CAPABILITIES = new HashMap<String, CameraCapabilities>();
+
+    /**
+     * The backend of the camera service of the system, the capabilities are
+     * computed from camera characteristics on first use
+     */
+    private static final class FrameworkBackend implements Camera2Backend {
+
+        private final android.hardware.camera2.CameraManager mManager;
+
+        FrameworkBackend(final android.hardware.camera2.CameraManager manager) {
+            this.mManager = manager;
+        }
+
+        @Override
+        public String[] getCameraIdList() throws CameraAccessException {
+            return this.mManager.getCameraIdList();
+        }
+
+        @Override
+        public CameraCapabilities getCapabilities(final int cameraIndex, final String cameraId) throws CameraAccessException {
+            synchronized (CAPABILITIES) {
+                CameraCapabilities capabilities = CAPABILITIES.get(cameraId);
+                if (null == capabilities) {
+                    capabilities = CameraCapabilities.from(cameraIndex, this.mManager.getCameraCharacteristics(cameraId));
+                    CAPABILITIES.put(cameraId, capabilities);
+                }
+                return capabilities;
+            }
+        }
+
+        @Override
+        public void openCamera(final String cameraId, final android.hardware.camera2.CameraDevice.StateCallback callback) throws CameraAccessException {
+            this.mManager.openCamera(cameraId, callback, null);
+        }
+
+        @Override
+        public void createCaptureSession(final android.hardware.camera2.CameraDevice camera, final List<Surface> outputs, final CameraCaptureSession.StateCallback callback) throws CameraAccessException {
+            camera.createCaptureSession(outputs, callback, null);
+        }
+
+        @Override
+        public VideoProfile getVideoProfile(final int cameraIndex, final String cameraId, final CameraCapabilities capabilities) {
+            return VideoProfile.select(getCamcorderId(cameraIndex, cameraId), capabilities);
+        }
+
+        /**
+         * Returns the legacy camera id used by {@link android.media.CamcorderProfile}
+         */
+        private static int getCamcorderId(final int cameraIndex, final String cameraId) {
+            try {
+                return Integer.parseInt(cameraId);
+            } catch (final NumberFormatException e) {
+                return cameraIndex;
+            }
+        }
+    }
+
+    private final Context mContext;
+    private final Camera2Backend mBackend;
+    private final Handler mMainHandler;
+    private final PreviewBufferPool mPreviewBufferPool = new PreviewBufferPool(1);
+    private final CapturePersister mPersister = new CapturePersister();
+    private final ArgumentsSlot<PreviewArguments> mPreviewSlot;
+    private final ArgumentsSlot<ConfigArguments> mConfigSlot;
+
+    /**
+     * The auto focus callbacks requested on any thread and not dispatched yet
+     */
+    private final ArrayList<OnAutoFocusCallback> mAutoFocusRequests = new ArrayList<OnAutoFocusCallback>();
+
+    /**
+     * The auto focus callbacks called with the result of the next or the in
+     * flight auto focus, so that a request joins the one in flight instead of
+     * superseding it
+     */
+    private final ArrayList<OnAutoFocusCallback> mAutoFocusCallbacks = new ArrayList<OnAutoFocusCallback>();
+
+    private final OnAutoFocusCallback mBurstAutoFocusCallback = new OnAutoFocusCallback() {
+        @Override
+        public void onAutoFocus(final CameraDevice camera, final boolean success) {
+            final BurstArguments burst = mPendingBurst;
+            if (null != burst) {
+                captureBurstFrame(burst);
+            }
+        }
+    };
+
+    private final android.hardware.camera2.CameraDevice.StateCallback mStateCallback = new android.hardware.camera2.CameraDevice.StateCallback() {
+        @Override
+        public void onOpened(final android.hardware.camera2.CameraDevice camera) {
+            if (!camera.getId().equals(mCameraId)) {
+                camera.close();
+                return;
+            }
+
+            mCamera = camera;
+            getLatencyTracker().endAsync(LatencyStage.OPEN, mOpenStart);
+            mOpenStart = 0;
+            countPreviewStart(false);
+            configOutputs();
+        }
+
+        @Override
+        public void onDisconnected(final android.hardware.camera2.CameraDevice camera) {
+            Log.w(TAG, "Camera " + camera.getId() + " disconnected");
+            if (camera == mCamera) {
+                stopPreview0();
+            } else {
+                camera.close();
+            }
+        }
+
+        @Override
+        public void onError(final android.hardware.camera2.CameraDevice camera, final int error) {
+            Log.e(TAG, "Camera " + camera.getId() + " error " + error);
+            if (camera == mCamera) {
+                failPreviewFuture(new IllegalStateException("Camera " + camera.getId() + " error " + error));
+                stopPreview0();
+            } else {
+                camera.close();
+
+                // failed to open
+                if (null == mCamera && camera.getId().equals(mCameraId)) {
+                    failPreviewFuture(new IllegalStateException("Camera " + camera.getId() + " error " + error));
+                    stopPreview0();
+                }
+            }
+        }
+    };
+
+    private final CameraCaptureSession.StateCallback mSessionCallback = new CameraCaptureSession.StateCallback() {
+        @Override
+        public void onConfigured(final CameraCaptureSession session) {
+            if (null == mCamera || null != mSession || mSuspended) {
+                session.close();
+                return;
+            }
+
+            mSession = session;
+            setRepeatingRequest();
+
+            if (null != mPreviewFuture) {
+                mPreviewFuture.complete(mCapabilities);
+                mPreviewFuture = null;
+            }
+
+            final VideoRecording recording = mRecording;
+            if (null != recording && null != mRecordingSurface && !recording.startRequested) {
+                recording.startRequested = true;
+                VideoRecording.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!recording.start()) {
+                            sendMessage(MSG_RECORDING_STOPPED, recording);
+                        }
+                    }
+                });
+            }
+        }
+
+        @Override
+        public void onConfigureFailed(final CameraCaptureSession session) {
+            Log.e(TAG, "Failed to configure capture session");
+            session.close();
+
+            if (null != mPreviewFuture) {
+                mPreviewFuture.fail(new IllegalStateException("Failed to configure capture session"));
+                mPreviewFuture = null;
+            }
+        }
+    };
+
+    private final CameraCaptureSession.CaptureCallback mPreviewCaptureCallback = new CameraCaptureSession.CaptureCallback() {
+        @Override
+        public void onCaptureCompleted(final CameraCaptureSession session, final CaptureRequest request, final TotalCaptureResult result) {
+            getFrameRateMeter().onFrame();
+
+            if (0 != mFirstPreviewFrameStart) {
+                getLatencyTracker().endAsync(LatencyStage.FIRST_PREVIEW_FRAME, mFirstPreviewFrameStart);
+                mFirstPreviewFrameStart = 0;
+            }
+
+            if (!mAutoFocusInFlight) {
+                return;
+            }
+
+            final Integer state = result.get(CaptureResult.CONTROL_AF_STATE);
+            if (null == state) {
+                return;
+            }
+
+            if (CameraMetadata.CONTROL_AF_STATE_FOCUSED_LOCKED == state || CameraMetadata.CONTROL_AF_STATE_NOT_FOCUSED_LOCKED == state) {
+                getLatencyTracker().endAsync(LatencyStage.AUTO_FOCUS, mFocusStart);
+                mFocusStart = 0;
+
+                // Keep focus locked during burst
+                if (null == mPendingBurst) {
+                    triggerAutoFocus(CameraMetadata.CONTROL_AF_TRIGGER_CANCEL);
+                }
+
+                finishAutoFocus(CameraMetadata.CONTROL_AF_STATE_FOCUSED_LOCKED == state);
+            }
+        }
+    };
+
+    private final ImageReader.OnImageAvailableListener mPreviewFrameListener = new ImageReader.OnImageAvailableListener() {
+        @Override
+        public void onImageAvailable(final ImageReader reader) {
+            final Image image = reader.acquireLatestImage();
+            if (null == image) {
+                return;
+            }
+
+            try {
+                final PreviewBufferPool pool = mPreviewBufferPool;
+                pool.resize(image.getWidth(), image.getHeight(), ImageFormat.NV21);
+                final byte[] data = pool.getBuffers()[0];
+                toNV21(image, data);
+                dispatchPreviewFrame(data, image.getWidth(), image.getHeight());
+            } finally {
+                image.close();
+            }
+        }
+    };
+
+    private final ImageReader.OnImageAvailableListener mPictureListener = new ImageReader.OnImageAvailableListener() {
+        @Override
+        public void onImageAvailable(final ImageReader reader) {
+            final Image image = reader.acquireNextImage();
+            if (null == image) {
+                return;
+            }
+
+            getLatencyTracker().endAsync(LatencyStage.SHUTTER_TO_JPEG, mShutterStart);
+            mShutterStart = 0;
+
+            final TakePictureArguments args = mPendingPicture;
+            final BurstArguments burst = mPendingBurst;
+            mPendingPicture = null;
+
+            final byte[] data;
+            final int width = image.getWidth();
+            final int height = image.getHeight();
+
+            try {
+                if (null == args && null == burst) {
+                    return;
+                }
+
+                final ByteBuffer buffer = image.getPlanes()[0].getBuffer();
+                data = new byte[buffer.remaining()];
+                buffer.get(data);
+            } finally {
+                // Release the image to re-arm the reader before persisting the picture
+                image.close();
+
+                if (null == burst) {
+                    mCapturing = false;
+                }
+            }
+
+            if (null != burst) {
+                onBurstFrameCaptured(burst, data, width, height);
+                return;
+            }
+
+            if (mCaptureProfilePending) {
+                applyCaptureProfile();
+            }
+
+            if (args.callback instanceof OnPictureCapturedCallback) {
+                ((OnPictureCapturedCallback) args.callback).onPictureCaptured(args.device, data);
+            }
+
+            mPersister.persist(args.device, args.context, data, args.timestamp, mCapabilities.getOrientation(), width, height, args.callback);
+        }
+    };
+
+    private HandlerThread mThread;
+    private Handler mHandler;
+
+    private volatile android.hardware.camera2.CameraDevice mCamera;
+    private volatile boolean mCapturing;
+
+    private CameraCaptureSession mSession;
+    private SurfaceHolder mHolder;
+    private ImageReader mPreviewReader;
+    private ImageReader mPictureReader;
+    private String mCameraId;
+    private volatile int mCameraIndex = -1;
+    private volatile CameraCapabilities mCapabilities;
+    private CameraCapabilities.Size mPreviewSize;
+    private CameraCapabilities.Size mPictureSize;
+    private boolean mAutoFocusInFlight;
+    private TakePictureArguments mPendingPicture;
+    private BurstArguments mPendingBurst;
+    private boolean mCaptureProfilePending;
+    private long mOpenStart;
+    private long mFirstPreviewFrameStart;
+    private long mFocusStart;
+    private long mShutterStart;
+
+    /**
+     * The future of starting preview, completed once the repeating request set
+     */
+    private CameraFuture<CameraCapabilities> mPreviewFuture;
+    private volatile VideoRecording mRecording;
+    private Surface mRecordingSurface;
+
+    /**
+     * Whether the camera is kept open without preview surface
+     */
+    private volatile boolean mSuspended;
+
+    Camera2Device(final Context context) {
+        this(context, new FrameworkBackend((android.hardware.camera2.CameraManager) context.getSystemService(Context.CAMERA_SERVICE)));
+    }
+
+    /**
+     * Create an instance with the specified backend, which can be a fake
+     * camera service in tests
+     *
+     * @param context
+     *            A context
+     * @param backend
+     *            The backend of camera service
+     */
+    Camera2Device(final Context context, final Camera2Backend backend) {
+        this.mContext = context;
+        this.mBackend = backend;
+        this.mMainHandler = new Handler(Looper.getMainLooper());
+        this.mPreviewSlot = new ArgumentsSlot<PreviewArguments>(new PreviewArguments(this, context), new PreviewArguments(this, context));
+        this.mConfigSlot = new ArgumentsSlot<ConfigArguments>(new ConfigArguments(this, context), new ConfigArguments(this, context));
+    }
+
+    /**
+     * Returns the handler of dispatch thread, the dispatch thread is started
+     * on demand once the closed one quit
+     */
+    private Handler getHandler() {
+        final HandlerThread closed;
+
+        synchronized (this) {
+            if (null != this.mHandler) {
+                return this.mHandler;
+            }
+
+            closed = this.mThread;
+        }
+
+        // Wait outside the lock since the closed thread may take it while releasing camera
+        if (null != closed) {
+            awaitQuit(closed);
+        }
+
+        synchronized (this) {
+            if (null == this.mHandler) {
+                this.mThread = new HandlerThread("Camera2Device");
+                this.mThread.start();
+                this.mHandler = new Handler(this.mThread.getLooper(), this);
+            }
+
+            return this.mHandler;
+        }
+    }
+
+    private boolean sendMessage(final int what) {
+        return getHandler().sendEmptyMessage(what);
+    }
+
+    private boolean sendMessage(final int what, final Object arg) {
+        final Handler handler = getHandler();
+        return handler.sendMessage(handler.obtainMessage(what, arg));
+    }
+
+    /**
+     * Sends the specified message in place of the pending one of the same
+     * type, the arguments are read from the slot of the type
+     */
+    private boolean sendLatestMessage(final int what) {
+        final Handler handler = getHandler();
+        handler.removeMessages(what);
+        return handler.sendEmptyMessage(what);
+    }
+
+    private synchronized boolean hasMessages(final int what) {
+        return null != this.mHandler && this.mHandler.hasMessages(what);
+    }
+
+    @Override
+    public synchronized void close() {
+        if (null == this.mHandler) {
+            return;
+        }
+
+        // release camera after the pending messages and then quit, the
+        // thread is kept to be waited for before restarting
+        this.mHandler.sendEmptyMessage(MSG_CLOSE);
+        this.mHandler = null;
+        this.mPersister.shutdown();
+    }
+
+    @Override
+    public CameraCapabilities getCapabilities() {
+        return this.mCapabilities;
+    }
+
+    @Override
+    boolean startPreview(final SurfaceHolder holder, final int cameraId, final CameraFuture<CameraCapabilities> future) {
+        synchronized (this.mPreviewSlot) {
+            this.mPreviewSlot.edit().set(holder, cameraId, future);
+            return sendLatestMessage(MSG_START_PREVIEW);
+        }
+    }
+
+    @Override
+    public boolean setAutoFocus(final OnAutoFocusCallback callback) {
+        if (null == this.mCamera) {
+            return false;
+        }
+
+        synchronized (this.mAutoFocusRequests) {
+            if (null != callback && !this.mAutoFocusRequests.contains(callback)) {
+                this.mAutoFocusRequests.add(callback);
+            }
+        }
+
+        if (!sendLatestMessage(MSG_AUTO_FOCUS)) {
+            synchronized (this.mAutoFocusRequests) {
+                this.mAutoFocusRequests.remove(callback);
+            }
+            return false;
+        }
+
+        return true;
+    }
+
+    @Override
+    boolean stopPreview(final CameraFuture<Void> future) {
+        if (null == this.mCamera) {
+            if (null != future) {
+                future.complete(null);
+            }
+            return false;
+        }
+
+        return sendMessage(MSG_STOP_PREVIEW, future);
+    }
+
+    @Override
+    boolean takePicture(final OnPictureTakenCallback callback, final CameraFuture<Uri> future) {
+        if (null == this.mCamera || this.mCapturing || hasMessages(MSG_TAKE_PICTURE)) {
+            return refuse(future, new IllegalStateException("Camera not opened or busy"));
+        }
+
+        if (admitPictures(1) <= 0) {
+            return refuse(future, new IOException("Insufficient storage"));
+        }
+
+        this.mCapturing = true;
+        if (!sendMessage(MSG_TAKE_PICTURE, new TakePictureArguments(this, this.mContext, this.mCameraIndex, callback))) {
+            this.mCapturing = false;
+            return refuse(future, new IllegalStateException("Camera dispatch thread unavailable"));
+        }
+        return true;
+    }
+
+    @Override
+    public boolean takeBurst(final int count, final long interval, final OnBurstCallback callback) {
+        if (null == this.mCamera || this.mCapturing || count <= 0 || hasMessages(MSG_TAKE_PICTURE) || hasMessages(MSG_TAKE_BURST)) {
+            return false;
+        }
+
+        final int admitted = admitPictures(count);
+        if (admitted <= 0) {
+            return false;
+        }
+
+        this.mCapturing = true;
+        if (!sendMessage(MSG_TAKE_BURST, new BurstArguments(this, this.mContext, admitted, interval, callback))) {
+            this.mCapturing = false;
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public boolean startRecording(final OnRecordingCallback callback) {
+        if (null == this.mCamera || this.mCapturing || null != this.mRecording || hasMessages(MSG_TAKE_PICTURE) || hasMessages(MSG_TAKE_BURST) || !admitRecording()) {
+            return false;
+        }
+
+        this.mCapturing = true;
+        if (!sendMessage(MSG_START_RECORDING, new RecordingArguments(this, this.mContext, callback))) {
+            this.mCapturing = false;
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public boolean stopRecording() {
+        if (null == this.mRecording) {
+            return false;
+        }
+
+        return sendMessage(MSG_STOP_RECORDING);
+    }
+
+    @Override
+    public boolean isRecording() {
+        return null != this.mRecording;
+    }
+
+    @Override
+    void onPreviewFrameCallbacksChanged() {
+        if (null != this.mCamera) {
+            sendMessage(MSG_SETUP_PREVIEW_CALLBACK);
+        }
+    }
+
+    @Override
+    void onCaptureProfileChanged() {
+        if (null != this.mCamera) {
+            sendMessage(MSG_APPLY_CAPTURE_PROFILE);
+        }
+    }
+
+    @Override
+    void onFrameRatePolicyChanged() {
+        if (null != this.mCamera) {
+            sendMessage(MSG_APPLY_FRAME_RATE_POLICY);
+        }
+    }
+
+    @Override
+    public void surfaceCreated(final SurfaceHolder holder) {
+        if (this.mSuspended) {
+            startPreview(holder, this.mCameraIndex);
+        }
+    }
+
+    @Override
+    public void surfaceChanged(final SurfaceHolder holder, final int format, final int width, final int height) {
+        synchronized (this.mConfigSlot) {
+            this.mConfigSlot.edit().set(holder, format, width, height);
+            sendLatestMessage(MSG_CONFIG_SURFACE);
+        }
+    }
+
+    @Override
+    public void surfaceDestroyed(final SurfaceHolder holder) {
+        sendMessage(MSG_SUSPEND_PREVIEW);
+    }
+
+    @Override
+    public boolean handleMessage(final Message message) {
+        switch (message.what) {
+            case MSG_START_PREVIEW: {
+                final PreviewArguments args = this.mPreviewSlot.take();
+                if (null != args) {
+                    startPreview(args);
+                }
+                break;
+            }
+            case MSG_STOP_PREVIEW: {
+                stopPreview0();
+
+                @SuppressWarnings("unchecked")
+                final CameraFuture<Void> future = (CameraFuture<Void>) message.obj;
+                if (null != future) {
+                    future.complete(null);
+                }
+                break;
+            }
+            case MSG_CONFIG_SURFACE: {
+                final ConfigArguments args = this.mConfigSlot.take();
+                if (null != args) {
+                    configSurface(args);
+                }
+                break;
+            }
+            case MSG_AUTO_FOCUS: {
+                autoFocus();
+                break;
+            }
+            case MSG_TAKE_PICTURE: {
+                takePicture((TakePictureArguments) message.obj);
+                break;
+            }
+            case MSG_SETUP_PREVIEW_CALLBACK: {
+                setRepeatingRequest();
+                break;
+            }
+            case MSG_APPLY_FRAME_RATE_POLICY: {
+                getFrameRateMeter().reset();
+                setRepeatingRequest();
+                break;
+            }
+            case MSG_TAKE_BURST: {
+                takeBurst((BurstArguments) message.obj);
+                break;
+            }
+            case MSG_BURST_NEXT: {
+                captureBurstFrame((BurstArguments) message.obj);
+                break;
+            }
+            case MSG_APPLY_CAPTURE_PROFILE: {
+                applyCaptureProfile();
+                break;
+            }
+            case MSG_START_RECORDING: {
+                startRecording((RecordingArguments) message.obj);
+                break;
+            }
+            case MSG_RECORDING_PREPARED: {
+                onRecordingPrepared((VideoRecording) message.obj);
+                break;
+            }
+            case MSG_STOP_RECORDING: {
+                finishRecording(this.mRecording);
+                break;
+            }
+            case MSG_RECORDING_STOPPED: {
+                finishRecording((VideoRecording) message.obj);
+                break;
+            }
+            case MSG_SUSPEND_PREVIEW: {
+                suspendPreview();
+                break;
+            }
+            case MSG_RELEASE_SUSPENDED: {
+                if (this.mSuspended) {
+                    stopPreview0();
+                }
+                break;
+            }
+            case MSG_CLOSE: {
+                stopPreview0();
+                Looper.myLooper().quit();
+                break;
+            }
+        }
+        return true;
+    }
+
+    private void startPreview(final PreviewArguments args) {
+        if (this.mCameraIndex == args.cameraId && null != this.mCamera) {
+            if (this.mSuspended) {
+                resumePreview(args);
+            } else if (null != this.mSession) {
+                args.complete(this.mCapabilities);
+            } else {
+                joinPreviewFuture(args.future);
+            }
+            return;
+        }
+
+        stopPreview0();
+        joinPreviewFuture(args.future);
+
+        try {
+            final String[] ids = this.mBackend.getCameraIdList();
+            if (ids.length <= 0) {
+                throw new IllegalStateException("No camera available");
+            }
+
+            this.mCameraIndex = args.cameraId >= 0 && args.cameraId < ids.length ? args.cameraId : 0;
+            this.mCameraId = ids[this.mCameraIndex];
+            this.mHolder = args.holder;
+
+            this.mCapabilities = this.mBackend.getCapabilities(this.mCameraIndex, this.mCameraId);
+
+            // Choose preview size by the current surface size before it is fixed to the preview size
+            final Rect frame = args.holder.getSurfaceFrame();
+            final CameraCapabilities.Size[] sizes = selectSizes(this.mCapabilities, args.isPortrait(), frame.width(), frame.height());
+            this.mPreviewSize = sizes[0];
+            this.mPictureSize = sizes[1];
+            Log.v(TAG, "Set preview size " + this.mPreviewSize);
+
+            final LatencyTracker tracker = getLatencyTracker();
+            this.mFirstPreviewFrameStart = tracker.beginAsync(LatencyStage.FIRST_PREVIEW_FRAME);
+            this.mOpenStart = tracker.beginAsync(LatencyStage.OPEN);
+            this.mBackend.openCamera(this.mCameraId, this.mStateCallback);
+        } catch (final Exception e) {
+            Log.e(TAG, "Failed to start preview", e);
+            failPreviewFuture(e);
+            stopPreview0();
+        }
+    }
+
+    /**
+     * Completes the specified future once the preview in progress started
+     */
+    private void joinPreviewFuture(final CameraFuture<CameraCapabilities> future) {
+        if (null == future) {
+            return;
+        }
+
+        if (null == this.mPreviewFuture) {
+            this.mPreviewFuture = future;
+        } else {
+            future.follow(this.mPreviewFuture);
+        }
+    }
+
+    private void failPreviewFuture(final Throwable cause) {
+        if (null != this.mPreviewFuture) {
+            this.mPreviewFuture.fail(cause);
+            this.mPreviewFuture = null;
+        }
+    }
+
+    /**
+     * Resumes the preview on the camera kept open by creating the capture
+     * session with the new surface
+     */
+    private void resumePreview(final PreviewArguments args) {
+        getHandler().removeMessages(MSG_RELEASE_SUSPENDED);
+        this.mSuspended = false;
+        this.mHolder = args.holder;
+        this.mFirstPreviewFrameStart = getLatencyTracker().beginAsync(LatencyStage.FIRST_PREVIEW_FRAME);
+        countPreviewStart(true);
+        joinPreviewFuture(args.future);
+        configOutputs();
+    }
+
+    /**
+     * Closes the capture session once the surface destroyed, the camera is
+     * kept open within the warm resume timeout unless it is busy
+     */
+    private void suspendPreview() {
+        if (this.mSuspended) {
+            return;
+        }
+
+        final long timeout = getWarmResumeTimeout();
+        if (timeout <= 0 || null == this.mCamera || this.mCapturing || null != this.mRecording) {
+            stopPreview0();
+            return;
+        }
+
+        this.mFocusStart = 0;
+        this.mFirstPreviewFrameStart = 0;
+        finishAutoFocus(false);
+
+        if (null != this.mSession) {
+            this.mSession.close();
+            this.mSession = null;
+        }
+
+        this.mHolder = null;
+        this.mSuspended = true;
+        getFrameRateMeter().reset();
+
+        final Handler handler = getHandler();
+        handler.removeMessages(MSG_RELEASE_SUSPENDED);
+        handler.sendEmptyMessageDelayed(MSG_RELEASE_SUSPENDED, timeout);
+    }
+
+    private void stopPreview0() {
+        failPreviewFuture(new IllegalStateException("Preview stopped"));
+        this.mSuspended = false;
+        final TakePictureArguments picture = this.mPendingPicture;
+        this.mPendingPicture = null;
+        this.mPendingBurst = null;
+        finishAutoFocus(false);
+
+        if (null != picture) {
+            picture.fail();
+        }
+
+        this.mCaptureProfilePending = false;
+        this.mOpenStart = 0;
+        this.mFirstPreviewFrameStart = 0;
+        this.mFocusStart = 0;
+        this.mShutterStart = 0;
+        getFrameRateMeter().reset();
+
+        if (null != this.mSession) {
+            this.mSession.close();
+            this.mSession = null;
+        }
+
+        if (null != this.mCamera) {
+            this.mCamera.close();
+            this.mCamera = null;
+        }
+
+        final VideoRecording recording = this.mRecording;
+        if (null != recording) {
+            this.mRecording = null;
+            this.mRecordingSurface = null;
+            VideoRecording.execute(new Runnable() {
+                @Override
+                public void run() {
+                    recording.stop();
+                    recording.persist();
+                }
+            });
+        }
+
+        if (null != this.mPreviewReader) {
+            this.mPreviewReader.close();
+            this.mPreviewReader = null;
+        }
+
+        if (null != this.mPictureReader) {
+            this.mPictureReader.close();
+            this.mPictureReader = null;
+        }
+
+        this.mCameraId = null;
+        this.mCameraIndex = -1;
+        this.mCapabilities = null;
+        this.mCapturing = false;
+    }
+
+    private void configSurface(final ConfigArguments args) {
+        this.mHolder = args.holder;
+
+        final CameraCapabilities capabilities = this.mCapabilities;
+        final CameraCapabilities.Size previewSize = this.mPreviewSize;
+        if (null == capabilities || null == previewSize || null != this.mRecording
+                || (args.width == previewSize.width && args.height == previewSize.height)) {
+            // The surface has been fixed to the preview size
+            configOutputs();
+            return;
+        }
+
+        final CameraCapabilities.Size[] sizes = selectSizes(capabilities, args.isPortrait(), args.width, args.height);
+        if (sizes[0].equals(previewSize) && sizes[1].equals(this.mPictureSize)) {
+            // nothing changed, e.g. rotation
+            configOutputs();
+            return;
+        }
+
+        this.mPreviewSize = sizes[0];
+        this.mPictureSize = sizes[1];
+        Log.v(TAG, "Set preview size " + this.mPreviewSize);
+
+        // The outputs of a session are fixed, so the session is recreated with the new sizes
+        if (null != this.mSession) {
+            this.mSession.close();
+            this.mSession = null;
+        }
+
+        configOutputs();
+    }
+
+    /**
+     * Creates the capture session once the surface has been resized to the preview size
+     */
+    private void configOutputs() {
+        final SurfaceHolder holder = this.mHolder;
+        final CameraCapabilities.Size previewSize = this.mPreviewSize;
+        if (null == this.mCamera || null == holder || null == previewSize || null != this.mSession) {
+            return;
+        }
+
+        final Rect frame = holder.getSurfaceFrame();
+        if (frame.width() != previewSize.width || frame.height() != previewSize.height) {
+            // The surface size must be one of the supported output sizes, the
+            // session will be created when the surface changed
+            this.mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    holder.setFixedSize(previewSize.width, previewSize.height);
+                }
+            });
+            return;
+        }
+
+        final CameraCapabilities.Size pictureSize = this.mPictureSize;
+        Log.v(TAG, "Set picture size " + pictureSize);
+
+        if (null != this.mPreviewReader) {
+            this.mPreviewReader.close();
+        }
+        this.mPreviewReader = ImageReader.newInstance(previewSize.width, previewSize.height, ImageFormat.YUV_420_888, 2);
+        this.mPreviewReader.setOnImageAvailableListener(this.mPreviewFrameListener, null);
+
+        if (null != this.mPictureReader) {
+            this.mPictureReader.close();
+        }
+        this.mPictureReader = ImageReader.newInstance(pictureSize.width, pictureSize.height, ImageFormat.JPEG, 2);
+        this.mPictureReader.setOnImageAvailableListener(this.mPictureListener, null);
+
+        // No picture can be taken while recording, so the recorder takes the place of the picture reader
+        final Surface third = null != this.mRecordingSurface ? this.mRecordingSurface : this.mPictureReader.getSurface();
+
+        try {
+            this.mBackend.createCaptureSession(this.mCamera, Arrays.asList(holder.getSurface(), this.mPreviewReader.getSurface(), third), this.mSessionCallback);
+        } catch (final Exception e) {
+            Log.e(TAG, "Failed to create capture session", e);
+            stopPreview0();
+        }
+    }
+
+    private void setRepeatingRequest() {
+        if (null == this.mCamera || null == this.mSession || null == this.mHolder) {
+            return;
+        }
+
+        try {
+            final Surface recordingSurface = this.mRecordingSurface;
+            final CaptureRequest.Builder builder = this.mCamera.createCaptureRequest(null != recordingSurface
+                    ? android.hardware.camera2.CameraDevice.TEMPLATE_RECORD
+                    : android.hardware.camera2.CameraDevice.TEMPLATE_PREVIEW);
+            builder.addTarget(this.mHolder.getSurface());
+            builder.set(CaptureRequest.CONTROL_AF_MODE, getPreferredFocusMode());
+            setAutoExposureLock(builder);
+
+            // camera2 ranges are in frames per second while the capabilities are scaled by 1000
+            final int[] fpsRange = selectPreviewFpsRange(this.mCapabilities);
+            if (null != fpsRange) {
+                builder.set(CaptureRequest.CONTROL_AE_TARGET_FPS_RANGE, new Range<Integer>(fpsRange[0] / 1000, fpsRange[1] / 1000));
+            }
+
+            if (hasPreviewFrameCallbacks()) {
+                builder.addTarget(this.mPreviewReader.getSurface());
+            }
+
+            if (null != recordingSurface) {
+                builder.addTarget(recordingSurface);
+            }
+
+            this.mSession.setRepeatingRequest(builder.build(), this.mPreviewCaptureCallback, null);
+        } catch (final Exception e) {
+            Log.e(TAG, "Failed to set repeating request", e);
+        }
+    }
+
+    private void autoFocus() {
+        synchronized (this.mAutoFocusRequests) {
+            this.mAutoFocusCallbacks.addAll(this.mAutoFocusRequests);
+            this.mAutoFocusRequests.clear();
+        }
+
+        startAutoFocus();
+    }
+
+    /**
+     * Triggers auto focus for the pending callbacks, or lets them join the
+     * auto focus in flight
+     */
+    private void startAutoFocus() {
+        if (this.mAutoFocusCallbacks.isEmpty() || this.mAutoFocusInFlight) {
+            return;
+        }
+
+        if (null == this.mSession) {
+            finishAutoFocus(false);
+            return;
+        }
+
+        if (CameraMetadata.CONTROL_AF_MODE_OFF == getPreferredFocusMode()) {
+            // fixed focus
+            finishAutoFocus(true);
+            return;
+        }
+
+        this.mAutoFocusInFlight = true;
+        triggerAutoFocus(CameraMetadata.CONTROL_AF_TRIGGER_START);
+    }
+
+    /**
+     * Calls the pending callbacks with the specified result
+     */
+    private void finishAutoFocus(final boolean success) {
+        this.mAutoFocusInFlight = false;
+
+        final int n = this.mAutoFocusCallbacks.size();
+        for (int i = 0; i < n; i++) {
+            this.mAutoFocusCallbacks.get(i).onAutoFocus(this, success);
+        }
+
+        this.mAutoFocusCallbacks.subList(0, n).clear();
+    }
+
+    private void triggerAutoFocus(final int trigger) {
+        try {
+            final CaptureRequest.Builder builder = this.mCamera.createCaptureRequest(android.hardware.camera2.CameraDevice.TEMPLATE_PREVIEW);
+            builder.addTarget(this.mHolder.getSurface());
+            builder.set(CaptureRequest.CONTROL_AF_MODE, getPreferredFocusMode());
+            builder.set(CaptureRequest.CONTROL_AF_TRIGGER, trigger);
+            this.mSession.capture(builder.build(), this.mPreviewCaptureCallback, null);
+
+            if (CameraMetadata.CONTROL_AF_TRIGGER_START == trigger) {
+                this.mFocusStart = getLatencyTracker().beginAsync(LatencyStage.AUTO_FOCUS);
+            }
+        } catch (final Exception e) {
+            Log.e(TAG, "Failed to trigger auto focus", e);
+
+            if (CameraMetadata.CONTROL_AF_TRIGGER_START == trigger) {
+                finishAutoFocus(false);
+            }
+        }
+    }
+
+    private void takePicture(final TakePictureArguments args) {
+        if (null == this.mSession || null == args.callback) {
+            this.mCapturing = false;
+            args.fail();
+            return;
+        }
+
+        final ZeroShutterLagBuffer.Frame frame = acquireZeroShutterLagFrame(args.triggerTime);
+        if (null != frame) {
+            // The repeating request keeps running, the camera is ready at once
+            this.mCapturing = false;
+            if (this.mCaptureProfilePending) {
+                applyCaptureProfile();
+            }
+
+            final long shutterStart = getLatencyTracker().beginAsync(LatencyStage.SHUTTER_TO_JPEG);
+            this.mPersister.persistFrame(args.device, args.context, frame, shutterStart, args.timestamp, this.mCapabilities.getOrientation(), args.callback);
+            return;
+        }
+
+        try {
+            final CaptureRequest.Builder builder = this.mCamera.createCaptureRequest(android.hardware.camera2.CameraDevice.TEMPLATE_STILL_CAPTURE);
+            builder.addTarget(this.mPictureReader.getSurface());
+            builder.set(CaptureRequest.CONTROL_AF_MODE, getPreferredFocusMode());
+            setCaptureParameters(builder);
+            this.mPendingPicture = args;
+            this.mShutterStart = getLatencyTracker().beginAsync(LatencyStage.SHUTTER_TO_JPEG);
+            this.mSession.capture(builder.build(), null, null);
+        } catch (final Exception e) {
+            Log.e(TAG, "Failed to take picture", e);
+            this.mPendingPicture = null;
+            this.mCapturing = false;
+            args.fail();
+        }
+    }
+
+    private void takeBurst(final BurstArguments args) {
+        if (null == this.mSession) {
+            this.mCapturing = false;
+            return;
+        }
+
+        // Lock exposure and white balance, and focus once for the whole burst
+        this.mPendingBurst = args;
+        args.startTime = SystemClock.uptimeMillis();
+        setRepeatingRequest();
+
+        if (CameraMetadata.CONTROL_AF_MODE_OFF == getPreferredFocusMode()) {
+            captureBurstFrame(args);
+            return;
+        }
+
+        this.mAutoFocusCallbacks.add(this.mBurstAutoFocusCallback);
+        startAutoFocus();
+    }
+
+    private void captureBurstFrame(final BurstArguments args) {
+        if (null == this.mSession || args != this.mPendingBurst) {
+            finishBurst(args);
+            return;
+        }
+
+        try {
+            final CaptureRequest.Builder builder = this.mCamera.createCaptureRequest(android.hardware.camera2.CameraDevice.TEMPLATE_STILL_CAPTURE);
+            builder.addTarget(this.mPictureReader.getSurface());
+            builder.set(CaptureRequest.CONTROL_AF_MODE, getPreferredFocusMode());
+            setAutoExposureLock(builder);
+            setCaptureParameters(builder);
+            args.lastShutterTime = SystemClock.uptimeMillis();
+            this.mShutterStart = getLatencyTracker().beginAsync(LatencyStage.SHUTTER_TO_JPEG);
+            this.mSession.capture(builder.build(), null, null);
+        } catch (final Exception e) {
+            Log.e(TAG, "Failed to take picture", e);
+            finishBurst(args);
+        }
+    }
+
+    private void onBurstFrameCaptured(final BurstArguments args, final byte[] data, final int width, final int height) {
+        args.captured++;
+        args.lastCaptureTime = SystemClock.uptimeMillis();
+
+        // Persisting is pipelined with taking the next picture
+        this.mPersister.persist(args.device, args.context, data, System.currentTimeMillis(), this.mCapabilities.getOrientation(), width, height, args);
+
+        if (args.captured < args.count) {
+            final Handler handler = getHandler();
+            handler.sendMessageDelayed(handler.obtainMessage(MSG_BURST_NEXT, args), args.getNextDelay());
+        } else {
+            finishBurst(args);
+        }
+    }
+
+    private void finishBurst(final BurstArguments args) {
+        if (args == this.mPendingBurst) {
+            this.mPendingBurst = null;
+
+            if (null != this.mSession) {
+                setRepeatingRequest();
+                triggerAutoFocus(CameraMetadata.CONTROL_AF_TRIGGER_CANCEL);
+            }
+        }
+
+        this.mCapturing = false;
+
+        if (this.mCaptureProfilePending) {
+            applyCaptureProfile();
+        }
+
+        final float fps = args.getFramesPerSecond();
+        Log.v(TAG, "Burst " + args.captured + " pictures at " + fps + " fps");
+
+        // Runs after all pictures of the burst persisted
+        this.mPersister.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (null != args.callback) {
+                    args.callback.onBurstCompleted(args.device, args.captured, fps);
+                }
+            }
+        });
+    }
+
+    /**
+     * Applies the current capture profile, the JPEG quality and thumbnail size
+     * are set per capture request, while the capture session is recreated if
+     * the picture size changed, which is deferred until the pending capture
+     * finished
+     */
+    private void applyCaptureProfile() {
+        if (null == this.mCamera || null == this.mPreviewSize || null == this.mCapabilities) {
+            return;
+        }
+
+        if (this.mCapturing) {
+            this.mCaptureProfilePending = true;
+            return;
+        }
+
+        this.mCaptureProfilePending = false;
+
+        final CameraCapabilities.Size pictureSize = selectPictureSize(this.mCapabilities, this.mPreviewSize);
+        if (pictureSize.equals(this.mPictureSize)) {
+            return;
+        }
+
+        this.mPictureSize = pictureSize;
+
+        if (null != this.mSession) {
+            reconfigureOutputs();
+        }
+    }
+
+    /**
+     * Recreates the capture session with the current outputs
+     */
+    private void reconfigureOutputs() {
+        if (null != this.mSession) {
+            this.mSession.close();
+            this.mSession = null;
+        }
+
+        configOutputs();
+    }
+
+    private void startRecording(final RecordingArguments args) {
+        final VideoProfile profile = null == this.mSession ? null : this.mBackend.getVideoProfile(this.mCameraIndex, this.mCameraId, this.mCapabilities);
+        if (null == profile) {
+            Log.e(TAG, "No video profile available");
+            this.mCapturing = false;
+            if (null != args.callback) {
+                args.callback.onRecordingFinished(args.device, null);
+            }
+            return;
+        }
+
+        Log.v(TAG, "Record video " + profile);
+
+        final VideoRecording recording = new VideoRecording(args.device, args.context, getVideoRecorder(), profile, this.mCapabilities.getOrientation(), args.callback);
+        this.mRecording = recording;
+
+        // The encoder is prepared off the dispatch thread, and then its surface is attached to the session
+        VideoRecording.execute(new Runnable() {
+            @Override
+            public void run() {
+                sendMessage(recording.prepare(null, null) ? MSG_RECORDING_PREPARED : MSG_RECORDING_STOPPED, recording);
+            }
+        });
+    }
+
+    private void onRecordingPrepared(final VideoRecording recording) {
+        if (recording != this.mRecording) {
+            return;
+        }
+
+        this.mRecordingSurface = recording.recorder.getSurface();
+        if (null == this.mRecordingSurface) {
+            Log.e(TAG, "Video recorder has no input surface");
+            finishRecording(recording);
+            return;
+        }
+
+        reconfigureOutputs();
+    }
+
+    /**
+     * Detaches the recorder from the session, and then stops it on the recording thread
+     */
+    private void finishRecording(final VideoRecording recording) {
+        if (null == recording || recording != this.mRecording) {
+            return;
+        }
+
+        this.mRecording = null;
+
+        if (null != this.mRecordingSurface) {
+            this.mRecordingSurface = null;
+            reconfigureOutputs();
+        }
+
+        this.mCapturing = false;
+
+        if (this.mCaptureProfilePending) {
+            applyCaptureProfile();
+        }
+
+        VideoRecording.execute(new Runnable() {
+            @Override
+            public void run() {
+                recording.stop();
+                recording.persist();
+            }
+        });
+    }
+
+    private void setCaptureParameters(final CaptureRequest.Builder builder) {
+        final CaptureProfile profile = getCaptureProfile();
+        builder.set(CaptureRequest.JPEG_QUALITY, (byte) profile.jpegQuality);
+
+        final CameraCapabilities.Size thumbnailSize = profile.selectThumbnailSize(this.mCapabilities, this.mPictureSize);
+        if (null != thumbnailSize) {
+            builder.set(CaptureRequest.JPEG_THUMBNAIL_SIZE, new android.util.Size(thumbnailSize.width, thumbnailSize.height));
+        }
+    }
+
+    private void setAutoExposureLock(final CaptureRequest.Builder builder) {
+        final boolean lock = null != this.mPendingBurst;
+        builder.set(CaptureRequest.CONTROL_AE_LOCK, lock);
+        builder.set(CaptureRequest.CONTROL_AWB_LOCK, lock);
+    }
+
+    private int getPreferredFocusMode() {
+        final CameraCapabilities capabilities = this.mCapabilities;
+        if (capabilities.isFocusModeSupported(Camera.Parameters.FOCUS_MODE_CONTINUOUS_PICTURE)) {
+            return CameraMetadata.CONTROL_AF_MODE_CONTINUOUS_PICTURE;
+        }
+
+        if (capabilities.isFocusModeSupported(Camera.Parameters.FOCUS_MODE_AUTO)) {
+            return CameraMetadata.CONTROL_AF_MODE_AUTO;
+        }
+
+        return CameraMetadata.CONTROL_AF_MODE_OFF;
+    }
+
+    /**
+     * Converts the specified YUV_420_888 image into NV21
+     */
+    private static void toNV21(final Image image, final byte[] out) {
+        final int width = image.getWidth();
+        final int height = image.getHeight();
+        final Image.Plane[] planes = image.getPlanes();
+
+        // Y plane
+        final ByteBuffer y = planes[0].getBuffer();
+        final int yRowStride = planes[0].getRowStride();
+        int offset = 0;
+        for (int row = 0; row < height; row++) {
+            y.position(row * yRowStride);
+            y.get(out, offset, width);
+            offset += width;
+        }
+
+        // Interleaved VU planes
+        final ByteBuffer u = planes[1].getBuffer();
+        final ByteBuffer v = planes[2].getBuffer();
+        final int uvRowStride = planes[1].getRowStride();
+        final int uvPixelStride = planes[1].getPixelStride();
+        for (int row = 0, rows = height / 2, cols = width / 2; row < rows; row++) {
+            for (int col = 0, index = row * uvRowStride; col < cols; col++, index += uvPixelStride) {
+                out[offset++] = v.get(index);
+                out[offset++] = u.get(index);
+            }
+        }
+    }
+
+}
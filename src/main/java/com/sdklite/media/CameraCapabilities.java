@@ -0,0 +1,359 @@
+package com.sdklite.media;
+
+import android.annotation.TargetApi;
+import android.graphics.ImageFormat;
+import android.hardware.Camera;
+import android.hardware.camera2.CameraCharacteristics;
+import android.hardware.camera2.CameraMetadata;
+import android.hardware.camera2.params.StreamConfigurationMap;
+import android.media.MediaRecorder;
+import android.os.Build;
+import android.util.Range;
+import android.view.SurfaceHolder;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The immutable snapshot of camera capabilities, which is computed once per camera
+ */
+public final class CameraCapabilities {
+
+    /**
+     * The immutable size in pixel
+     */
+    public static final class Size {
+
+        /**
+         * The width in pixel
+         */
+        public final int width;
+
+        /**
+         * The height in pixel
+         */
+        public final int height;
+
+        public Size(final int width, final int height) {
+            this.width = width;
+            this.height = height;
+        }
+
+        /**
+         * Returns the number of pixels
+         */
+        public int getPixels() {
+            return this.width * this.height;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) {
+                return true;
+            }
+
+            if (!(o instanceof Size)) {
+                return false;
+            }
+
+            final Size size = (Size) o;
+            return this.width == size.width && this.height == size.height;
+        }
+
+        @Override
+        public int hashCode() {
+            return this.width * 32713 + this.height;
+        }
+
+        @Override
+        public String toString() {
+            return this.width + "x" + this.height;
+        }
+    }
+
+    private final int mCameraId;
+    private final int mFacing;
+    private final int mOrientation;
+    private final List<Size> mPreviewSizes;
+    private final List<Size> mPictureSizes;
+    private final List<Size> mThumbnailSizes;
+    private final List<Size> mVideoSizes;
+    private final List<String> mFocusModes;
+    private final List<int[]> mPreviewFpsRanges;
+    private final Map<Size, Integer> mMaxPreviewFps;
+    private final boolean mAutoExposureLockSupported;
+    private final boolean mAutoWhiteBalanceLockSupported;
+
+    CameraCapabilities(final int cameraId, final int facing, final int orientation, final List<Size> previewSizes, final List<Size> pictureSizes, final List<Size> thumbnailSizes, final List<Size> videoSizes, final List<String> focusModes, final List<int[]> previewFpsRanges, final Map<Size, Integer> maxPreviewFps, final boolean aeLock, final boolean awbLock) {
+        this.mCameraId = cameraId;
+        this.mFacing = facing;
+        this.mOrientation = orientation;
+        this.mPreviewSizes = Collections.unmodifiableList(previewSizes);
+        this.mPictureSizes = Collections.unmodifiableList(pictureSizes);
+        this.mThumbnailSizes = Collections.unmodifiableList(thumbnailSizes);
+        this.mVideoSizes = Collections.unmodifiableList(videoSizes);
+        this.mFocusModes = Collections.unmodifiableList(focusModes);
+        this.mPreviewFpsRanges = Collections.unmodifiableList(previewFpsRanges);
+        this.mMaxPreviewFps = maxPreviewFps;
+        this.mAutoExposureLockSupported = aeLock;
+        this.mAutoWhiteBalanceLockSupported = awbLock;
+    }
+
+    /**
+     * Returns the camera id
+     */
+    public int getCameraId() {
+        return this.mCameraId;
+    }
+
+    /**
+     * Returns the facing of camera
+     *
+     * @see Camera.CameraInfo#CAMERA_FACING_BACK
+     * @see Camera.CameraInfo#CAMERA_FACING_FRONT
+     */
+    public int getFacing() {
+        return this.mFacing;
+    }
+
+    /**
+     * Returns the orientation of camera image in degrees
+     */
+    public int getOrientation() {
+        return this.mOrientation;
+    }
+
+    /**
+     * Returns the supported preview sizes
+     */
+    public List<Size> getPreviewSizes() {
+        return this.mPreviewSizes;
+    }
+
+    /**
+     * Returns the supported picture sizes
+     */
+    public List<Size> getPictureSizes() {
+        return this.mPictureSizes;
+    }
+
+    /**
+     * Returns the supported JPEG thumbnail sizes
+     */
+    public List<Size> getThumbnailSizes() {
+        return this.mThumbnailSizes;
+    }
+
+    /**
+     * Returns the supported video sizes
+     */
+    public List<Size> getVideoSizes() {
+        return this.mVideoSizes;
+    }
+
+    /**
+     * Returns the supported focus modes
+     *
+     * @see Camera.Parameters#FOCUS_MODE_AUTO
+     * @see Camera.Parameters#FOCUS_MODE_CONTINUOUS_PICTURE
+     */
+    public List<String> getFocusModes() {
+        return this.mFocusModes;
+    }
+
+    /**
+     * Returns whether the specified focus mode is supported
+     *
+     * @param mode
+     *            The focus mode
+     */
+    public boolean isFocusModeSupported(final String mode) {
+        return this.mFocusModes.contains(mode);
+    }
+
+    /**
+     * Returns the supported preview fps ranges, the fps is scaled by 1000
+     *
+     * @see Camera.Parameters#PREVIEW_FPS_MIN_INDEX
+     * @see Camera.Parameters#PREVIEW_FPS_MAX_INDEX
+     */
+    public List<int[]> getPreviewFpsRanges() {
+        return this.mPreviewFpsRanges;
+    }
+
+    /**
+     * Returns the maximum frame rate of the specified preview size
+     *
+     * @param size
+     *            The preview size
+     * @return the maximum frame rate or 0 if unknown
+     */
+    public int getMaxPreviewFps(final Size size) {
+        final Integer fps = this.mMaxPreviewFps.get(size);
+        return null == fps ? 0 : fps;
+    }
+
+    /**
+     * Returns whether auto exposure lock is supported
+     */
+    public boolean isAutoExposureLockSupported() {
+        return this.mAutoExposureLockSupported;
+    }
+
+    /**
+     * Returns whether auto white balance lock is supported
+     */
+    public boolean isAutoWhiteBalanceLockSupported() {
+        return this.mAutoWhiteBalanceLockSupported;
+    }
+
+    /**
+     * Create the capabilities from the legacy camera parameters
+     *
+     * @param cameraId
+     *            The camera id
+     * @param info
+     *            The camera info
+     * @param parameters
+     *            The camera parameters
+     */
+    static CameraCapabilities from(final int cameraId, final Camera.CameraInfo info, final Camera.Parameters parameters) {
+        final List<String> focusModes = parameters.getSupportedFocusModes();
+        final List<int[]> fpsRanges = parameters.getSupportedPreviewFpsRange();
+        final boolean aeLock = Build.VERSION.SDK_INT >= Build.VERSION_CODES.ICE_CREAM_SANDWICH && parameters.isAutoExposureLockSupported();
+        final boolean awbLock = Build.VERSION.SDK_INT >= Build.VERSION_CODES.ICE_CREAM_SANDWICH && parameters.isAutoWhiteBalanceLockSupported();
+        final List<Camera.Size> previewSizes = parameters.getSupportedPreviewSizes();
+        // null means the video sizes are the same as the preview sizes
+        final List<Camera.Size> videoSizes = Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB ? parameters.getSupportedVideoSizes() : null;
+        return new CameraCapabilities(cameraId, info.facing, info.orientation,
+                toSizes(previewSizes),
+                toSizes(parameters.getSupportedPictureSizes()),
+                toSizes(parameters.getSupportedJpegThumbnailSizes()),
+                toSizes(null == videoSizes ? previewSizes : videoSizes),
+                null == focusModes ? new ArrayList<String>() : new ArrayList<String>(focusModes),
+                null == fpsRanges ? new ArrayList<int[]>() : new ArrayList<int[]>(fpsRanges),
+                Collections.<Size, Integer>emptyMap(),
+                aeLock, awbLock);
+    }
+
+    /**
+     * Create the capabilities from the camera2 characteristics
+     *
+     * @param cameraId
+     *            The camera index in the camera id list
+     * @param characteristics
+     *            The camera characteristics
+     */
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    static CameraCapabilities from(final int cameraId, final CameraCharacteristics characteristics) {
+        final Integer lensFacing = characteristics.get(CameraCharacteristics.LENS_FACING);
+        final Integer orientation = characteristics.get(CameraCharacteristics.SENSOR_ORIENTATION);
+        final StreamConfigurationMap map = characteristics.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
+
+        final List<String> focusModes = new ArrayList<String>();
+        final int[] afModes = characteristics.get(CameraCharacteristics.CONTROL_AF_AVAILABLE_MODES);
+        if (null != afModes) {
+            for (final int mode : afModes) {
+                final String name = toFocusMode(mode);
+                if (null != name) {
+                    focusModes.add(name);
+                }
+            }
+        }
+
+        final List<int[]> fpsRanges = new ArrayList<int[]>();
+        final Range<Integer>[] ranges = characteristics.get(CameraCharacteristics.CONTROL_AE_AVAILABLE_TARGET_FPS_RANGES);
+        if (null != ranges) {
+            for (final Range<Integer> range : ranges) {
+                fpsRanges.add(new int[] { range.getLower() * 1000, range.getUpper() * 1000 });
+            }
+        }
+
+        final android.util.Size[] previewSizes = map.getOutputSizes(SurfaceHolder.class);
+        final Map<Size, Integer> maxPreviewFps = new HashMap<Size, Integer>();
+        if (null != previewSizes) {
+            for (final android.util.Size size : previewSizes) {
+                final long duration = map.getOutputMinFrameDuration(SurfaceHolder.class, size);
+                if (duration > 0) {
+                    maxPreviewFps.put(new Size(size.getWidth(), size.getHeight()), (int) (1000000000L / duration));
+                }
+            }
+        }
+
+        final int facing = null != lensFacing && CameraCharacteristics.LENS_FACING_FRONT == lensFacing ? Camera.CameraInfo.CAMERA_FACING_FRONT : Camera.CameraInfo.CAMERA_FACING_BACK;
+        return new CameraCapabilities(cameraId, facing, null == orientation ? 0 : orientation,
+                toSizes(previewSizes),
+                toSizes(map.getOutputSizes(ImageFormat.JPEG)),
+                toSizes(characteristics.get(CameraCharacteristics.JPEG_AVAILABLE_THUMBNAIL_SIZES)),
+                toSizes(map.getOutputSizes(MediaRecorder.class)),
+                focusModes, fpsRanges, maxPreviewFps, true, true);
+    }
+
+    /**
+     * Returns the camera2 auto focus mode of the specified focus mode
+     *
+     * @param mode
+     *            The focus mode
+     */
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    static int toAutoFocusMode(final String mode) {
+        if (Camera.Parameters.FOCUS_MODE_AUTO.equals(mode)) {
+            return CameraMetadata.CONTROL_AF_MODE_AUTO;
+        } else if (Camera.Parameters.FOCUS_MODE_CONTINUOUS_PICTURE.equals(mode)) {
+            return CameraMetadata.CONTROL_AF_MODE_CONTINUOUS_PICTURE;
+        } else if (Camera.Parameters.FOCUS_MODE_CONTINUOUS_VIDEO.equals(mode)) {
+            return CameraMetadata.CONTROL_AF_MODE_CONTINUOUS_VIDEO;
+        } else if (Camera.Parameters.FOCUS_MODE_MACRO.equals(mode)) {
+            return CameraMetadata.CONTROL_AF_MODE_MACRO;
+        } else if (Camera.Parameters.FOCUS_MODE_EDOF.equals(mode)) {
+            return CameraMetadata.CONTROL_AF_MODE_EDOF;
+        }
+
+        return CameraMetadata.CONTROL_AF_MODE_OFF;
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private static String toFocusMode(final int mode) {
+        switch (mode) {
+            case CameraMetadata.CONTROL_AF_MODE_AUTO:
+                return Camera.Parameters.FOCUS_MODE_AUTO;
+            case CameraMetadata.CONTROL_AF_MODE_CONTINUOUS_PICTURE:
+                return Camera.Parameters.FOCUS_MODE_CONTINUOUS_PICTURE;
+            case CameraMetadata.CONTROL_AF_MODE_CONTINUOUS_VIDEO:
+                return Camera.Parameters.FOCUS_MODE_CONTINUOUS_VIDEO;
+            case CameraMetadata.CONTROL_AF_MODE_MACRO:
+                return Camera.Parameters.FOCUS_MODE_MACRO;
+            case CameraMetadata.CONTROL_AF_MODE_EDOF:
+                return Camera.Parameters.FOCUS_MODE_EDOF;
+            case CameraMetadata.CONTROL_AF_MODE_OFF:
+                return Camera.Parameters.FOCUS_MODE_FIXED;
+            default:
+                return null;
+        }
+    }
+
+    private static List<Size> toSizes(final List<Camera.Size> sizes) {
+        final List<Size> result = new ArrayList<Size>(null == sizes ? 0 : sizes.size());
+        if (null != sizes) {
+            for (final Camera.Size size : sizes) {
+                result.add(new Size(size.width, size.height));
+            }
+        }
+        return result;
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private static List<Size> toSizes(final android.util.Size[] sizes) {
+        final List<Size> result = new ArrayList<Size>(null == sizes ? 0 : sizes.length);
+        if (null != sizes) {
+            for (final android.util.Size size : sizes) {
+                result.add(new Size(size.getWidth(), size.getHeight()));
+            }
+        }
+        return result;
+    }
+
+}
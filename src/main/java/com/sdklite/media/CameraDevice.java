@@ -4,20 +4,30 @@ import android.app.Activity;
 import android.app.admin.DevicePolicyManager;
 import android.content.Context;
 import android.content.res.Configuration;
+import android.graphics.Bitmap;
 import android.graphics.ImageFormat;
 import android.hardware.Camera;
+import android.location.Location;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Handler;
 import android.os.HandlerThread;
+import android.os.Looper;
 import android.os.Message;
+import android.os.SystemClock;
 import android.util.Log;
+import android.util.SparseArray;
 import android.view.Display;
+import android.view.Surface;
 import android.view.SurfaceHolder;
 import android.view.WindowManager;
 
-import java.util.Date;
-import java.util.List;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * The abstraction of camera device
@@ -31,7 +41,8 @@ public abstract class CameraDevice implements SurfaceHolder.Callback {
      */
     public interface OnPictureTakenCallback {
         /**
-         * Called when picture has been taken
+         * Called when picture has been taken and persisted, this method is
+         * called on the persisting thread
          *
          * @param camera
          *            The camera device
@@ -41,6 +52,97 @@ public abstract class CameraDevice implements SurfaceHolder.Callback {
         void onPictureTaken(final CameraDevice camera, final Uri uri);
     }
 
+    /**
+     * Callback for taking picture in two phases, the picture is delivered in
+     * memory as soon as it is captured, and then the uri is delivered once the
+     * picture persisted
+     */
+    public interface OnPictureCapturedCallback extends OnPictureTakenCallback {
+        /**
+         * Called when picture has been captured, the camera is ready to take
+         * the next picture since then
+         *
+         * @param camera
+         *            The camera device
+         * @param data
+         *            The JPEG data of the picture
+         */
+        void onPictureCaptured(final CameraDevice camera, final byte[] data);
+    }
+
+    /**
+     * Callback for taking picture with a thumbnail, the thumbnail is created
+     * from the captured data before the picture persisted, and then it is
+     * persisted along with the picture
+     */
+    public interface OnPictureThumbnailCallback extends OnPictureTakenCallback {
+        /**
+         * Called when the thumbnail has been created, this method is called on
+         * the persisting thread before {@link #onPictureTaken(CameraDevice, Uri)}
+         *
+         * @param camera
+         *            The camera device
+         * @param thumbnail
+         *            The thumbnail no smaller than the thumbnail size of the
+         *            capture profile if the picture is large enough
+         */
+        void onThumbnailCreated(final CameraDevice camera, final Bitmap thumbnail);
+    }
+
+    /**
+     * Callback for burst capture
+     */
+    public interface OnBurstCallback {
+        /**
+         * Called when a picture of burst has been taken and persisted, this
+         * method is called on the persisting thread
+         *
+         * @param camera
+         *            The camera device
+         * @param index
+         *            The index of picture in the burst
+         * @param uri
+         *            The taken picture uri
+         */
+        void onBurstFrame(final CameraDevice camera, final int index, final Uri uri);
+
+        /**
+         * Called when all pictures of burst have been taken and persisted, this
+         * method is called on the persisting thread
+         *
+         * @param camera
+         *            The camera device
+         * @param count
+         *            The number of pictures taken
+         * @param fps
+         *            The frames per second sustained during the burst
+         */
+        void onBurstCompleted(final CameraDevice camera, final int count, final float fps);
+    }
+
+    /**
+     * Callback for video recording, all methods are called on the recording thread
+     */
+    public interface OnRecordingCallback {
+        /**
+         * Called when the recorder has started
+         *
+         * @param camera
+         *            The camera device
+         */
+        void onRecordingStarted(final CameraDevice camera);
+
+        /**
+         * Called when the recording has finished and persisted
+         *
+         * @param camera
+         *            The camera device
+         * @param uri
+         *            The recorded video uri or null if nothing recorded
+         */
+        void onRecordingFinished(final CameraDevice camera, final Uri uri);
+    }
+
     /**
      * Callback for auto focus
      */
@@ -56,17 +158,121 @@ public abstract class CameraDevice implements SurfaceHolder.Callback {
         void onAutoFocus(final CameraDevice camera, final boolean success);
     }
 
-    private static final CameraManager MANAGER = new CameraManager();
+    /**
+     * Callback for preview frames
+     */
+    public interface OnPreviewFrameCallback {
+        /**
+         * Called when a preview frame is available, the frame buffer is recycled
+         * for the subsequent frames as soon as this method returns, so do not
+         * keep any reference to it
+         *
+         * @param camera
+         *            The camera device
+         * @param data
+         *            The preview frame in NV21 format
+         * @param width
+         *            The frame width in pixel
+         * @param height
+         *            The frame height in pixel
+         */
+        void onPreviewFrame(final CameraDevice camera, final byte[] data, final int width, final int height);
+    }
 
     /**
-     * Create an instance of {@link CameraDevice}
+     * Callback for latency metrics
+     */
+    public interface OnLatencyListener {
+        /**
+         * Called when a timed stage finished, this method is called on the
+         * thread which the stage finished on, so it should return quickly
+         *
+         * @param camera
+         *            The camera device
+         * @param stage
+         *            The timed stage
+         * @param latency
+         *            The latency in nanoseconds
+         * @param histogram
+         *            The histogram of the stage including this latency
+         */
+        void onLatency(final CameraDevice camera, final LatencyStage stage, final long latency, final LatencyHistogram histogram);
+    }
+
+    /**
+     * The default free space in bytes kept on external storage, no capture is
+     * admitted below it
+     */
+    public static final long DEFAULT_LOW_STORAGE_THRESHOLD = 50L * 1024 * 1024;
+
+    private static final OnAutoFocusCallback DEFAULT_AUTO_FOCUS_CALLBACK = new OnAutoFocusCallback() {
+        @Override
+        public void onAutoFocus(final CameraDevice camera, final boolean success) {
+            Log.v(TAG, "Camera auto focus " + success);
+        }
+    };
+
+    private static final OnPreviewFrameCallback[] NO_PREVIEW_FRAME_CALLBACKS = new OnPreviewFrameCallback[0];
+
+    private volatile OnPreviewFrameCallback[] mPreviewFrameCallbacks = NO_PREVIEW_FRAME_CALLBACKS;
+
+    private volatile SizeSelector mSizeSelector = new ScoringSizeSelector();
+
+    private volatile CaptureProfile mCaptureProfile = CaptureProfile.BALANCED;
+
+    private final LatencyTracker mLatencyTracker = new LatencyTracker(this);
+
+    private volatile VideoRecorder mVideoRecorder = new MediaVideoRecorder();
+
+    private final ZeroShutterLagBuffer mZeroShutterLagBuffer = new ZeroShutterLagBuffer();
+
+    private volatile Location mLocation;
+
+    private volatile long mWarmResumeTimeout;
+
+    private final AtomicInteger mWarmStartCount = new AtomicInteger();
+
+    private final AtomicInteger mColdStartCount = new AtomicInteger();
+
+    private volatile FrameRatePolicy mFrameRatePolicy;
+
+    private final FrameRateMeter mFrameRateMeter = new FrameRateMeter();
+
+    private volatile long mLowStorageThreshold = DEFAULT_LOW_STORAGE_THRESHOLD;
+
+    /**
+     * The memoized sizes keyed by camera id, capture profile and surface size
+     */
+    private final Map<Long, CameraCapabilities.Size[]> mSelectedSizes = new HashMap<Long, CameraCapabilities.Size[]>();
+
+    /**
+     * Create an instance of {@link CameraDevice}, the camera2 based implementation
+     * is preferred if all cameras of the device support camera2 natively
      *
      * @param context
      *            A context
      * @return an instance of {@link CameraDevice}
      */
     public static CameraDevice newInstance(final Context context) {
-        return MANAGER.new CameraDeviceProxy(context);
+        return newInstance(context, Camera2Device.isSupported(context));
+    }
+
+    /**
+     * Create an instance of {@link CameraDevice}
+     *
+     * @param context
+     *            A context
+     * @param camera2
+     *            A boolean indicates whether to use the camera2 based implementation,
+     *            the legacy implementation is used if camera2 is not available
+     * @return an instance of {@link CameraDevice}
+     */
+    public static CameraDevice newInstance(final Context context, final boolean camera2) {
+        if (camera2 && Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            return new Camera2Device(context);
+        }
+
+        return new CameraManager().new CameraDeviceProxy(context);
     }
 
     /**
@@ -88,7 +294,53 @@ public abstract class CameraDevice implements SurfaceHolder.Callback {
      *            The camera id to use
      * @return true if the message of start view enqueued
      */
-    public abstract boolean startPreview(final SurfaceHolder holder, final int cameraId);
+    public final boolean startPreview(final SurfaceHolder holder, final int cameraId) {
+        // Refresh the storage space ahead of the first capture
+        MediaStorage.getStorageMonitor().refresh();
+        return startPreview(holder, cameraId, null);
+    }
+
+    /**
+     * Starts preview with the specified surface holder asynchronously
+     *
+     * @param holder
+     *            The surface holder to preview
+     * @return the future completed with the camera capabilities once the
+     *         preview started
+     */
+    public final CameraFuture<CameraCapabilities> startPreviewAsync(final SurfaceHolder holder) {
+        return startPreviewAsync(holder, Camera.CameraInfo.CAMERA_FACING_BACK);
+    }
+
+    /**
+     * Starts preview with the specified surface holder asynchronously, the
+     * future is cancelled if a later request supersedes it before it is
+     * handled
+     *
+     * @param holder
+     *            The surface holder to preview
+     * @param cameraId
+     *            The camera id to use
+     * @return the future completed with the camera capabilities once the
+     *         preview started
+     */
+    public final CameraFuture<CameraCapabilities> startPreviewAsync(final SurfaceHolder holder, final int cameraId) {
+        final CameraFuture<CameraCapabilities> future = new CameraFuture<CameraCapabilities>();
+        MediaStorage.getStorageMonitor().refresh();
+        if (!startPreview(holder, cameraId, future)) {
+            future.fail(new IllegalStateException("Camera dispatch thread unavailable"));
+        }
+        return future;
+    }
+
+    /**
+     * Starts preview with the specified surface holder, the future is
+     * completed on the dispatch thread
+     *
+     * @param future
+     *            The future to complete, or null
+     */
+    abstract boolean startPreview(final SurfaceHolder holder, final int cameraId, final CameraFuture<CameraCapabilities> future);
 
     /**
      * Sets the camera device auto focus
@@ -96,7 +348,7 @@ public abstract class CameraDevice implements SurfaceHolder.Callback {
      * @return true if the message of auto focus enqueued
      */
     public final boolean setAutoFocus() {
-        return this.setAutoFocus(MANAGER.mOnAutoFocusCallback);
+        return this.setAutoFocus(DEFAULT_AUTO_FOCUS_CALLBACK);
     }
 
     /**
@@ -108,388 +360,1961 @@ public abstract class CameraDevice implements SurfaceHolder.Callback {
      */
     public abstract boolean setAutoFocus(final OnAutoFocusCallback callback);
 
+    /**
+     * Starts auto focus asynchronously
+     *
+     * @return the future completed with whether the camera is focused
+     */
+    public final CameraFuture<Boolean> autoFocusAsync() {
+        final CameraFuture<Boolean> future = new CameraFuture<Boolean>();
+        final boolean queued = setAutoFocus(new OnAutoFocusCallback() {
+            @Override
+            public void onAutoFocus(final CameraDevice camera, final boolean success) {
+                future.complete(success);
+            }
+        });
+
+        if (!queued) {
+            future.fail(new IllegalStateException("Camera not opened"));
+        }
+        return future;
+    }
+
     /**
      * Stops preview
      *
      * @return true if the message of auto focus enqueued
      */
-    public abstract boolean stopPreview();
+    public final boolean stopPreview() {
+        return stopPreview(null);
+    }
+
+    /**
+     * Stops preview asynchronously
+     *
+     * @return the future completed once the camera released
+     */
+    public final CameraFuture<Void> stopPreviewAsync() {
+        final CameraFuture<Void> future = new CameraFuture<Void>();
+        if (!stopPreview(future)) {
+            // completed already if the camera is not opened
+            future.fail(new IllegalStateException("Camera dispatch thread unavailable"));
+        }
+        return future;
+    }
+
+    /**
+     * Stops preview, the future is completed on the dispatch thread, or
+     * immediately if the camera is not opened
+     *
+     * @param future
+     *            The future to complete, or null
+     * @return true if the message of stop preview enqueued
+     */
+    abstract boolean stopPreview(final CameraFuture<Void> future);
 
     /**
-     * Takes picture with the specified callback
+     * Takes picture with the specified callback, the picture is refused if
+     * it does not fit in the storage above the low storage threshold
      *
      * @param callback
      *            The take picture callback
      * @return true if the message of take picture enqueued
+     * @see #setLowStorageThreshold(long)
      */
-    public abstract boolean takePicture(final OnPictureTakenCallback callback);
-
-    private static final class CameraManager implements Handler.Callback {
-
-        private static final int MSG_START_PREVIEW = 1;
-        private static final int MSG_STOP_PREVIEW = 2;
-        private static final int MSG_CONFIG_SURFACE = 3;
-        private static final int MSG_AUTO_FOCUS = 4;
-        private static final int MSG_TAKE_PICTURE = 5;
-        private static final int MSG_ADJUST_ROTATION = 6;
-
-        private final class CameraDeviceProxy extends CameraDevice {
-
-            final Context mContext;
-
-            public CameraDeviceProxy(final Context context) {
-                this.mContext = context;
-            }
-
-            @Override
-            public boolean startPreview(final SurfaceHolder holder, final int cameraId) {
-                sendMessage(MSG_START_PREVIEW, new PreviewArguments(this, this.mContext, holder, cameraId));
-                return true;
-            }
+    public final boolean takePicture(final OnPictureTakenCallback callback) {
+        return takePicture(callback, null);
+    }
 
+    /**
+     * Takes picture asynchronously
+     *
+     * @return the future completed with the uri of the persisted picture
+     */
+    public final CameraFuture<Uri> takePictureAsync() {
+        final CameraFuture<Uri> future = new CameraFuture<Uri>();
+        takePicture(new OnPictureTakenCallback() {
             @Override
-            public boolean setAutoFocus(final OnAutoFocusCallback callback) {
-                if (null == mCamera) {
-                    return false;
+            public void onPictureTaken(final CameraDevice camera, final Uri uri) {
+                if (null != uri) {
+                    future.complete(uri);
+                } else {
+                    future.fail(new IOException("Failed to persist picture"));
                 }
-
-                sendMessage(MSG_AUTO_FOCUS, new AutoFocusArguments(this, this.mContext, callback));
-                return true;
             }
+        }, future);
+        return future;
+    }
 
-            @Override
-            public boolean stopPreview() {
-                if (null == mCamera) {
-                    return false;
-                }
+    /**
+     * Takes picture with the specified callback, the future is failed with
+     * the reason if the picture is refused
+     *
+     * @param future
+     *            The future to fail, or null
+     * @return true if the message of take picture enqueued
+     */
+    abstract boolean takePicture(final OnPictureTakenCallback callback, final CameraFuture<Uri> future);
 
-                sendMessage(MSG_STOP_PREVIEW, null);
-                return true;
-            }
+    /**
+     * Takes a burst of pictures, the focus and exposure are locked once for
+     * the whole burst, and the pictures are persisted while the next one is
+     * being taken, the burst is shortened to the pictures which fit in the
+     * storage above the low storage threshold
+     *
+     * @param count
+     *            The number of pictures to take
+     * @param interval
+     *            The minimum interval in milliseconds between two pictures
+     * @param callback
+     *            The burst callback
+     * @return true if the message of take burst enqueued
+     */
+    public abstract boolean takeBurst(final int count, final long interval, final OnBurstCallback callback);
 
-            @Override
-            public boolean takePicture(final OnPictureTakenCallback callback) {
-                if (null == mCamera || mCapturing || hasMessages(MSG_TAKE_PICTURE)) {
-                    return false;
-                }
+    /**
+     * Starts recording video from the current preview session, the encoder
+     * profile is selected from the camera capabilities, and the video is
+     * inserted into media store once stopped, no picture can be taken while
+     * recording, the recording is refused below the low storage threshold
+     *
+     * @param callback
+     *            The recording callback
+     * @return true if the message of start recording enqueued
+     */
+    public abstract boolean startRecording(final OnRecordingCallback callback);
 
-                mCapturing = true;
-                sendMessage(MSG_TAKE_PICTURE, new TakePictureArguments(this, this.mContext, mCameraId, callback));
-                return true;
-            }
+    /**
+     * Stops recording video
+     *
+     * @return true if the message of stop recording enqueued
+     */
+    public abstract boolean stopRecording();
 
-            @Override
-            public void surfaceCreated(final SurfaceHolder holder) {
+    /**
+     * Returns whether video is being recorded
+     */
+    public abstract boolean isRecording();
 
-            }
+    /**
+     * Sets the video encoder, which takes effect on the next recording
+     *
+     * @param recorder
+     *            The video recorder
+     */
+    public final void setVideoRecorder(final VideoRecorder recorder) {
+        if (null == recorder) {
+            throw new NullPointerException("recorder is null");
+        }
 
-            @Override
-            public void surfaceChanged(final SurfaceHolder holder, int format, int width, int height) {
-                sendMessage(MSG_CONFIG_SURFACE, new ConfigArguments(this, this.mContext, holder, format, width, height));
-            }
+        this.mVideoRecorder = recorder;
+    }
 
-            @Override
-            public void surfaceDestroyed(final SurfaceHolder holder) {
-                sendMessage(MSG_STOP_PREVIEW, null);
-            }
+    /**
+     * Returns the video encoder
+     */
+    public final VideoRecorder getVideoRecorder() {
+        return this.mVideoRecorder;
+    }
+
+    /**
+     * Sets the grace period to keep the camera open once the preview surface
+     * destroyed, the preview is stopped but the camera is not released, and
+     * it is resumed on the new surface if the surface is created again in
+     * time, e.g. on screen rotation
+     *
+     * @param timeout
+     *            The grace period in milliseconds, 0 releases the camera
+     *            immediately, which is the default
+     */
+    public final void setWarmResumeTimeout(final long timeout) {
+        if (timeout < 0) {
+            throw new IllegalArgumentException("timeout < 0");
         }
 
-        private final HandlerThread mThread;
-        private final Handler mHandler;
+        this.mWarmResumeTimeout = timeout;
+    }
 
-        private final OnAutoFocusCallback mOnAutoFocusCallback = new OnAutoFocusCallback() {
-            @Override
-            public void onAutoFocus(final CameraDevice camera, final boolean success) {
-                Log.v(TAG, "Camera auto focus " + success);
-            }
-        };
+    /**
+     * Returns the grace period in milliseconds to keep the camera open once
+     * the preview surface destroyed
+     */
+    public final long getWarmResumeTimeout() {
+        return this.mWarmResumeTimeout;
+    }
 
-        private volatile Camera mCamera;
-        private volatile boolean mCapturing;
-        private volatile int mCameraId;
+    /**
+     * Returns the number of previews resumed on the camera kept open
+     */
+    public final int getWarmStartCount() {
+        return this.mWarmStartCount.get();
+    }
+
+    /**
+     * Returns the number of previews started by opening the camera
+     */
+    public final int getColdStartCount() {
+        return this.mColdStartCount.get();
+    }
 
-        public CameraManager() {
-            this.mThread = new HandlerThread("CameraManager");
-            this.mThread.start();
-            this.mHandler = new Handler(this.mThread.getLooper(), this);
+    /**
+     * Sets the preview frame rate policy, which takes effect immediately
+     * without reopening the camera, the range is selected from
+     * {@link CameraCapabilities#getPreviewFpsRanges()}
+     *
+     * @param policy
+     *            The frame rate policy or null to keep the default range of
+     *            the camera, which is the default
+     */
+    public final void setFrameRatePolicy(final FrameRatePolicy policy) {
+        if (policy == this.mFrameRatePolicy) {
+            return;
         }
 
-        @Override
-        public boolean handleMessage(final Message message) {
-            switch (message.what) {
-                case MSG_START_PREVIEW: {
-                    startPreview((PreviewArguments) message.obj);
-                    break;
-                }
+        this.mFrameRatePolicy = policy;
+        onFrameRatePolicyChanged();
+    }
+
+    /**
+     * Returns the preview frame rate policy, or null if the default range of
+     * the camera is kept
+     */
+    public final FrameRatePolicy getFrameRatePolicy() {
+        return this.mFrameRatePolicy;
+    }
+
+    /**
+     * Returns the preview frame rate achieved in the last second, it is
+     * measured only if a frame rate policy is set or there are preview frame
+     * callbacks
+     *
+     * @return the frames per second or 0 if not measured yet
+     */
+    public final float getAchievedFrameRate() {
+        return this.mFrameRateMeter.getFrameRate();
+    }
+
+    /**
+     * Sets the free space kept on external storage, the captures are refused
+     * or shortened before the storage is full instead of failing while the
+     * files are being written
+     *
+     * @param threshold
+     *            The free space in bytes, {@link #DEFAULT_LOW_STORAGE_THRESHOLD}
+     *            by default
+     * @see MediaStorage#getStorageMonitor()
+     */
+    public final void setLowStorageThreshold(final long threshold) {
+        if (threshold < 0) {
+            throw new IllegalArgumentException("threshold < 0");
+        }
+
+        this.mLowStorageThreshold = threshold;
+    }
+
+    /**
+     * Returns the free space in bytes kept on external storage
+     */
+    public final long getLowStorageThreshold() {
+        return this.mLowStorageThreshold;
+    }
+
+    /**
+     * Sets the location which is written into the EXIF metadata of the
+     * pictures and into the media store rows of the pictures and videos
+     *
+     * @param location
+     *            The current location or null to record no location
+     */
+    public final void setLocation(final Location location) {
+        this.mLocation = location;
+    }
+
+    /**
+     * Returns the location recorded along with the captured media
+     */
+    public final Location getLocation() {
+        return this.mLocation;
+    }
+
+    /**
+     * Releases the camera and stops the dispatch thread of this device, the
+     * dispatch thread will be started again once this device is used again
+     */
+    public abstract void close();
+
+    /**
+     * Returns the capabilities of the opened camera
+     *
+     * @return the capabilities of the opened camera or null if camera not opened yet
+     */
+    public abstract CameraCapabilities getCapabilities();
+
+    /**
+     * Enables zero shutter lag capture with the default memory budget
+     *
+     * @param frames
+     *            The maximum number of preview frames to keep, 0 disables
+     *            zero shutter lag
+     * @see #setZeroShutterLag(int, long)
+     */
+    public final void setZeroShutterLag(final int frames) {
+        setZeroShutterLag(frames, ZeroShutterLagBuffer.getDefaultMemoryBudget());
+    }
+
+    /**
+     * Enables zero shutter lag capture, the latest preview frames are kept in
+     * a ring buffer and {@link #takePicture(OnPictureTakenCallback)} returns
+     * the frame closest to the time it is called, which is encoded into JPEG
+     * on the persisting thread. The regular capture is used if there is no
+     * recent frame
+     *
+     * @param frames
+     *            The maximum number of preview frames to keep, 0 disables
+     *            zero shutter lag
+     * @param memoryBudget
+     *            The maximum bytes of the kept frames, fewer frames are kept
+     *            for the large preview sizes
+     */
+    public final void setZeroShutterLag(final int frames, final long memoryBudget) {
+        this.mZeroShutterLagBuffer.configure(frames, memoryBudget);
+        onPreviewFrameCallbacksChanged();
+    }
+
+    /**
+     * Returns whether zero shutter lag capture is enabled
+     */
+    public final boolean isZeroShutterLagEnabled() {
+        return this.mZeroShutterLagBuffer.isEnabled();
+    }
+
+    /**
+     * Adds a callback to receive preview frames
+     *
+     * @param callback
+     *            The preview frame callback
+     */
+    public final void addOnPreviewFrameCallback(final OnPreviewFrameCallback callback) {
+        if (null == callback) {
+            return;
+        }
+
+        synchronized (this) {
+            final OnPreviewFrameCallback[] callbacks = this.mPreviewFrameCallbacks;
+            for (final OnPreviewFrameCallback cb : callbacks) {
+                if (cb == callback) {
+                    return;
+                }
+            }
+
+            final OnPreviewFrameCallback[] newCallbacks = new OnPreviewFrameCallback[callbacks.length + 1];
+            System.arraycopy(callbacks, 0, newCallbacks, 0, callbacks.length);
+            newCallbacks[callbacks.length] = callback;
+            this.mPreviewFrameCallbacks = newCallbacks;
+        }
+
+        onPreviewFrameCallbacksChanged();
+    }
+
+    /**
+     * Removes the specified preview frame callback
+     *
+     * @param callback
+     *            The preview frame callback
+     */
+    public final void removeOnPreviewFrameCallback(final OnPreviewFrameCallback callback) {
+        synchronized (this) {
+            final OnPreviewFrameCallback[] callbacks = this.mPreviewFrameCallbacks;
+            int index = -1;
+            for (int i = 0; i < callbacks.length; i++) {
+                if (callbacks[i] == callback) {
+                    index = i;
+                    break;
+                }
+            }
+
+            if (index < 0) {
+                return;
+            }
+
+            if (1 == callbacks.length) {
+                this.mPreviewFrameCallbacks = NO_PREVIEW_FRAME_CALLBACKS;
+            } else {
+                final OnPreviewFrameCallback[] newCallbacks = new OnPreviewFrameCallback[callbacks.length - 1];
+                System.arraycopy(callbacks, 0, newCallbacks, 0, index);
+                System.arraycopy(callbacks, index + 1, newCallbacks, index, callbacks.length - index - 1);
+                this.mPreviewFrameCallbacks = newCallbacks;
+            }
+        }
+
+        onPreviewFrameCallbacksChanged();
+    }
+
+    /**
+     * Sets the policy for selecting preview size and picture size, which
+     * takes effect on the next surface change
+     *
+     * @param selector
+     *            The size selector
+     */
+    public final void setSizeSelector(final SizeSelector selector) {
+        if (null == selector) {
+            throw new NullPointerException("selector is null");
+        }
+
+        synchronized (this.mSelectedSizes) {
+            this.mSizeSelector = selector;
+            this.mSelectedSizes.clear();
+        }
+    }
+
+    /**
+     * Returns the policy for selecting preview size and picture size
+     */
+    public final SizeSelector getSizeSelector() {
+        return this.mSizeSelector;
+    }
+
+    /**
+     * Sets the capture profile, which takes effect immediately without
+     * reopening the camera, the picture size is changed after the pending
+     * capture finished if the profile caps it differently
+     *
+     * @param profile
+     *            The capture profile
+     */
+    public final void setCaptureProfile(final CaptureProfile profile) {
+        if (null == profile) {
+            throw new NullPointerException("profile is null");
+        }
+
+        if (profile == this.mCaptureProfile) {
+            return;
+        }
+
+        this.mCaptureProfile = profile;
+        onCaptureProfileChanged();
+    }
+
+    /**
+     * Returns the capture profile, {@link CaptureProfile#BALANCED} by default
+     */
+    public final CaptureProfile getCaptureProfile() {
+        return this.mCaptureProfile;
+    }
+
+    /**
+     * Sets the listener to receive latency metrics, the stages are not timed
+     * if there is no listener
+     *
+     * @param listener
+     *            The latency listener or null to detach
+     */
+    public final void setOnLatencyListener(final OnLatencyListener listener) {
+        this.mLatencyTracker.setListener(listener);
+    }
+
+    /**
+     * Returns the latency histogram of the specified stage
+     *
+     * @param stage
+     *            The timed stage
+     */
+    public final LatencyHistogram getLatencyHistogram(final LatencyStage stage) {
+        return this.mLatencyTracker.getHistogram(stage);
+    }
+
+    final LatencyTracker getLatencyTracker() {
+        return this.mLatencyTracker;
+    }
+
+    /**
+     * Selects the preview size and picture size for the specified surface
+     * size, the result is memoized per camera id, capture profile, surface
+     * size and orientation
+     *
+     * @param capabilities
+     *            The camera capabilities
+     * @param portrait
+     *            A boolean indicates whether the screen orientation is portrait
+     * @param width
+     *            The surface width
+     * @param height
+     *            The surface height
+     * @return the preview size and the picture size
+     */
+    final CameraCapabilities.Size[] selectSizes(final CameraCapabilities capabilities, final boolean portrait, final int width, final int height) {
+        // Meaning of width and height is switched for preview when portrait,
+        // while it is the same as user's view for surface and metrics.
+        // That is, width must always be larger than height for setPreviewSize.
+        final int reqWidth = portrait ? height : width;
+        final int reqHeight = portrait ? width : height;
+        final CaptureProfile profile = this.mCaptureProfile;
+        final Long key = ((long) capabilities.getCameraId() << 56) | ((long) profile.ordinal() << 48) | ((long) reqWidth << 24) | reqHeight;
+
+        synchronized (this.mSelectedSizes) {
+            CameraCapabilities.Size[] sizes = this.mSelectedSizes.get(key);
+            if (null == sizes) {
+                final CameraCapabilities.Size previewSize = this.mSizeSelector.selectPreviewSize(capabilities, reqWidth, reqHeight);
+                final CameraCapabilities.Size pictureSize = this.mSizeSelector.selectPictureSize(capabilities, previewSize, profile.maxPictureMegapixels);
+                sizes = new CameraCapabilities.Size[] { previewSize, pictureSize };
+                this.mSelectedSizes.put(key, sizes);
+            }
+            return sizes;
+        }
+    }
+
+    /**
+     * Selects the picture size for the specified preview size with the
+     * current capture profile
+     *
+     * @param capabilities
+     *            The camera capabilities
+     * @param previewSize
+     *            The current preview size
+     * @return the picture size
+     */
+    final CameraCapabilities.Size selectPictureSize(final CameraCapabilities capabilities, final CameraCapabilities.Size previewSize) {
+        return this.mSizeSelector.selectPictureSize(capabilities, previewSize, this.mCaptureProfile.maxPictureMegapixels);
+    }
+
+    /**
+     * Returns the number of pictures up to the specified count which fit in
+     * the cached available space above the low storage threshold, the size
+     * of a picture is estimated from the current capture profile
+     */
+    final int admitPictures(final int count) {
+        final long space = MediaStorage.getStorageMonitor().getAvailableSpace();
+        if (MediaStorage.DISK_UNKNOWN_SIZE == space) {
+            return count;
+        }
+
+        final long budget = space - this.mLowStorageThreshold;
+        final long admitted = space < 0 || budget <= 0 ? 0 : Math.min(count, budget / this.mCaptureProfile.estimatePictureBytes());
+        if (admitted < count) {
+            Log.w(TAG, "Low storage " + space + " bytes, " + admitted + " of " + count + " pictures admitted");
+        }
+
+        return (int) admitted;
+    }
+
+    /**
+     * Returns whether the cached available space is above the low storage
+     * threshold for recording
+     */
+    final boolean admitRecording() {
+        if (MediaStorage.getStorageMonitor().hasSpace(0, this.mLowStorageThreshold)) {
+            return true;
+        }
+
+        Log.w(TAG, "Low storage, recording refused");
+        return false;
+    }
+
+    /**
+     * Counts the started preview
+     *
+     * @param warm
+     *            A boolean indicates whether the preview is resumed on the
+     *            camera kept open
+     */
+    final void countPreviewStart(final boolean warm) {
+        (warm ? this.mWarmStartCount : this.mColdStartCount).incrementAndGet();
+    }
+
+    final FrameRateMeter getFrameRateMeter() {
+        return this.mFrameRateMeter;
+    }
+
+    /**
+     * Selects the preview frame rate range of the current policy
+     *
+     * @param capabilities
+     *            The camera capabilities
+     * @return the range scaled by 1000 or null if the default range is kept
+     */
+    final int[] selectPreviewFpsRange(final CameraCapabilities capabilities) {
+        final FrameRatePolicy policy = this.mFrameRatePolicy;
+        if (null == policy || null == capabilities) {
+            return null;
+        }
+
+        return policy.select(capabilities.getPreviewFpsRanges());
+    }
+
+    /**
+     * Called when preview frame callbacks added or removed
+     */
+    void onPreviewFrameCallbacksChanged() {
+    }
+
+    /**
+     * Called when capture profile changed
+     */
+    void onCaptureProfileChanged() {
+    }
+
+    /**
+     * Called when frame rate policy changed
+     */
+    void onFrameRatePolicyChanged() {
+    }
+
+    boolean hasPreviewFrameCallbacks() {
+        return this.mPreviewFrameCallbacks.length > 0 || this.mZeroShutterLagBuffer.isEnabled();
+    }
+
+    /**
+     * Acquires the preview frame closest to the specified time for zero
+     * shutter lag capture
+     *
+     * @param time
+     *            The uptime in milliseconds when the capture triggered
+     * @return the frame or null if zero shutter lag is disabled or there is no
+     *         recent frame
+     */
+    final ZeroShutterLagBuffer.Frame acquireZeroShutterLagFrame(final long time) {
+        return this.mZeroShutterLagBuffer.acquire(time);
+    }
+
+    void dispatchPreviewFrame(final byte[] data, final int width, final int height) {
+        this.mZeroShutterLagBuffer.offer(data, width, height, SystemClock.uptimeMillis());
+
+        for (final OnPreviewFrameCallback callback : this.mPreviewFrameCallbacks) {
+            try {
+                callback.onPreviewFrame(this, data, width, height);
+            } catch (final Throwable t) {
+                Log.e(TAG, "Failed to dispatch preview frame", t);
+            }
+        }
+    }
+
+    /**
+     * Fails the specified future of a refused request
+     *
+     * @param future
+     *            The future to fail, or null
+     * @param cause
+     *            The reason of refusal
+     * @return false
+     */
+    static boolean refuse(final CameraFuture<?> future, final Throwable cause) {
+        if (null != future) {
+            future.fail(cause);
+        }
+        return false;
+    }
+
+    /**
+     * Waits for the specified dispatch thread to quit, so that the camera
+     * being released by a closed dispatch thread is never opened by the next
+     * one in the meantime
+     *
+     * @param thread
+     *            The closed dispatch thread
+     */
+    static void awaitQuit(final Thread thread) {
+        // Restarted by the closed dispatch thread itself
+        if (Thread.currentThread() == thread) {
+            return;
+        }
+
+        boolean interrupted = false;
+
+        while (thread.isAlive()) {
+            try {
+                thread.join();
+            } catch (final InterruptedException e) {
+                interrupted = true;
+            }
+        }
+
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static final class CameraManager implements Handler.Callback {
+
+        private static final int MSG_START_PREVIEW = 1;
+        private static final int MSG_STOP_PREVIEW = 2;
+        private static final int MSG_CONFIG_SURFACE = 3;
+        private static final int MSG_AUTO_FOCUS = 4;
+        private static final int MSG_TAKE_PICTURE = 5;
+        private static final int MSG_ADJUST_ROTATION = 6;
+        private static final int MSG_SETUP_PREVIEW_CALLBACK = 7;
+        private static final int MSG_CLOSE = 8;
+        private static final int MSG_TAKE_BURST = 9;
+        private static final int MSG_BURST_NEXT = 10;
+        private static final int MSG_APPLY_CAPTURE_PROFILE = 11;
+        private static final int MSG_START_RECORDING = 12;
+        private static final int MSG_STOP_RECORDING = 13;
+        private static final int MSG_RECORDING_STOPPED = 14;
+        private static final int MSG_SUSPEND_PREVIEW = 15;
+        private static final int MSG_RELEASE_SUSPENDED = 16;
+        private static final int MSG_APPLY_FRAME_RATE_POLICY = 17;
+
+        /**
+         * The minimum interval in milliseconds between two auto focus runs
+         */
+        private static final long AUTO_FOCUS_MIN_INTERVAL = 1000;
+
+        private final class CameraDeviceProxy extends CameraDevice {
+
+            final Context mContext;
+
+            public CameraDeviceProxy(final Context context) {
+                this.mContext = context;
+                mPreviewSlot = new ArgumentsSlot<PreviewArguments>(new PreviewArguments(this, context), new PreviewArguments(this, context));
+                mConfigSlot = new ArgumentsSlot<ConfigArguments>(new ConfigArguments(this, context), new ConfigArguments(this, context));
+            }
+
+            @Override
+            boolean startPreview(final SurfaceHolder holder, final int cameraId, final CameraFuture<CameraCapabilities> future) {
+                synchronized (mPreviewSlot) {
+                    mPreviewSlot.edit().set(holder, cameraId, future);
+                    return sendLatestMessage(MSG_START_PREVIEW);
+                }
+            }
+
+            @Override
+            public boolean setAutoFocus(final OnAutoFocusCallback callback) {
+                if (null == mCamera) {
+                    return false;
+                }
+
+                return mAutoFocusScheduler.request(callback);
+            }
+
+            @Override
+            boolean stopPreview(final CameraFuture<Void> future) {
+                if (null == mCamera) {
+                    if (null != future) {
+                        future.complete(null);
+                    }
+                    return false;
+                }
+
+                return sendMessage(MSG_STOP_PREVIEW, future);
+            }
+
+            @Override
+            boolean takePicture(final OnPictureTakenCallback callback, final CameraFuture<Uri> future) {
+                if (null == mCamera || mCapturing || hasMessages(MSG_TAKE_PICTURE)) {
+                    return refuse(future, new IllegalStateException("Camera not opened or busy"));
+                }
+
+                if (admitPictures(1) <= 0) {
+                    return refuse(future, new IOException("Insufficient storage"));
+                }
+
+                mCapturing = true;
+                if (!sendMessage(MSG_TAKE_PICTURE, new TakePictureArguments(this, this.mContext, mCameraId, callback))) {
+                    mCapturing = false;
+                    return refuse(future, new IllegalStateException("Camera dispatch thread unavailable"));
+                }
+                return true;
+            }
+
+            @Override
+            public boolean takeBurst(final int count, final long interval, final OnBurstCallback callback) {
+                if (null == mCamera || mCapturing || count <= 0 || hasMessages(MSG_TAKE_PICTURE) || hasMessages(MSG_TAKE_BURST)) {
+                    return false;
+                }
+
+                final int admitted = admitPictures(count);
+                if (admitted <= 0) {
+                    return false;
+                }
+
+                mCapturing = true;
+                if (!sendMessage(MSG_TAKE_BURST, new BurstArguments(this, this.mContext, admitted, interval, callback))) {
+                    mCapturing = false;
+                    return false;
+                }
+                return true;
+            }
+
+            @Override
+            public boolean startRecording(final OnRecordingCallback callback) {
+                if (null == mCamera || mCapturing || null != mRecording || hasMessages(MSG_TAKE_PICTURE) || hasMessages(MSG_TAKE_BURST) || !admitRecording()) {
+                    return false;
+                }
+
+                mCapturing = true;
+                if (!sendMessage(MSG_START_RECORDING, new RecordingArguments(this, this.mContext, callback))) {
+                    mCapturing = false;
+                    return false;
+                }
+                return true;
+            }
+
+            @Override
+            public boolean stopRecording() {
+                if (null == mRecording) {
+                    return false;
+                }
+
+                return sendMessage(MSG_STOP_RECORDING);
+            }
+
+            @Override
+            public boolean isRecording() {
+                return null != mRecording;
+            }
+
+            @Override
+            public void close() {
+                CameraManager.this.close();
+            }
+
+            @Override
+            public CameraCapabilities getCapabilities() {
+                return mCapabilities;
+            }
+
+            @Override
+            void onPreviewFrameCallbacksChanged() {
+                if (null != mCamera) {
+                    sendMessage(MSG_SETUP_PREVIEW_CALLBACK);
+                }
+            }
+
+            @Override
+            void onCaptureProfileChanged() {
+                if (null != mCamera) {
+                    sendMessage(MSG_APPLY_CAPTURE_PROFILE);
+                }
+            }
+
+            @Override
+            void onFrameRatePolicyChanged() {
+                if (null != mCamera) {
+                    sendMessage(MSG_APPLY_FRAME_RATE_POLICY);
+                }
+            }
+
+            @Override
+            public void surfaceCreated(final SurfaceHolder holder) {
+                if (mSuspended) {
+                    startPreview(holder, mCameraId);
+                }
+            }
+
+            @Override
+            public void surfaceChanged(final SurfaceHolder holder, int format, int width, int height) {
+                synchronized (mConfigSlot) {
+                    mConfigSlot.edit().set(holder, format, width, height);
+                    sendLatestMessage(MSG_CONFIG_SURFACE);
+                }
+            }
+
+            @Override
+            public void surfaceDestroyed(final SurfaceHolder holder) {
+                sendMessage(MSG_SUSPEND_PREVIEW);
+            }
+        }
+
+        /**
+         * Schedules auto focus on the dispatch thread, the requests are
+         * coalesced while one is pending or in flight, and auto focus runs at
+         * most once per {@link #AUTO_FOCUS_MIN_INTERVAL}, it never runs during
+         * capture, and the continuous focus is resumed once it finished
+         */
+        private final class AutoFocusScheduler implements Camera.AutoFocusCallback {
+
+            private final ArrayList<OnAutoFocusCallback> mPendingCallbacks = new ArrayList<OnAutoFocusCallback>();
+            private final ArrayList<OnAutoFocusCallback> mActiveCallbacks = new ArrayList<OnAutoFocusCallback>();
+
+            /**
+             * Whether a run has been requested and not started yet
+             */
+            private boolean mScheduled;
+
+            private boolean mInFlight;
+            private long mLastFocusTime;
+            private long mFocusStart;
+
+            /**
+             * Requests auto focus, the callback is called with the result of
+             * the next run, it's safe to call this method on any thread
+             *
+             * @param callback
+             *            The auto focus callback
+             * @return true if the request accepted
+             */
+            boolean request(final OnAutoFocusCallback callback) {
+                synchronized (this) {
+                    if (null != callback && !this.mPendingCallbacks.contains(callback)) {
+                        this.mPendingCallbacks.add(callback);
+                    }
+
+                    if (this.mScheduled) {
+                        return true;
+                    }
+
+                    this.mScheduled = true;
+                }
+
+                if (!sendMessage(MSG_AUTO_FOCUS)) {
+                    synchronized (this) {
+                        this.mScheduled = false;
+                    }
+                    return false;
+                }
+
+                return true;
+            }
+
+            /**
+             * Runs auto focus for the specified callback immediately, or joins
+             * the one in flight, regardless of the minimum interval
+             *
+             * @param callback
+             *            The auto focus callback
+             */
+            void focusNow(final OnAutoFocusCallback callback) {
+                this.mActiveCallbacks.add(callback);
+
+                if (!this.mInFlight) {
+                    start();
+                }
+            }
+
+            /**
+             * Starts auto focus if requested and allowed, otherwise it's
+             * rescheduled once the minimum interval elapsed, or once the auto
+             * focus in flight or the capture finished
+             */
+            void schedule() {
+                if (null == mCamera) {
+                    reset();
+                    return;
+                }
+
+                if (this.mInFlight || mCapturing) {
+                    return;
+                }
+
+                synchronized (this) {
+                    if (this.mPendingCallbacks.isEmpty()) {
+                        this.mScheduled = false;
+                        return;
+                    }
+                }
+
+                final long delay = this.mLastFocusTime + AUTO_FOCUS_MIN_INTERVAL - SystemClock.uptimeMillis();
+                if (delay > 0) {
+                    final Handler handler = getHandler();
+                    handler.removeMessages(MSG_AUTO_FOCUS);
+                    handler.sendEmptyMessageDelayed(MSG_AUTO_FOCUS, delay);
+                    return;
+                }
+
+                synchronized (this) {
+                    this.mActiveCallbacks.addAll(this.mPendingCallbacks);
+                    this.mPendingCallbacks.clear();
+                    this.mScheduled = false;
+                }
+
+                start();
+            }
+
+            /**
+             * Drops all of the requests
+             */
+            void reset() {
+                synchronized (this) {
+                    this.mPendingCallbacks.clear();
+                    this.mScheduled = false;
+                }
+
+                this.mActiveCallbacks.clear();
+                this.mInFlight = false;
+                this.mLastFocusTime = 0;
+            }
+
+            private void start() {
+                this.mInFlight = true;
+                this.mLastFocusTime = SystemClock.uptimeMillis();
+                this.mFocusStart = mDevice.getLatencyTracker().beginAsync(LatencyStage.AUTO_FOCUS);
+
+                try {
+                    mCamera.autoFocus(this);
+                } catch (final RuntimeException e) {
+                    Log.e(TAG, "Failed to auto focus", e);
+                    onAutoFocus(false, mCamera);
+                }
+            }
+
+            @Override
+            public void onAutoFocus(final boolean success, final Camera camera) {
+                if (!this.mInFlight) {
+                    // stale result of the previous camera
+                    return;
+                }
+
+                this.mInFlight = false;
+                mDevice.getLatencyTracker().endAsync(LatencyStage.AUTO_FOCUS, this.mFocusStart);
+                this.mFocusStart = 0;
+
+                if (!mCapturing && Camera.Parameters.FOCUS_MODE_CONTINUOUS_PICTURE.equals(mParameters.getFocusMode())) {
+                    // resume continuous focus
+                    camera.cancelAutoFocus();
+                }
+
+                final CameraDevice device = mDevice;
+                final OnAutoFocusCallback[] callbacks = this.mActiveCallbacks.toArray(new OnAutoFocusCallback[this.mActiveCallbacks.size()]);
+                this.mActiveCallbacks.clear();
+
+                for (final OnAutoFocusCallback callback : callbacks) {
+                    callback.onAutoFocus(device, success);
+                }
+
+                schedule();
+            }
+        }
+
+        private HandlerThread mThread;
+        private Handler mHandler;
+
+        private final AutoFocusScheduler mAutoFocusScheduler = new AutoFocusScheduler();
+
+        private ArgumentsSlot<PreviewArguments> mPreviewSlot;
+        private ArgumentsSlot<ConfigArguments> mConfigSlot;
+
+        private final Camera.PreviewCallback mPreviewCallback = new Camera.PreviewCallback() {
+            @Override
+            public void onPreviewFrame(final byte[] data, final Camera camera) {
+                if (null == data) {
+                    return;
+                }
+
+                onFirstPreviewFrame();
+
+                final PreviewBufferPool pool = mPreviewBufferPool;
+                if (!pool.accept(data)) {
+                    // stale buffer of the previous preview size, drop it
+                    return;
+                }
+
+                try {
+                    final CameraDevice device = mDevice;
+                    if (null != device) {
+                        device.getFrameRateMeter().onFrame();
+                        device.dispatchPreviewFrame(data, pool.getWidth(), pool.getHeight());
+                    }
+                } finally {
+                    camera.addCallbackBuffer(data);
+                }
+            }
+        };
+
+        private final Camera.PreviewCallback mFirstPreviewFrameCallback = new Camera.PreviewCallback() {
+            @Override
+            public void onPreviewFrame(final byte[] data, final Camera camera) {
+                onFirstPreviewFrame();
+            }
+        };
+
+        private static final SparseArray<CameraCapabilities> CAPABILITIES = new SparseArray<CameraCapabilities>();
+
+        private final PreviewBufferPool mPreviewBufferPool = new PreviewBufferPool();
+        private final CapturePersister mPersister = new CapturePersister();
+
+        private volatile Camera mCamera;
+        private volatile boolean mCapturing;
+        private volatile int mCameraId;
+        private volatile CameraDevice mDevice;
+        private byte[][] mQueuedPreviewBuffers;
+        private boolean mCaptureProfilePending;
+        private Camera.Parameters mParameters;
+
+        /**
+         * The picture being taken by the camera, failed if the camera is
+         * released before the picture delivered
+         */
+        private TakePictureArguments mPendingPicture;
+
+        /**
+         * The frame rate range of the camera before any policy applied
+         */
+        private int[] mDefaultFpsRange;
+        private volatile CameraCapabilities mCapabilities;
+        private long mFirstPreviewFrameStart;
+        private SurfaceHolder mHolder;
+        private volatile VideoRecording mRecording;
+
+        /**
+         * Whether the camera is kept open without preview surface
+         */
+        private volatile boolean mSuspended;
+
+        /**
+         * Returns the handler of dispatch thread, the dispatch thread is
+         * started on demand once the closed one quit
+         */
+        private Handler getHandler() {
+            final HandlerThread closed;
+
+            synchronized (this) {
+                if (null != this.mHandler) {
+                    return this.mHandler;
+                }
+
+                closed = this.mThread;
+            }
+
+            // Wait outside the lock since the closed thread may take it while releasing camera
+            if (null != closed) {
+                awaitQuit(closed);
+            }
+
+            synchronized (this) {
+                if (null == this.mHandler) {
+                    this.mThread = new HandlerThread("CameraManager");
+                    this.mThread.start();
+                    this.mHandler = new Handler(this.mThread.getLooper(), this);
+                }
+
+                return this.mHandler;
+            }
+        }
+
+        private synchronized void close() {
+            if (null == this.mHandler) {
+                return;
+            }
+
+            // release camera after the pending messages and then quit, the
+            // thread is kept to be waited for before restarting
+            this.mHandler.sendEmptyMessage(MSG_CLOSE);
+            this.mHandler = null;
+            this.mPersister.shutdown();
+        }
+
+        @Override
+        public boolean handleMessage(final Message message) {
+            switch (message.what) {
+                case MSG_START_PREVIEW: {
+                    final PreviewArguments args = this.mPreviewSlot.take();
+                    if (null != args) {
+                        startPreview(args);
+                    }
+                    break;
+                }
                 case MSG_STOP_PREVIEW: {
                     stopPreview();
+
+                    @SuppressWarnings("unchecked")
+                    final CameraFuture<Void> future = (CameraFuture<Void>) message.obj;
+                    if (null != future) {
+                        future.complete(null);
+                    }
                     break;
                 }
                 case MSG_CONFIG_SURFACE: {
-                    configSurface((ConfigArguments) message.obj);
+                    final ConfigArguments args = this.mConfigSlot.take();
+                    if (null != args) {
+                        configSurface(args);
+                    }
                     break;
                 }
                 case MSG_AUTO_FOCUS: {
-                    setAutoFocus((AutoFocusArguments) message.obj);
+                    this.mAutoFocusScheduler.schedule();
                     break;
                 }
                 case MSG_TAKE_PICTURE: {
                     takePicture((TakePictureArguments) message.obj);
                     break;
                 }
+                case MSG_SETUP_PREVIEW_CALLBACK: {
+                    setupPreviewCallback();
+                    break;
+                }
+                case MSG_TAKE_BURST: {
+                    takeBurst((BurstArguments) message.obj);
+                    break;
+                }
+                case MSG_BURST_NEXT: {
+                    captureBurstFrame((BurstArguments) message.obj);
+                    break;
+                }
+                case MSG_APPLY_CAPTURE_PROFILE: {
+                    applyCaptureProfile();
+                    break;
+                }
+                case MSG_START_RECORDING: {
+                    startRecording((RecordingArguments) message.obj);
+                    break;
+                }
+                case MSG_STOP_RECORDING: {
+                    stopRecording();
+                    break;
+                }
+                case MSG_RECORDING_STOPPED: {
+                    onRecordingStopped((VideoRecording) message.obj);
+                    break;
+                }
+                case MSG_APPLY_FRAME_RATE_POLICY: {
+                    applyFrameRatePolicy();
+                    break;
+                }
+                case MSG_SUSPEND_PREVIEW: {
+                    suspendPreview();
+                    break;
+                }
+                case MSG_RELEASE_SUSPENDED: {
+                    if (this.mSuspended) {
+                        stopPreview();
+                    }
+                    break;
+                }
+                case MSG_CLOSE: {
+                    stopPreview();
+                    Looper.myLooper().quit();
+                    break;
+                }
+            }
+            return true;
+        }
+
+        private boolean sendMessage(final int what) {
+            return getHandler().sendEmptyMessage(what);
+        }
+
+        private boolean sendMessage(final int what, final Object arg) {
+            final Handler handler = getHandler();
+            return handler.sendMessage(handler.obtainMessage(what, arg));
+        }
+
+        /**
+         * Sends the specified message in place of the pending one of the
+         * same type, the arguments are read from the slot of the type
+         */
+        private boolean sendLatestMessage(final int what) {
+            final Handler handler = getHandler();
+            handler.removeMessages(what);
+            return handler.sendEmptyMessage(what);
+        }
+
+        private synchronized boolean hasMessages(final int what) {
+            return null != this.mHandler && this.mHandler.hasMessages(what);
+        }
+
+        private void startPreview(final PreviewArguments args) {
+            final Configuration cfg = args.context.getResources().getConfiguration();
+            Log.v(TAG, "Display orientation " + cfg.orientation);
+
+            final int cameraId = args.cameraId;
+            if (this.mCameraId == cameraId && null != this.mCamera) {
+                if (this.mSuspended) {
+                    resumePreview(args);
+                } else {
+                    args.complete(this.mCapabilities);
+                }
+                return;
+            }
+
+            // Check device policy
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.ICE_CREAM_SANDWICH) {
+                if (args.context instanceof Activity) {
+                    final DevicePolicyManager dpm = (DevicePolicyManager) args.context.getSystemService(Context.DEVICE_POLICY_SERVICE);
+                    if (dpm.getCameraDisabled(((Activity) args.context).getComponentName())) {
+                        Log.e(TAG, "Camera is disabled");
+                    }
+                }
+            }
+
+            // Stop preview if camera is opened
+            stopPreview();
+            this.mDevice = args.device;
+
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.GINGERBREAD) {
+                if (Camera.getNumberOfCameras() > cameraId) {
+                    this.mCameraId = cameraId;
+                } else {
+                    this.mCameraId = Camera.CameraInfo.CAMERA_FACING_BACK;
+                }
+            } else {
+                this.mCameraId = Camera.CameraInfo.CAMERA_FACING_BACK;
+            }
+
+            try {
+                final LatencyTracker tracker = args.device.getLatencyTracker();
+                this.mFirstPreviewFrameStart = tracker.beginAsync(LatencyStage.FIRST_PREVIEW_FRAME);
+                final long openStart = tracker.begin(LatencyStage.OPEN);
+                try {
+                    this.mCamera = Camera.open(this.mCameraId);
+                } finally {
+                    tracker.end(LatencyStage.OPEN, openStart);
+                }
+
+                if (null == this.mCamera) {
+                    args.fail(new IllegalStateException("Failed to open camera " + this.mCameraId));
+                    return;
+                }
+
+                // The only round-trip of getParameters, the parameters are written through since then
+                final Camera.Parameters parameters = this.mCamera.getParameters();
+                this.mParameters = parameters;
+                this.mCapabilities = getCapabilities(this.mCameraId, parameters);
+
+                final int orientation = getCameraDisplayOrientation(args.context, this.mCapabilities);
+                if (Build.VERSION.SDK_INT < Build.VERSION_CODES.FROYO) {
+                    parameters.setRotation(orientation);
+                } else {
+                    this.mCamera.setDisplayOrientation(orientation);
+                }
+
+                parameters.setPreviewFormat(ImageFormat.NV21);
+                parameters.setPictureFormat(ImageFormat.JPEG);
+                final Camera.Size pictureSize = parameters.getPictureSize();
+                setCaptureParameters(parameters, new CameraCapabilities.Size(pictureSize.width, pictureSize.height));
+                this.mDefaultFpsRange = new int[2];
+                parameters.getPreviewFpsRange(this.mDefaultFpsRange);
+                setFrameRateParameters(parameters);
+
+                // Continuous focus needs no auto focus storm while the device is moving
+                final boolean continuous = Build.VERSION.SDK_INT >= Build.VERSION_CODES.ICE_CREAM_SANDWICH
+                        && this.mCapabilities.isFocusModeSupported(Camera.Parameters.FOCUS_MODE_CONTINUOUS_PICTURE);
+                if (continuous) {
+                    parameters.setFocusMode(Camera.Parameters.FOCUS_MODE_CONTINUOUS_PICTURE);
+                } else if (this.mCapabilities.isFocusModeSupported(Camera.Parameters.FOCUS_MODE_AUTO)) {
+                    parameters.setFocusMode(Camera.Parameters.FOCUS_MODE_AUTO);
+                }
+
+                this.mCamera.setParameters(parameters);
+                this.mCamera.setPreviewDisplay(args.holder);
+                this.mHolder = args.holder;
+                final Camera.Size previewSize = parameters.getPreviewSize();
+                this.mPreviewBufferPool.resize(previewSize.width, previewSize.height, ImageFormat.NV21);
+                setupPreviewCallback();
+                this.mCamera.startPreview();
+                args.device.countPreviewStart(false);
+                args.complete(this.mCapabilities);
+
+                if (!continuous) {
+                    this.mAutoFocusScheduler.request(DEFAULT_AUTO_FOCUS_CALLBACK);
+                }
+            } catch (final Exception e) {
+                Log.e(TAG, "Failed to start preview", e);
+                stopPreview();
+                args.fail(e);
+            }
+        }
+
+        /**
+         * Resumes the preview on the camera kept open with the new surface,
+         * the parameters are kept except the display orientation
+         */
+        private void resumePreview(final PreviewArguments args) {
+            getHandler().removeMessages(MSG_RELEASE_SUSPENDED);
+            this.mSuspended = false;
+            this.mDevice = args.device;
+
+            try {
+                final int orientation = getCameraDisplayOrientation(args.context, this.mCapabilities);
+                if (Build.VERSION.SDK_INT < Build.VERSION_CODES.FROYO) {
+                    this.mParameters.setRotation(orientation);
+                    applyParameters();
+                } else {
+                    this.mCamera.setDisplayOrientation(orientation);
+                }
+
+                this.mFirstPreviewFrameStart = args.device.getLatencyTracker().beginAsync(LatencyStage.FIRST_PREVIEW_FRAME);
+                this.mCamera.setPreviewDisplay(args.holder);
+                this.mHolder = args.holder;
+                setupPreviewCallback();
+                this.mCamera.startPreview();
+                args.device.countPreviewStart(true);
+                args.complete(this.mCapabilities);
+
+                if (!Camera.Parameters.FOCUS_MODE_CONTINUOUS_PICTURE.equals(this.mParameters.getFocusMode())) {
+                    this.mAutoFocusScheduler.request(DEFAULT_AUTO_FOCUS_CALLBACK);
+                }
+            } catch (final Exception e) {
+                Log.e(TAG, "Failed to resume preview", e);
+                stopPreview();
+                args.fail(e);
+            }
+        }
+
+        /**
+         * Stops the preview once the surface destroyed, the camera is kept
+         * open within the warm resume timeout unless it is busy
+         */
+        private void suspendPreview() {
+            if (this.mSuspended) {
+                return;
+            }
+
+            final CameraDevice device = this.mDevice;
+            final long timeout = null != device ? device.getWarmResumeTimeout() : 0;
+            if (timeout <= 0 || null == this.mCamera || this.mCapturing || null != this.mRecording) {
+                stopPreview();
+                return;
+            }
+
+            this.mAutoFocusScheduler.reset();
+
+            try {
+                this.mCamera.stopPreview();
+                // the buffer queue is cleared along with the callback, and refilled on resume
+                this.mCamera.setPreviewCallbackWithBuffer(null);
+                this.mQueuedPreviewBuffers = null;
+                this.mCamera.setPreviewDisplay(null);
+            } catch (final Exception e) {
+                Log.e(TAG, "Failed to suspend preview", e);
+                stopPreview();
+                return;
+            }
+
+            this.mHolder = null;
+            this.mFirstPreviewFrameStart = 0;
+            this.mSuspended = true;
+            if (null != device) {
+                device.getFrameRateMeter().reset();
+            }
+
+            final Handler handler = getHandler();
+            handler.removeMessages(MSG_RELEASE_SUSPENDED);
+            handler.sendEmptyMessageDelayed(MSG_RELEASE_SUSPENDED, timeout);
+        }
+
+        private void stopPreview() {
+            this.mAutoFocusScheduler.reset();
+            this.mSuspended = false;
+
+            final VideoRecording recording = this.mRecording;
+            if (null != recording) {
+                // The recorder must stop before the camera is released
+                this.mRecording = null;
+                final Future<?> stopped = VideoRecording.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        recording.stop();
+                    }
+                });
+
+                try {
+                    stopped.get();
+                } catch (final Exception e) {
+                    Log.e(TAG, "Failed to stop recording", e);
+                }
+
+                VideoRecording.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        recording.persist();
+                    }
+                });
+            }
+
+            final TakePictureArguments picture = this.mPendingPicture;
+            this.mPendingPicture = null;
+
+            if (null != this.mCamera) {
+                this.mCamera.release();
+                this.mCamera = null;
+                this.mParameters = null;
+                this.mCapabilities = null;
+                this.mQueuedPreviewBuffers = null;
+                this.mCameraId = -1;
+                this.mCapturing = false;
+                this.mCaptureProfilePending = false;
+                this.mDefaultFpsRange = null;
+                this.mFirstPreviewFrameStart = 0;
+                this.mHolder = null;
+            }
+
+            final CameraDevice device = this.mDevice;
+            if (null != device) {
+                device.getFrameRateMeter().reset();
+            }
+
+            if (null != picture) {
+                picture.fail();
+            }
+        }
+
+        private void configSurface(final ConfigArguments args) {
+            if (null == this.mCamera || null != this.mRecording) {
+                return;
+            }
+
+            final int width = args.width;
+            final int height = args.height;
+            final Camera.Parameters parameters = this.mParameters;
+            final CameraCapabilities.Size[] sizes = args.device.selectSizes(this.mCapabilities, args.isPortrait(), width, height);
+            final CameraCapabilities.Size previewSize = sizes[0];
+            final CameraCapabilities.Size pictureSize = sizes[1];
+            final Camera.Size currentPreviewSize = parameters.getPreviewSize();
+            final Camera.Size currentPictureSize = parameters.getPictureSize();
+            if (previewSize.width == currentPreviewSize.width && previewSize.height == currentPreviewSize.height
+                    && pictureSize.width == currentPictureSize.width && pictureSize.height == currentPictureSize.height) {
+                // nothing changed, e.g. rotation
+                return;
+            }
+
+            parameters.setPreviewSize(previewSize.width, previewSize.height);
+            Log.v(TAG, "Set preview size " + previewSize);
+            parameters.setPictureSize(pictureSize.width, pictureSize.height);
+            Log.v(TAG, "Set picture size " + pictureSize);
+            setCaptureParameters(parameters, pictureSize);
+            if (!applyParameters()) {
+                return;
+            }
+
+            if (this.mPreviewBufferPool.resize(previewSize.width, previewSize.height, ImageFormat.NV21)) {
+                setupPreviewCallback();
+            }
+        }
+
+        /**
+         * Ends timing the first preview frame once it is delivered
+         */
+        private void onFirstPreviewFrame() {
+            final CameraDevice device = this.mDevice;
+            if (0 != this.mFirstPreviewFrameStart && null != device) {
+                device.getLatencyTracker().endAsync(LatencyStage.FIRST_PREVIEW_FRAME, this.mFirstPreviewFrameStart);
+                this.mFirstPreviewFrameStart = 0;
             }
-            return true;
         }
 
-        private void sendMessage(final int what) {
-            this.mHandler.sendEmptyMessage(what);
-        }
+        /**
+         * Applies the current capture profile, it is deferred until the
+         * pending capture finished
+         */
+        private void applyCaptureProfile() {
+            if (null == this.mCamera) {
+                return;
+            }
 
-        private void sendMessage(final int what, final Object arg) {
-            this.mHandler.obtainMessage(what, arg).sendToTarget();
-        }
+            if (this.mCapturing) {
+                this.mCaptureProfilePending = true;
+                return;
+            }
 
-        private boolean hasMessages(final int what) {
-            return this.mHandler.hasMessages(what);
-        }
+            this.mCaptureProfilePending = false;
 
-        private void startPreview(final PreviewArguments args) {
-            final Configuration cfg = args.context.getResources().getConfiguration();
-            Log.v(TAG, "Display orientation " + cfg.orientation);
+            final Camera.Parameters parameters = this.mParameters;
+            final Camera.Size previewSize = parameters.getPreviewSize();
+            final CameraCapabilities.Size pictureSize = this.mDevice.selectPictureSize(this.mCapabilities, new CameraCapabilities.Size(previewSize.width, previewSize.height));
+            parameters.setPictureSize(pictureSize.width, pictureSize.height);
+            Log.v(TAG, "Set picture size " + pictureSize);
+            setCaptureParameters(parameters, pictureSize);
+            applyParameters();
+        }
 
-            final int cameraId = args.cameraId;
-            if (this.mCameraId == cameraId && null != this.mCamera) {
+        /**
+         * Applies the frame rate range of the current policy on the running
+         * preview, it is deferred until the recording stopped
+         */
+        private void applyFrameRatePolicy() {
+            if (null == this.mCamera || null != this.mRecording) {
                 return;
             }
 
-            // Check device policy
-            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.ICE_CREAM_SANDWICH) {
-                if (args.context instanceof Activity) {
-                    final DevicePolicyManager dpm = (DevicePolicyManager) args.context.getSystemService(Context.DEVICE_POLICY_SERVICE);
-                    if (dpm.getCameraDisabled(((Activity) args.context).getComponentName())) {
-                        Log.e(TAG, "Camera is disabled");
-                    }
-                }
+            if (setFrameRateParameters(this.mParameters) && applyParameters()) {
+                this.mDevice.getFrameRateMeter().reset();
             }
 
-            // Stop preview if camera is opened
-            stopPreview();
+            setupPreviewCallback();
+        }
 
-            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.GINGERBREAD) {
-                if (Camera.getNumberOfCameras() > cameraId) {
-                    this.mCameraId = cameraId;
-                } else {
-                    this.mCameraId = Camera.CameraInfo.CAMERA_FACING_BACK;
-                }
-            } else {
-                this.mCameraId = Camera.CameraInfo.CAMERA_FACING_BACK;
+        /**
+         * Sets the frame rate range of the current policy into the specified
+         * parameters, the default range is restored if there is no policy
+         *
+         * @return true if the range changed
+         */
+        private boolean setFrameRateParameters(final Camera.Parameters parameters) {
+            int[] range = this.mDevice.selectPreviewFpsRange(this.mCapabilities);
+            if (null == range) {
+                range = this.mDefaultFpsRange;
+            }
+
+            final int[] current = new int[2];
+            parameters.getPreviewFpsRange(current);
+            if (null == range || (range[0] == current[0] && range[1] == current[1])) {
+                return false;
+            }
+
+            parameters.setPreviewFpsRange(range[0], range[1]);
+            Log.v(TAG, "Set preview fps range [" + range[0] + ", " + range[1] + "]");
+            return true;
+        }
+
+        /**
+         * Sets the JPEG quality and thumbnail size of the current capture
+         * profile into the specified parameters
+         */
+        private void setCaptureParameters(final Camera.Parameters parameters, final CameraCapabilities.Size pictureSize) {
+            final CaptureProfile profile = this.mDevice.getCaptureProfile();
+            parameters.setJpegQuality(profile.jpegQuality);
+
+            final CameraCapabilities.Size thumbnailSize = profile.selectThumbnailSize(this.mCapabilities, pictureSize);
+            if (null != thumbnailSize) {
+                parameters.setJpegThumbnailSize(thumbnailSize.width, thumbnailSize.height);
             }
+        }
 
+        /**
+         * Writes the cached parameters through to the camera, the cache is
+         * synchronized with the camera if the parameters are rejected
+         *
+         * @return true if the parameters applied
+         */
+        private boolean applyParameters() {
             try {
-                this.mCamera = Camera.open(this.mCameraId);
-                if (null == this.mCamera) {
-                    return;
-                }
+                this.mCamera.setParameters(this.mParameters);
+                return true;
+            } catch (final RuntimeException e) {
+                Log.e(TAG, "Failed to set parameters", e);
+                this.mParameters = this.mCamera.getParameters();
+                return false;
+            }
+        }
 
-                final Camera.Parameters parameters = this.mCamera.getParameters();
-                final List<Camera.Size> previewSizes = parameters.getSupportedPreviewSizes();
-                final List<Camera.Size> pictureSizes = parameters.getSupportedPictureSizes();
+        private void setupPreviewCallback() {
+            if (null == this.mCamera) {
+                return;
+            }
 
-                for (final Camera.Size size : previewSizes) {
-                    Log.v(TAG, "Supported preview size: " + size.width + "x" + size.height);
-                }
+            // the frames are counted by the buffer callback to measure the achieved frame rate
+            final CameraDevice device = this.mDevice;
+            if (null == device || (!device.hasPreviewFrameCallbacks() && null == device.getFrameRatePolicy())) {
+                // the buffer queue is cleared along with the callback
+                this.mCamera.setPreviewCallbackWithBuffer(null);
+                this.mQueuedPreviewBuffers = null;
 
-                for (final Camera.Size size : pictureSizes) {
-                    Log.v(TAG, "Supported picture size: " + size.width + "x" + size.height);
+                if (0 != this.mFirstPreviewFrameStart) {
+                    this.mCamera.setOneShotPreviewCallback(this.mFirstPreviewFrameCallback);
                 }
+                return;
+            }
 
-                final int orientation = getCameraDisplayOrientation(args.context, this.mCameraId);
-                if (Build.VERSION.SDK_INT < Build.VERSION_CODES.FROYO) {
-                    parameters.setRotation(orientation);
-                } else {
-                    this.mCamera.setDisplayOrientation(orientation);
+            // Reuse a fixed set of buffers to avoid allocating a new buffer for every frame
+            final byte[][] buffers = this.mPreviewBufferPool.getBuffers();
+            if (buffers != this.mQueuedPreviewBuffers) {
+                for (final byte[] buffer : buffers) {
+                    this.mCamera.addCallbackBuffer(buffer);
                 }
+                this.mQueuedPreviewBuffers = buffers;
+            }
+            this.mCamera.setPreviewCallbackWithBuffer(this.mPreviewCallback);
+        }
 
-                parameters.setPictureFormat(ImageFormat.JPEG);
-                parameters.setJpegQuality(100);
+        private void takePicture(final TakePictureArguments args) {
+            if (null == this.mCamera || null == args.callback) {
+                this.mCapturing = false;
+                args.fail();
+                return;
+            }
 
-                if (parameters.getSupportedFocusModes().contains(Camera.Parameters.FOCUS_MODE_AUTO)) {
-                    parameters.setFocusMode(Camera.Parameters.FOCUS_MODE_AUTO);
+            final int orientation = this.mCapabilities.getOrientation();
+            final LatencyTracker tracker = args.device.getLatencyTracker();
+            final long shutterStart = tracker.beginAsync(LatencyStage.SHUTTER_TO_JPEG);
+
+            final ZeroShutterLagBuffer.Frame frame = args.device.acquireZeroShutterLagFrame(args.triggerTime);
+            if (null != frame) {
+                // The preview keeps running, the camera is ready at once
+                this.mCapturing = false;
+                if (this.mCaptureProfilePending) {
+                    applyCaptureProfile();
                 }
 
-                this.mCamera.setParameters(parameters);
-                this.mCamera.setPreviewDisplay(args.holder);
-                this.mCamera.startPreview();
-                this.mCamera.autoFocus(new Camera.AutoFocusCallback() {
+                this.mAutoFocusScheduler.schedule();
+                this.mPersister.persistFrame(args.device, args.context, frame, shutterStart, args.timestamp, orientation, args.callback);
+                return;
+            }
+
+            try {
+                this.mPendingPicture = args;
+                this.mCamera.takePicture(null, null, new Camera.PictureCallback() {
                     @Override
-                    public void onAutoFocus(final boolean success, final Camera camera) {
-                        Log.e(TAG, "Camera auto focus " + success);
+                    public void onPictureTaken(final byte[] data, final Camera camera) {
+                        // Failed already if the camera released before the picture delivered
+                        if (args != mPendingPicture) {
+                            return;
+                        }
+
+                        mPendingPicture = null;
+                        tracker.endAsync(LatencyStage.SHUTTER_TO_JPEG, shutterStart);
+                        final Camera.Size size = mParameters.getPictureSize();
+
+                        // Re-arm the camera before persisting the picture
+                        try {
+                            camera.startPreview();
+                        } catch (final RuntimeException e) {
+                            Log.e(TAG, "Failed to restart preview", e);
+                        } finally {
+                            mCapturing = false;
+                        }
+
+                        if (mCaptureProfilePending) {
+                            applyCaptureProfile();
+                        }
+
+                        mAutoFocusScheduler.schedule();
+
+                        if (args.callback instanceof OnPictureCapturedCallback) {
+                            ((OnPictureCapturedCallback) args.callback).onPictureCaptured(args.device, data);
+                        }
+
+                        mPersister.persist(args.device, args.context, data, args.timestamp, orientation, size.width, size.height, args.callback);
                     }
                 });
-            } catch (final Exception e) {
-                Log.e(TAG, "Failed to start preview", e);
-                stopPreview();
+            } catch (final RuntimeException e) {
+                Log.e(TAG, "Failed to take picture", e);
+                this.mPendingPicture = null;
+                this.mCapturing = false;
+
+                if (this.mCaptureProfilePending) {
+                    applyCaptureProfile();
+                }
+
+                this.mAutoFocusScheduler.schedule();
+                args.fail();
             }
         }
 
-        private void stopPreview() {
-            if (null != this.mCamera) {
-                this.mCamera.release();
-                this.mCamera = null;
-                this.mCameraId = -1;
-                this.mCapturing = false;
+        private void takeBurst(final BurstArguments args) {
+            if (null == this.mCamera) {
+                mCapturing = false;
+                return;
             }
+
+            setAutoExposureLock(true);
+
+            // Focus once for the whole burst
+            args.startTime = SystemClock.uptimeMillis();
+            this.mAutoFocusScheduler.focusNow(new OnAutoFocusCallback() {
+                @Override
+                public void onAutoFocus(final CameraDevice camera, final boolean success) {
+                    captureBurstFrame(args);
+                }
+            });
         }
 
-        private void configSurface(final ConfigArguments args) {
+        private void captureBurstFrame(final BurstArguments args) {
             if (null == this.mCamera) {
+                finishBurst(args);
                 return;
             }
 
-            final int width = args.width;
-            final int height = args.height;
-            final Camera.Parameters parameters = this.mCamera.getParameters();
-            final Camera.Size previewSize = determinePreviewSize(parameters, args.isPortrait(), width, height);
-            final Camera.Size pictureSize = determinePictureSize(parameters, previewSize);
-            parameters.setPreviewSize(previewSize.width, previewSize.height);
-            Log.v(TAG, "Set preview size " + previewSize.width + "x" + previewSize.height);
-            parameters.setPictureSize(pictureSize.width, pictureSize.height);
-            Log.v(TAG, "Set picture size " + pictureSize.width + "x" + pictureSize.height);
-            this.mCamera.setParameters(parameters);
-        }
+            final int orientation = this.mCapabilities.getOrientation();
+            final LatencyTracker tracker = args.device.getLatencyTracker();
+            args.lastShutterTime = SystemClock.uptimeMillis();
 
-        private void setAutoFocus(final AutoFocusArguments args) {
-            if (null != this.mCamera) {
-                this.mCamera.autoFocus(new Camera.AutoFocusCallback() {
+            try {
+                final long shutterStart = tracker.beginAsync(LatencyStage.SHUTTER_TO_JPEG);
+                this.mCamera.takePicture(null, null, new Camera.PictureCallback() {
                     @Override
-                    public void onAutoFocus(final boolean success, final Camera camera) {
-                        args.callback.onAutoFocus(args.device, success);
+                    public void onPictureTaken(final byte[] data, final Camera camera) {
+                        tracker.endAsync(LatencyStage.SHUTTER_TO_JPEG, shutterStart);
+                        final Camera.Size size = mParameters.getPictureSize();
+                        args.captured++;
+                        args.lastCaptureTime = SystemClock.uptimeMillis();
+
+                        try {
+                            camera.startPreview();
+                        } catch (final RuntimeException e) {
+                            Log.e(TAG, "Failed to restart preview", e);
+                            finishBurst(args);
+                            return;
+                        }
+
+                        // Persisting is pipelined with taking the next picture
+                        mPersister.persist(args.device, args.context, data, System.currentTimeMillis(), orientation, size.width, size.height, args);
+
+                        if (args.captured < args.count) {
+                            final Handler handler = getHandler();
+                            handler.sendMessageDelayed(handler.obtainMessage(MSG_BURST_NEXT, args), args.getNextDelay());
+                        } else {
+                            finishBurst(args);
+                        }
                     }
                 });
+            } catch (final RuntimeException e) {
+                Log.e(TAG, "Failed to take picture", e);
+                finishBurst(args);
             }
         }
 
-        private void takePicture(final TakePictureArguments args) {
-            if (null == this.mCamera) {
-                return;
+        private void finishBurst(final BurstArguments args) {
+            if (null != this.mCamera) {
+                this.mCamera.cancelAutoFocus();
+                setAutoExposureLock(false);
             }
 
-            if (null == args.callback) {
-                return;
+            this.mCapturing = false;
+
+            if (this.mCaptureProfilePending) {
+                applyCaptureProfile();
             }
 
-            if (null == this.mCamera) {
-                Log.e(TAG, "Preview not started");
+            this.mAutoFocusScheduler.schedule();
+
+            final float fps = args.getFramesPerSecond();
+            Log.v(TAG, "Burst " + args.captured + " pictures at " + fps + " fps");
+
+            // Runs after all pictures of the burst persisted
+            mPersister.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (null != args.callback) {
+                        args.callback.onBurstCompleted(args.device, args.captured, fps);
+                    }
+                }
+            });
+        }
+
+        private void startRecording(final RecordingArguments args) {
+            final VideoProfile profile = null == this.mCamera ? null : VideoProfile.select(this.mCameraId, this.mCapabilities);
+            if (null == profile) {
+                Log.e(TAG, "No video profile available");
+                this.mCapturing = false;
+                if (null != args.callback) {
+                    args.callback.onRecordingFinished(args.device, null);
+                }
                 return;
             }
 
-            final int cameraId = args.cameraId;
-            this.mCamera.takePicture(null, null, new Camera.PictureCallback() {
+            Log.v(TAG, "Record video " + profile);
+
+            final VideoRecording recording = new VideoRecording(args.device, args.context, args.device.getVideoRecorder(), profile, this.mCapabilities.getOrientation(), args.callback);
+            final Camera camera = this.mCamera;
+            final Surface surface = null == this.mHolder ? null : this.mHolder.getSurface();
+            this.mRecording = recording;
+
+            // The camera is owned by the recorder until it is reconnected
+            camera.unlock();
+            VideoRecording.execute(new Runnable() {
                 @Override
-                public void onPictureTaken(final byte[] data, final Camera camera) {
-                    try {
-                        final Camera.Parameters parameters = camera.getParameters();
-                        final Camera.Size size = parameters.getPictureSize();
-                        final int orientation = getCameraOrientation(cameraId);
-                        final String title = MediaStorage.generateFilename();
-                        final String path = MediaStorage.generatePicturePath(title + ".jpeg");
-                        MediaStorage.writeFile(path, data);
-                        final Uri uri = MediaStorage.addImage(args.context.getContentResolver(), title, new Date(args.timestamp), null, orientation, data.length, path, size.width, size.height);
-                        args.callback.onPictureTaken(args.device, uri);
-                    } finally {
-                        mCapturing = false;
+                public void run() {
+                    if (!recording.prepare(camera, surface) || !recording.start()) {
+                        sendMessage(MSG_RECORDING_STOPPED, recording);
                     }
                 }
             });
         }
 
-        private static int getCameraOrientation(final int cameraId) {
-            final Camera.CameraInfo info = new Camera.CameraInfo();
-            Camera.getCameraInfo(cameraId, info);
-            return info.orientation;
+        private void stopRecording() {
+            final VideoRecording recording = this.mRecording;
+            if (null == recording || recording.stopRequested) {
+                return;
+            }
+
+            recording.stopRequested = true;
+            VideoRecording.execute(new Runnable() {
+                @Override
+                public void run() {
+                    recording.stop();
+                    sendMessage(MSG_RECORDING_STOPPED, recording);
+                }
+            });
         }
 
-        private static int getCameraDisplayOrientation(final Context context, final int cameraId) {
-            final WindowManager wm = (WindowManager) context.getSystemService(Context.WINDOW_SERVICE);
-            final Display display = wm.getDefaultDisplay();
-            final int degrees = display.getRotation() * 90;
-            final Camera.CameraInfo info = new Camera.CameraInfo();
-            Camera.getCameraInfo(cameraId, info);
+        /**
+         * Takes the camera back from the recorder once it stopped or failed
+         */
+        private void onRecordingStopped(final VideoRecording recording) {
+            if (recording != this.mRecording) {
+                return;
+            }
 
-            if (info.facing == Camera.CameraInfo.CAMERA_FACING_FRONT) {
-                return (360 - ((info.orientation + degrees) % 360)) % 360;
-            } else {
-                return (info.orientation - degrees + 360) % 360;
+            this.mRecording = null;
+
+            if (null != this.mCamera) {
+                try {
+                    this.mCamera.reconnect();
+                    this.mCamera.startPreview();
+                } catch (final Exception e) {
+                    Log.e(TAG, "Failed to reconnect camera", e);
+                }
             }
-        }
 
-        private Camera.Size determinePreviewSize(final Camera.Parameters parameters, final boolean portrait, final int reqWidth, final int reqHeight) {
-            // Meaning of width and height is switched for preview when portrait,
-            // while it is the same as user's view for surface and metrics.
-            // That is, width must always be larger than height for setPreviewSize.
-            int reqPreviewWidth; // requested width in terms of camera hardware
-            int reqPreviewHeight; // requested height in terms of camera hardware
-            if (portrait) {
-                reqPreviewWidth = reqHeight;
-                reqPreviewHeight = reqWidth;
-            } else {
-                reqPreviewWidth = reqWidth;
-                reqPreviewHeight = reqHeight;
+            this.mCapturing = false;
+
+            if (this.mCaptureProfilePending) {
+                applyCaptureProfile();
             }
 
-            // Adjust surface size with the closest aspect-ratio
-            final float reqRatio = ((float) reqPreviewWidth) / reqPreviewHeight;
-            float curRatio, deltaRatio;
-            float deltaRatioMin = Float.MAX_VALUE;
-            Camera.Size retSize = null;
-            for (final Camera.Size size : parameters.getSupportedPreviewSizes()) {
-                curRatio = ((float) size.width) / size.height;
-                deltaRatio = Math.abs(reqRatio - curRatio);
-                if (deltaRatio < deltaRatioMin) {
-                    deltaRatioMin = deltaRatio;
-                    retSize = size;
+            // the policy changed while recording
+            applyFrameRatePolicy();
+
+            this.mAutoFocusScheduler.schedule();
+
+            VideoRecording.execute(new Runnable() {
+                @Override
+                public void run() {
+                    recording.stop();
+                    recording.persist();
                 }
+            });
+        }
+
+        private void setAutoExposureLock(final boolean lock) {
+            final CameraCapabilities capabilities = this.mCapabilities;
+            if (null == capabilities || Build.VERSION.SDK_INT < Build.VERSION_CODES.ICE_CREAM_SANDWICH) {
+                return;
             }
 
-            return retSize;
-        }
+            if (capabilities.isAutoExposureLockSupported()) {
+                this.mParameters.setAutoExposureLock(lock);
+            }
 
-        private Camera.Size determinePictureSize(final Camera.Parameters parameters, final Camera.Size previewSize) {
-            final List<Camera.Size> sizes = parameters.getSupportedPictureSizes();
-            for (final Camera.Size size : sizes) {
-                if (size.equals(previewSize)) {
-                    return size;
-                }
+            if (capabilities.isAutoWhiteBalanceLockSupported()) {
+                this.mParameters.setAutoWhiteBalanceLock(lock);
             }
 
-            Camera.Size retSize = null;
-            // if the preview size is not supported as a picture size
-            final float reqRatio = ((float) previewSize.width) / previewSize.height;
-            float curRatio, deltaRatio;
-            float deltaRatioMin = Float.MAX_VALUE;
-            for (final Camera.Size size : sizes) {
-                curRatio = ((float) size.width) / size.height;
-                deltaRatio = Math.abs(reqRatio - curRatio);
-                if (deltaRatio < deltaRatioMin) {
-                    deltaRatioMin = deltaRatio;
-                    retSize = size;
+            if (capabilities.isAutoExposureLockSupported() || capabilities.isAutoWhiteBalanceLockSupported()) {
+                applyParameters();
+            }
+        }
+
+        /**
+         * Returns the cached capabilities of the specified camera, the
+         * capabilities are computed from the specified parameters on first use
+         */
+        private static CameraCapabilities getCapabilities(final int cameraId, final Camera.Parameters parameters) {
+            synchronized (CAPABILITIES) {
+                CameraCapabilities capabilities = CAPABILITIES.get(cameraId);
+                if (null == capabilities) {
+                    final Camera.CameraInfo info = new Camera.CameraInfo();
+                    Camera.getCameraInfo(cameraId, info);
+                    capabilities = CameraCapabilities.from(cameraId, info, parameters);
+                    CAPABILITIES.put(cameraId, capabilities);
+                    Log.v(TAG, "Supported preview sizes: " + capabilities.getPreviewSizes());
+                    Log.v(TAG, "Supported picture sizes: " + capabilities.getPictureSizes());
                 }
+                return capabilities;
             }
+        }
+
+        private static int getCameraDisplayOrientation(final Context context, final CameraCapabilities capabilities) {
+            final WindowManager wm = (WindowManager) context.getSystemService(Context.WINDOW_SERVICE);
+            final Display display = wm.getDefaultDisplay();
+            final int degrees = display.getRotation() * 90;
 
-            return retSize;
+            if (capabilities.getFacing() == Camera.CameraInfo.CAMERA_FACING_FRONT) {
+                return (360 - ((capabilities.getOrientation() + degrees) % 360)) % 360;
+            } else {
+                return (capabilities.getOrientation() - degrees + 360) % 360;
+            }
         }
     }
 
-    private static abstract class BasicArguments {
+    static abstract class BasicArguments {
 
         final CameraDevice device;
         final Context context;
-        final long timestamp;
 
-        private BasicArguments(final CameraDevice device, final Context context) {
+        BasicArguments(final CameraDevice device, final Context context) {
             this.device = device;
             this.context = context;
-            this.timestamp = System.currentTimeMillis();
         }
 
         public boolean isPortrait() {
@@ -497,59 +2322,202 @@ public abstract class CameraDevice implements SurfaceHolder.Callback {
         }
     }
 
-    private static abstract class SurfaceArguments extends BasicArguments {
+    /**
+     * A latest-wins slot of two reusable arguments, callers write the pending
+     * one while the dispatch thread reads the other one, so that superseded
+     * requests are collapsed without allocating arguments
+     */
+    static final class ArgumentsSlot<T extends BasicArguments> {
+
+        private T mPending;
+        private T mActive;
+        private boolean mDirty;
+
+        ArgumentsSlot(final T pending, final T active) {
+            this.mPending = pending;
+            this.mActive = active;
+        }
+
+        /**
+         * Returns the pending arguments to overwrite, the caller must hold the
+         * lock of this slot until the arguments written
+         */
+        T edit() {
+            this.mDirty = true;
+            return this.mPending;
+        }
+
+        /**
+         * Takes the latest arguments on the dispatch thread, the returned
+         * arguments are valid until the next call of this method
+         *
+         * @return the latest arguments or null if they have been taken
+         */
+        synchronized T take() {
+            if (!this.mDirty) {
+                return null;
+            }
+
+            final T args = this.mPending;
+            this.mPending = this.mActive;
+            this.mActive = args;
+            this.mDirty = false;
+            return args;
+        }
+    }
+
+    static abstract class SurfaceArguments extends BasicArguments {
 
-        final SurfaceHolder holder;
+        SurfaceHolder holder;
 
-        protected SurfaceArguments(final CameraDevice device, final Context context, final SurfaceHolder holder) {
+        SurfaceArguments(final CameraDevice device, final Context context) {
             super(device, context);
-            this.holder = holder;
         }
     }
 
-    private static final class PreviewArguments extends SurfaceArguments {
+    static final class PreviewArguments extends SurfaceArguments {
 
-        final int cameraId;
+        int cameraId;
+        CameraFuture<CameraCapabilities> future;
+
+        PreviewArguments(final CameraDevice device, final Context context) {
+            super(device, context);
+        }
 
-        private PreviewArguments(final CameraDevice device, final Context context, final SurfaceHolder holder, final int cameraId) {
-            super(device, context, holder);
+        void set(final SurfaceHolder holder, final int cameraId, final CameraFuture<CameraCapabilities> future) {
+            this.holder = holder;
             this.cameraId = cameraId;
+
+            // A request without future keeps the pending one, which is then
+            // completed by this request
+            if (null != future) {
+                if (null != this.future) {
+                    this.future.cancel(false);
+                }
+                this.future = future;
+            }
+        }
+
+        void complete(final CameraCapabilities capabilities) {
+            if (null != this.future) {
+                this.future.complete(capabilities);
+            }
+        }
+
+        void fail(final Throwable cause) {
+            if (null != this.future) {
+                this.future.fail(cause);
+            }
         }
     }
 
-    private static class ConfigArguments extends SurfaceArguments {
+    static class ConfigArguments extends SurfaceArguments {
+
+        int width;
+        int height;
+        int format;
 
-        final int width;
-        final int height;
-        final int format;
+        ConfigArguments(final CameraDevice device, final Context context) {
+            super(device, context);
+        }
 
-        private ConfigArguments(final CameraDevice device, final Context context, final SurfaceHolder holder, int format, int width, int height) {
-            super(device, context, holder);
+        void set(final SurfaceHolder holder, final int format, final int width, final int height) {
+            this.holder = holder;
             this.width = width;
             this.height = height;
             this.format = format;
         }
     }
 
-    private static final class AutoFocusArguments extends BasicArguments {
+    static final class BurstArguments extends BasicArguments implements OnPictureTakenCallback {
+
+        final int count;
+        final long interval;
+        final OnBurstCallback callback;
+
+        /**
+         * The number of pictures captured, accessed on the camera thread only
+         */
+        int captured;
+
+        /**
+         * The number of pictures persisted, accessed on the persisting thread only
+         */
+        int persisted;
+
+        long startTime;
+        long lastShutterTime;
+        long lastCaptureTime;
+
+        BurstArguments(final CameraDevice device, final Context context, final int count, final long interval, final OnBurstCallback callback) {
+            super(device, context);
+            this.count = count;
+            this.interval = interval;
+            this.callback = callback;
+        }
+
+        /**
+         * Returns the delay in milliseconds before the next picture
+         */
+        long getNextDelay() {
+            return Math.max(0, this.interval - (SystemClock.uptimeMillis() - this.lastShutterTime));
+        }
+
+        /**
+         * Returns the frames per second sustained by the captured pictures
+         */
+        float getFramesPerSecond() {
+            final long elapsed = this.lastCaptureTime - this.startTime;
+            return elapsed > 0 ? this.captured * 1000f / elapsed : 0f;
+        }
+
+        @Override
+        public void onPictureTaken(final CameraDevice camera, final Uri uri) {
+            if (null != this.callback) {
+                this.callback.onBurstFrame(camera, this.persisted++, uri);
+            }
+        }
+    }
+
+    static final class RecordingArguments extends BasicArguments {
 
-        final OnAutoFocusCallback callback;
+        final OnRecordingCallback callback;
 
-        private AutoFocusArguments(final CameraDevice device, final Context context, final OnAutoFocusCallback callback) {
+        RecordingArguments(final CameraDevice device, final Context context, final OnRecordingCallback callback) {
             super(device, context);
             this.callback = callback;
         }
     }
 
-    private static final class TakePictureArguments extends BasicArguments {
+    static final class TakePictureArguments extends BasicArguments {
 
         final int cameraId;
         final OnPictureTakenCallback callback;
+        final long timestamp;
+        final long triggerTime;
 
-        public TakePictureArguments(final CameraDevice device, final Context context, final int cameraId, final OnPictureTakenCallback callback) {
+        TakePictureArguments(final CameraDevice device, final Context context, final int cameraId, final OnPictureTakenCallback callback) {
             super(device, context);
             this.cameraId = cameraId;
             this.callback = callback;
+            this.timestamp = System.currentTimeMillis();
+            this.triggerTime = SystemClock.uptimeMillis();
+        }
+
+        /**
+         * Reports the picture failed, so that the caller never waits for a
+         * picture which will not be taken
+         */
+        void fail() {
+            if (null == this.callback) {
+                return;
+            }
+
+            try {
+                this.callback.onPictureTaken(this.device, null);
+            } catch (final Throwable t) {
+                Log.e(TAG, "Failed to deliver picture failure", t);
+            }
         }
     }
 
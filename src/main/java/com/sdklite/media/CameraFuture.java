@@ -0,0 +1,324 @@
+package com.sdklite.media;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The completion handle of an asynchronous camera operation, it completes
+ * once the operation has really finished on the camera, with either a result
+ * or the cause of the failure
+ *
+ * <pre>
+ * camera.startPreviewAsync(holder, 0).setTimeout(3, TimeUnit.SECONDS).addListener(new CameraFuture.Listener&lt;CameraCapabilities&gt;() {
+ *     &#64;Override
+ *     public void onComplete(final CameraFuture&lt;CameraCapabilities&gt; future) {
+ *         if (future.isSuccessful()) {
+ *             camera.autoFocusAsync();
+ *         }
+ *     }
+ * }, executor);
+ * </pre>
+ *
+ * <p>
+ * Cancelling or timing out completes the handle only, the operation which has
+ * been dispatched to the camera is not aborted.
+ * </p>
+ *
+ * @param <V>
+ *            The type of the result
+ */
+public final class CameraFuture<V> implements Future<V> {
+
+    private static final String TAG = "CameraFuture";
+
+    /**
+     * Listener to be notified once the future completed
+     *
+     * @param <V>
+     *            The type of the result
+     */
+    public interface Listener<V> {
+        /**
+         * Called when the future completed, successfully or not
+         *
+         * @param future
+         *            The completed future
+         */
+        void onComplete(final CameraFuture<V> future);
+    }
+
+    private static final int STATE_PENDING = 0;
+    private static final int STATE_SUCCEEDED = 1;
+    private static final int STATE_FAILED = 2;
+    private static final int STATE_CANCELLED = 3;
+
+    private static Handler sTimeoutHandler;
+
+    private int mState = STATE_PENDING;
+    private V mValue;
+    private Throwable mCause;
+    private List<Listener<V>> mListeners;
+    private List<Executor> mExecutors;
+    private Runnable mTimeout;
+
+    CameraFuture() {
+    }
+
+    /**
+     * Returns a future failed with the specified cause
+     */
+    static <V> CameraFuture<V> failed(final Throwable cause) {
+        final CameraFuture<V> future = new CameraFuture<V>();
+        future.fail(cause);
+        return future;
+    }
+
+    /**
+     * Adds a listener to be notified once completed, the listener is notified
+     * immediately if already completed
+     *
+     * @param listener
+     *            The listener
+     * @param executor
+     *            The executor to notify the listener on, or null to notify on
+     *            the completing thread
+     * @return this future
+     */
+    public CameraFuture<V> addListener(final Listener<V> listener, final Executor executor) {
+        if (null == listener) {
+            throw new NullPointerException("listener is null");
+        }
+
+        synchronized (this) {
+            if (STATE_PENDING == this.mState) {
+                if (null == this.mListeners) {
+                    this.mListeners = new ArrayList<Listener<V>>(2);
+                    this.mExecutors = new ArrayList<Executor>(2);
+                }
+
+                this.mListeners.add(listener);
+                this.mExecutors.add(executor);
+                return this;
+            }
+        }
+
+        dispatch(listener, executor);
+        return this;
+    }
+
+    /**
+     * Fails this future with a {@link TimeoutException} if it does not
+     * complete within the specified time
+     *
+     * @param timeout
+     *            The time to wait
+     * @param unit
+     *            The unit of timeout
+     * @return this future
+     */
+    public CameraFuture<V> setTimeout(final long timeout, final TimeUnit unit) {
+        final Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                fail(new TimeoutException("Timed out after " + unit.toMillis(timeout) + "ms"));
+            }
+        };
+
+        synchronized (this) {
+            if (STATE_PENDING != this.mState) {
+                return this;
+            }
+
+            if (null != this.mTimeout) {
+                getTimeoutHandler().removeCallbacks(this.mTimeout);
+            }
+
+            this.mTimeout = task;
+        }
+
+        getTimeoutHandler().postDelayed(task, unit.toMillis(timeout));
+        return this;
+    }
+
+    @Override
+    public boolean cancel(final boolean mayInterruptIfRunning) {
+        return setResult(STATE_CANCELLED, null, new CancellationException("Cancelled"));
+    }
+
+    @Override
+    public synchronized boolean isCancelled() {
+        return STATE_CANCELLED == this.mState;
+    }
+
+    @Override
+    public synchronized boolean isDone() {
+        return STATE_PENDING != this.mState;
+    }
+
+    /**
+     * Returns whether the operation completed successfully
+     */
+    public synchronized boolean isSuccessful() {
+        return STATE_SUCCEEDED == this.mState;
+    }
+
+    /**
+     * Returns the cause of the failure, or null if not failed
+     */
+    public synchronized Throwable getCause() {
+        return this.mCause;
+    }
+
+    @Override
+    public synchronized V get() throws InterruptedException, ExecutionException {
+        while (STATE_PENDING == this.mState) {
+            wait();
+        }
+
+        return getResult();
+    }
+
+    @Override
+    public synchronized V get(final long timeout, final TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+
+        while (STATE_PENDING == this.mState) {
+            final long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                throw new TimeoutException();
+            }
+
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+
+        return getResult();
+    }
+
+    /**
+     * Completes this future with the specified result
+     *
+     * @return false if already completed
+     */
+    boolean complete(final V value) {
+        return setResult(STATE_SUCCEEDED, value, null);
+    }
+
+    /**
+     * Completes this future with the specified failure
+     *
+     * @return false if already completed
+     */
+    boolean fail(final Throwable cause) {
+        return setResult(STATE_FAILED, null, cause);
+    }
+
+    /**
+     * Completes this future along with the specified one, e.g. the request
+     * joins the operation in progress
+     */
+    void follow(final CameraFuture<V> source) {
+        if (source == this) {
+            return;
+        }
+
+        source.addListener(new Listener<V>() {
+            @Override
+            public void onComplete(final CameraFuture<V> future) {
+                final int state;
+                final V value;
+                final Throwable cause;
+
+                synchronized (future) {
+                    state = future.mState;
+                    value = future.mValue;
+                    cause = future.mCause;
+                }
+
+                setResult(state, value, cause);
+            }
+        }, null);
+    }
+
+    private V getResult() throws ExecutionException {
+        switch (this.mState) {
+            case STATE_SUCCEEDED:
+                return this.mValue;
+            case STATE_CANCELLED:
+                throw (CancellationException) this.mCause;
+            default:
+                throw new ExecutionException(this.mCause);
+        }
+    }
+
+    private boolean setResult(final int state, final V value, final Throwable cause) {
+        final List<Listener<V>> listeners;
+        final List<Executor> executors;
+
+        synchronized (this) {
+            if (STATE_PENDING != this.mState) {
+                return false;
+            }
+
+            this.mState = state;
+            this.mValue = value;
+            this.mCause = cause;
+            listeners = this.mListeners;
+            executors = this.mExecutors;
+            this.mListeners = null;
+            this.mExecutors = null;
+
+            if (null != this.mTimeout) {
+                getTimeoutHandler().removeCallbacks(this.mTimeout);
+                this.mTimeout = null;
+            }
+
+            notifyAll();
+        }
+
+        if (null != listeners) {
+            for (int i = 0; i < listeners.size(); i++) {
+                dispatch(listeners.get(i), executors.get(i));
+            }
+        }
+
+        return true;
+    }
+
+    private void dispatch(final Listener<V> listener, final Executor executor) {
+        final Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    listener.onComplete(CameraFuture.this);
+                } catch (final Throwable t) {
+                    Log.e(TAG, "Failed to notify listener", t);
+                }
+            }
+        };
+
+        if (null == executor) {
+            task.run();
+        } else {
+            executor.execute(task);
+        }
+    }
+
+    private static synchronized Handler getTimeoutHandler() {
+        if (null == sTimeoutHandler) {
+            sTimeoutHandler = new Handler(Looper.getMainLooper());
+        }
+
+        return sTimeoutHandler;
+    }
+
+}
@@ -0,0 +1,216 @@
+package com.sdklite.media;
+
+import android.content.Context;
+import android.graphics.ImageFormat;
+import android.graphics.Rect;
+import android.graphics.YuvImage;
+import android.location.Location;
+import android.net.Uri;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Date;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Persists the captured pictures on a dedicated thread, so that the camera
+ * can be re-armed without waiting for the file write and the media store insert
+ */
+final class CapturePersister {
+
+    private static final String TAG = "CapturePersister";
+
+    private static final ThreadFactory THREAD_FACTORY = new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable r) {
+            return new Thread(r, "CapturePersister");
+        }
+    };
+
+    private ExecutorService mExecutor;
+
+    /**
+     * Persists the specified JPEG data asynchronously, the
+     * {@link CameraDevice.OnPictureTakenCallback#onPictureTaken(CameraDevice, Uri)}
+     * is called on the persisting thread once persisted
+     *
+     * @param device
+     *            The camera device
+     * @param context
+     *            The context
+     * @param data
+     *            The JPEG data
+     * @param timestamp
+     *            The time in milliseconds when picture taken
+     * @param orientation
+     *            The orientation of picture
+     * @param width
+     *            The picture width in pixel
+     * @param height
+     *            The picture height in pixel
+     * @param callback
+     *            The callback to receive the picture uri
+     */
+    void persist(final CameraDevice device, final Context context, final byte[] data, final long timestamp, final int orientation, final int width, final int height, final CameraDevice.OnPictureTakenCallback callback) {
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                persistNow(device, context, data, timestamp, orientation, width, height, callback);
+            }
+        });
+    }
+
+    /**
+     * Encodes the specified NV21 frame into JPEG and persists it
+     * asynchronously, the frame is released once encoded, and then the
+     * callback is called on the persisting thread like
+     * {@link #persist(CameraDevice, Context, byte[], long, int, int, int, CameraDevice.OnPictureTakenCallback)}
+     *
+     * @param device
+     *            The camera device
+     * @param context
+     *            The context
+     * @param frame
+     *            The frame acquired from the zero shutter lag buffer
+     * @param shutterStart
+     *            The start time of {@link LatencyStage#SHUTTER_TO_JPEG}
+     * @param timestamp
+     *            The time in milliseconds when picture taken
+     * @param orientation
+     *            The orientation of picture
+     * @param callback
+     *            The callback to receive the picture uri
+     */
+    void persistFrame(final CameraDevice device, final Context context, final ZeroShutterLagBuffer.Frame frame, final long shutterStart, final long timestamp, final int orientation, final CameraDevice.OnPictureTakenCallback callback) {
+        final int quality = device.getCaptureProfile().jpegQuality;
+
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                final byte[] data;
+
+                try {
+                    final ByteArrayOutputStream out = new ByteArrayOutputStream(frame.data.length / 4);
+                    new YuvImage(frame.data, ImageFormat.NV21, frame.width, frame.height, null).compressToJpeg(new Rect(0, 0, frame.width, frame.height), quality, out);
+                    data = out.toByteArray();
+                } catch (final Throwable t) {
+                    Log.e(TAG, "Failed to encode frame", t);
+                    if (null != callback) {
+                        callback.onPictureTaken(device, null);
+                    }
+                    return;
+                } finally {
+                    frame.release();
+                    device.getLatencyTracker().endAsync(LatencyStage.SHUTTER_TO_JPEG, shutterStart);
+                }
+
+                if (callback instanceof CameraDevice.OnPictureCapturedCallback) {
+                    ((CameraDevice.OnPictureCapturedCallback) callback).onPictureCaptured(device, data);
+                }
+
+                persistNow(device, context, data, timestamp, orientation, frame.width, frame.height, callback);
+            }
+        });
+    }
+
+    private void persistNow(final CameraDevice device, final Context context, final byte[] data, final long timestamp, final int orientation, final int width, final int height, final CameraDevice.OnPictureTakenCallback callback) {
+        Uri uri = null;
+
+        try {
+            final LatencyTracker tracker = device.getLatencyTracker();
+            final CaptureProfile profile = device.getCaptureProfile();
+            final CaptureThumbnail thumbnail = createThumbnail(device, data, profile, callback);
+            final Location location = device.getLocation();
+            final String title = MediaStorage.generateFilename();
+            final String path = MediaStorage.generatePicturePath(title + ".jpeg");
+
+            // Embed the orientation, so that consumers need not look it up in the media store
+            final byte[] jpeg = ExifWriter.write(data, orientation, timestamp, width, height, location);
+
+            final boolean written;
+            final long writeStart = tracker.begin(LatencyStage.WRITE_FILE);
+            try {
+                written = MediaStorage.writeFile(path, jpeg);
+            } finally {
+                tracker.end(LatencyStage.WRITE_FILE, writeStart);
+            }
+
+            // Never insert a picture which is not completely written, the uri is null then
+            if (written) {
+                final long addStart = tracker.begin(LatencyStage.ADD_IMAGE);
+                try {
+                    uri = MediaStorage.addImage(context.getContentResolver(), title, new Date(timestamp), location, orientation, jpeg.length, path, width, height);
+                } finally {
+                    tracker.end(LatencyStage.ADD_IMAGE, addStart);
+                }
+
+                MediaStorage.getStorageQuota().onCaptureAdded(uri, path, jpeg.length, timestamp);
+            }
+
+            if (null != uri && null != thumbnail) {
+                final String thumbnailPath = MediaStorage.generateThumbnailPath(title + ".jpg");
+                if (thumbnail.write(thumbnailPath, profile.jpegQuality)) {
+                    MediaStorage.addThumbnail(context.getContentResolver(), uri, thumbnailPath, thumbnail.bitmap.getWidth(), thumbnail.bitmap.getHeight());
+                }
+            }
+        } catch (final Throwable t) {
+            Log.e(TAG, "Failed to persist picture", t);
+        }
+
+        if (null != callback) {
+            callback.onPictureTaken(device, uri);
+        }
+    }
+
+    /**
+     * Creates the thumbnail from the JPEG data in memory, and delivers it to
+     * the callback if it asks for the thumbnail
+     */
+    private static CaptureThumbnail createThumbnail(final CameraDevice device, final byte[] data, final CaptureProfile profile, final CameraDevice.OnPictureTakenCallback callback) {
+        final CaptureThumbnail thumbnail;
+
+        try {
+            thumbnail = CaptureThumbnail.create(data, profile.thumbnailWidth, profile.thumbnailHeight);
+        } catch (final Throwable t) {
+            Log.e(TAG, "Failed to create thumbnail", t);
+            return null;
+        }
+
+        if (null != thumbnail && callback instanceof CameraDevice.OnPictureThumbnailCallback) {
+            try {
+                ((CameraDevice.OnPictureThumbnailCallback) callback).onThumbnailCreated(device, thumbnail.bitmap);
+            } catch (final Throwable t) {
+                Log.e(TAG, "Failed to deliver thumbnail", t);
+            }
+        }
+
+        return thumbnail;
+    }
+
+    /**
+     * Executes the specified task on the persisting thread
+     *
+     * @param task
+     *            The task to execute
+     */
+    synchronized void execute(final Runnable task) {
+        if (null == this.mExecutor) {
+            this.mExecutor = Executors.newSingleThreadExecutor(THREAD_FACTORY);
+        }
+
+        this.mExecutor.execute(task);
+    }
+
+    /**
+     * Shuts down the persisting thread after the pending pictures persisted
+     */
+    synchronized void shutdown() {
+        if (null != this.mExecutor) {
+            this.mExecutor.shutdown();
+            this.mExecutor = null;
+        }
+    }
+
+}
@@ -0,0 +1,98 @@
+package com.sdklite.media;
+
+import java.util.List;
+
+/**
+ * Defines an enumeration for capture profiles, which set JPEG quality,
+ * picture size cap and thumbnail size together
+ */
+public enum CaptureProfile {
+
+    /**
+     * Small files for the shortest capture latency
+     */
+    FAST(70, 3.2f, 160, 120),
+
+    /**
+     * The balance between file size and image quality
+     */
+    BALANCED(85, 8.0f, 320, 240),
+
+    /**
+     * The best image quality with the largest picture size
+     */
+    ARCHIVAL(95, 0f, 512, 384);
+
+    /**
+     * The JPEG quality in range [1, 100]
+     */
+    public final int jpegQuality;
+
+    /**
+     * The maximum megapixels of picture, 0 means unlimited
+     */
+    public final float maxPictureMegapixels;
+
+    /**
+     * The maximum width of thumbnail embedded in JPEG
+     */
+    public final int thumbnailWidth;
+
+    /**
+     * The maximum height of thumbnail embedded in JPEG
+     */
+    public final int thumbnailHeight;
+
+    /**
+     * The megapixels assumed for the uncapped picture size
+     */
+    private static final float UNCAPPED_PICTURE_MEGAPIXELS = 16f;
+
+    CaptureProfile(final int jpegQuality, final float maxPictureMegapixels, final int thumbnailWidth, final int thumbnailHeight) {
+        this.jpegQuality = jpegQuality;
+        this.maxPictureMegapixels = maxPictureMegapixels;
+        this.thumbnailWidth = thumbnailWidth;
+        this.thumbnailHeight = thumbnailHeight;
+    }
+
+    /**
+     * Estimates the JPEG size in bytes of a picture taken with this profile,
+     * it errs on the large side, about half a byte per pixel at quality 100
+     */
+    long estimatePictureBytes() {
+        final float megapixels = this.maxPictureMegapixels > 0 ? this.maxPictureMegapixels : UNCAPPED_PICTURE_MEGAPIXELS;
+        return Math.max(1, (long) (megapixels * 1000000 * this.jpegQuality / 200));
+    }
+
+    /**
+     * Selects the largest supported thumbnail size within this profile which
+     * has the closest aspect ratio to the specified picture size
+     *
+     * @param capabilities
+     *            The camera capabilities
+     * @param pictureSize
+     *            The picture size
+     * @return the thumbnail size or null if no thumbnail size supported
+     */
+    CameraCapabilities.Size selectThumbnailSize(final CameraCapabilities capabilities, final CameraCapabilities.Size pictureSize) {
+        final List<CameraCapabilities.Size> sizes = capabilities.getThumbnailSizes();
+        final float reqRatio = ((float) pictureSize.width) / pictureSize.height;
+        float deltaRatioMin = Float.MAX_VALUE;
+        CameraCapabilities.Size retSize = null;
+
+        for (final CameraCapabilities.Size size : sizes) {
+            if (size.width <= 0 || size.height <= 0 || size.width > this.thumbnailWidth || size.height > this.thumbnailHeight) {
+                continue;
+            }
+
+            final float deltaRatio = Math.abs(reqRatio - ((float) size.width) / size.height);
+            if (deltaRatio < deltaRatioMin || (deltaRatio == deltaRatioMin && size.getPixels() > retSize.getPixels())) {
+                deltaRatioMin = deltaRatio;
+                retSize = size;
+            }
+        }
+
+        return retSize;
+    }
+
+}
@@ -0,0 +1,186 @@
+package com.sdklite.media;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * The thumbnail of a captured picture, it is created from the JPEG data in
+ * memory, the embedded EXIF thumbnail is preferred, otherwise the picture is
+ * decoded with subsampling
+ */
+final class CaptureThumbnail {
+
+    private static final String TAG = "CaptureThumbnail";
+
+    private static final int MARKER_SOI = 0xd8;
+    private static final int MARKER_SOS = 0xda;
+    private static final int MARKER_APP1 = 0xe1;
+
+    private static final int TAG_JPEG_INTERCHANGE_FORMAT = 0x0201;
+    private static final int TAG_JPEG_INTERCHANGE_FORMAT_LENGTH = 0x0202;
+
+    final Bitmap bitmap;
+
+    /**
+     * The embedded JPEG thumbnail, or null if the thumbnail is decoded from
+     * the picture
+     */
+    private final byte[] mData;
+    private final int mOffset;
+    private final int mLength;
+
+    private CaptureThumbnail(final Bitmap bitmap, final byte[] data, final int offset, final int length) {
+        this.bitmap = bitmap;
+        this.mData = data;
+        this.mOffset = offset;
+        this.mLength = length;
+    }
+
+    /**
+     * Creates a thumbnail of the specified JPEG data
+     *
+     * @param jpeg
+     *            The JPEG data of the picture
+     * @param width
+     *            The requested thumbnail width
+     * @param height
+     *            The requested thumbnail height
+     * @return the thumbnail or null if the picture can not be decoded
+     */
+    static CaptureThumbnail create(final byte[] jpeg, final int width, final int height) {
+        final int[] range = findExifThumbnail(jpeg);
+        if (null != range) {
+            final Bitmap bitmap = BitmapFactory.decodeByteArray(jpeg, range[0], range[1]);
+            if (null != bitmap) {
+                return new CaptureThumbnail(bitmap, jpeg, range[0], range[1]);
+            }
+        }
+
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(jpeg, 0, jpeg.length, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return null;
+        }
+
+        // The largest power of 2 which keeps the thumbnail no smaller than requested
+        int sampleSize = 1;
+        while (options.outWidth / (sampleSize * 2) >= width && options.outHeight / (sampleSize * 2) >= height) {
+            sampleSize *= 2;
+        }
+
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = sampleSize;
+        final Bitmap bitmap = BitmapFactory.decodeByteArray(jpeg, 0, jpeg.length, options);
+        if (null == bitmap) {
+            return null;
+        }
+
+        return new CaptureThumbnail(bitmap, null, 0, 0);
+    }
+
+    /**
+     * Writes the thumbnail in JPEG into the specified path, the embedded
+     * thumbnail is written as is
+     *
+     * @param path
+     *            The file path
+     * @param quality
+     *            The JPEG quality used if the thumbnail is decoded
+     * @return true if written
+     */
+    boolean write(final String path, final int quality) {
+        final byte[] data;
+
+        if (null != this.mData) {
+            data = new byte[this.mLength];
+            System.arraycopy(this.mData, this.mOffset, data, 0, this.mLength);
+        } else {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            this.bitmap.compress(Bitmap.CompressFormat.JPEG, quality, out);
+            data = out.toByteArray();
+        }
+
+        return MediaStorage.writeFile(path, data, MediaStorage.Durability.NONE);
+    }
+
+    /**
+     * Finds the JPEG thumbnail in IFD1 of the EXIF segment
+     *
+     * @return the offset and length of the thumbnail or null if not found
+     */
+    static int[] findExifThumbnail(final byte[] jpeg) {
+        try {
+            if (jpeg.length < 4 || (jpeg[0] & 0xff) != 0xff || (jpeg[1] & 0xff) != MARKER_SOI) {
+                return null;
+            }
+
+            int pos = 2;
+            while (pos + 4 <= jpeg.length && (jpeg[pos] & 0xff) == 0xff) {
+                final int marker = jpeg[pos + 1] & 0xff;
+                final int length = readShort(jpeg, pos + 2, false);
+                if (marker == MARKER_SOS) {
+                    return null;
+                }
+
+                if (marker == MARKER_APP1 && length >= 8 && pos + 10 <= jpeg.length
+                        && 'E' == jpeg[pos + 4] && 'x' == jpeg[pos + 5] && 'i' == jpeg[pos + 6] && 'f' == jpeg[pos + 7]) {
+                    return findIfd1Thumbnail(jpeg, pos + 10, pos + 2 + length);
+                }
+
+                pos += 2 + length;
+            }
+        } catch (final ArrayIndexOutOfBoundsException e) {
+            Log.w(TAG, "Malformed EXIF segment");
+        }
+
+        return null;
+    }
+
+    private static int[] findIfd1Thumbnail(final byte[] jpeg, final int tiff, final int end) {
+        final boolean littleEndian = 'I' == jpeg[tiff] && 'I' == jpeg[tiff + 1];
+        final int ifd0 = tiff + readInt(jpeg, tiff + 4, littleEndian);
+        final int entries0 = readShort(jpeg, ifd0, littleEndian);
+        final int next = readInt(jpeg, ifd0 + 2 + entries0 * 12, littleEndian);
+        if (0 == next) {
+            return null;
+        }
+
+        final int ifd1 = tiff + next;
+        final int entries1 = readShort(jpeg, ifd1, littleEndian);
+        int offset = -1;
+        int length = -1;
+
+        for (int i = 0; i < entries1; i++) {
+            final int entry = ifd1 + 2 + i * 12;
+            final int tag = readShort(jpeg, entry, littleEndian);
+            if (TAG_JPEG_INTERCHANGE_FORMAT == tag) {
+                offset = readInt(jpeg, entry + 8, littleEndian);
+            } else if (TAG_JPEG_INTERCHANGE_FORMAT_LENGTH == tag) {
+                length = readInt(jpeg, entry + 8, littleEndian);
+            }
+        }
+
+        if (offset <= 0 || length <= 0 || tiff + offset + length > end) {
+            return null;
+        }
+
+        return new int[] { tiff + offset, length };
+    }
+
+    static int readShort(final byte[] data, final int pos, final boolean littleEndian) {
+        final int b0 = data[pos] & 0xff;
+        final int b1 = data[pos + 1] & 0xff;
+        return littleEndian ? (b1 << 8) | b0 : (b0 << 8) | b1;
+    }
+
+    static int readInt(final byte[] data, final int pos, final boolean littleEndian) {
+        final int s0 = readShort(data, pos, littleEndian);
+        final int s1 = readShort(data, pos + 2, littleEndian);
+        return littleEndian ? (s1 << 16) | s0 : (s0 << 16) | s1;
+    }
+
+}
@@ -0,0 +1,523 @@
+package com.sdklite.media;
+
+import android.location.Location;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * Writes the EXIF metadata into the JPEG data without re-encoding, the APP1
+ * segment is injected after SOI and APP0, or the existing one is replaced
+ * with a patched copy which keeps the original tags and the embedded thumbnail
+ *
+ * <p>
+ * The maker note and the other tags which point into the original segment,
+ * e.g. SubIFDs and PrintIM, are dropped as their offsets can not be relocated.
+ * </p>
+ */
+final class ExifWriter {
+
+    private static final String TAG = "ExifWriter";
+
+    private static final int MARKER_SOI = 0xd8;
+    private static final int MARKER_SOS = 0xda;
+    private static final int MARKER_APP0 = 0xe0;
+    private static final int MARKER_APP1 = 0xe1;
+
+    private static final int MAX_SEGMENT_LENGTH = 0xffff;
+
+    private static final int TYPE_BYTE = 1;
+    private static final int TYPE_ASCII = 2;
+    private static final int TYPE_SHORT = 3;
+    private static final int TYPE_LONG = 4;
+    private static final int TYPE_RATIONAL = 5;
+
+    /**
+     * The unit size in bytes of each type, the multi-byte units are swapped
+     * when converting the byte order
+     */
+    private static final int[] TYPE_UNITS = { 0, 1, 1, 2, 4, 4, 1, 1, 2, 4, 4, 4, 8 };
+
+    /**
+     * The component size in bytes of each type
+     */
+    private static final int[] TYPE_SIZES = { 0, 1, 1, 2, 4, 8, 1, 1, 2, 4, 8, 4, 8 };
+
+    private static final int TAG_COMPRESSION = 0x0103;
+    private static final int TAG_STRIP_OFFSETS = 0x0111;
+    private static final int TAG_FREE_OFFSETS = 0x0120;
+    private static final int TAG_TILE_OFFSETS = 0x0144;
+    private static final int TAG_SUB_IFDS = 0x014a;
+    private static final int TAG_ORIENTATION = 0x0112;
+    private static final int TAG_DATE_TIME = 0x0132;
+    private static final int TAG_JPEG_INTERCHANGE_FORMAT = 0x0201;
+    private static final int TAG_JPEG_INTERCHANGE_FORMAT_LENGTH = 0x0202;
+    private static final int TAG_JPEG_Q_TABLES = 0x0207;
+    private static final int TAG_JPEG_DC_TABLES = 0x0208;
+    private static final int TAG_JPEG_AC_TABLES = 0x0209;
+    private static final int TAG_EXIF_IFD_POINTER = 0x8769;
+    private static final int TAG_GPS_IFD_POINTER = 0x8825;
+    private static final int TAG_DATE_TIME_ORIGINAL = 0x9003;
+    private static final int TAG_DATE_TIME_DIGITIZED = 0x9004;
+    private static final int TAG_MAKER_NOTE = 0x927c;
+    private static final int TAG_PIXEL_X_DIMENSION = 0xa002;
+    private static final int TAG_PIXEL_Y_DIMENSION = 0xa003;
+    private static final int TAG_INTEROPERABILITY_IFD_POINTER = 0xa005;
+    private static final int TAG_PRINT_IM = 0xc4a5;
+    private static final int TAG_DNG_PRIVATE_DATA = 0xc634;
+
+    private static final int TAG_GPS_VERSION_ID = 0x0000;
+    private static final int TAG_GPS_LATITUDE_REF = 0x0001;
+    private static final int TAG_GPS_LATITUDE = 0x0002;
+    private static final int TAG_GPS_LONGITUDE_REF = 0x0003;
+    private static final int TAG_GPS_LONGITUDE = 0x0004;
+    private static final int TAG_GPS_ALTITUDE_REF = 0x0005;
+    private static final int TAG_GPS_ALTITUDE = 0x0006;
+    private static final int TAG_GPS_TIME_STAMP = 0x0007;
+    private static final int TAG_GPS_DATE_STAMP = 0x001d;
+
+    private static final byte[] EXIF_HEADER = { 'E', 'x', 'i', 'f', 0, 0 };
+
+    private static final Comparator<Entry> ENTRY_COMPARATOR = new Comparator<Entry>() {
+        @Override
+        public int compare(final Entry lhs, final Entry rhs) {
+            return lhs.tag - rhs.tag;
+        }
+    };
+
+    private ExifWriter() {
+    }
+
+    /**
+     * Writes the EXIF metadata into the specified JPEG data
+     *
+     * @param jpeg
+     *            The JPEG data
+     * @param orientation
+     *            The clockwise rotation in degrees to display the picture
+     *            upright
+     * @param timestamp
+     *            The time in milliseconds when picture taken
+     * @param width
+     *            The picture width in pixel
+     * @param height
+     *            The picture height in pixel
+     * @param location
+     *            The location where picture taken, or null
+     * @return the JPEG data with the EXIF metadata, or the specified data if
+     *         it is not a valid JPEG
+     */
+    static byte[] write(final byte[] jpeg, final int orientation, final long timestamp, final int width, final int height, final Location location) {
+        if (jpeg.length < 4 || (jpeg[0] & 0xff) != 0xff || (jpeg[1] & 0xff) != MARKER_SOI) {
+            return jpeg;
+        }
+
+        // Locate the insertion point and the existing EXIF segment in the header
+        int insert = 2;
+        int exifStart = -1;
+        int exifEnd = -1;
+        int pos = 2;
+
+        while (pos + 4 <= jpeg.length && (jpeg[pos] & 0xff) == 0xff) {
+            final int marker = jpeg[pos + 1] & 0xff;
+            if (marker == MARKER_SOS) {
+                break;
+            }
+
+            final int end = pos + 2 + CaptureThumbnail.readShort(jpeg, pos + 2, false);
+            if (end > jpeg.length) {
+                return jpeg;
+            }
+
+            if (marker == MARKER_APP0 && pos == insert) {
+                insert = end;
+            } else if (marker == MARKER_APP1 && exifStart < 0 && isExif(jpeg, pos + 4, end)) {
+                exifStart = pos;
+                exifEnd = end;
+            }
+
+            pos = end;
+        }
+
+        final List<Entry> ifd0 = new ArrayList<Entry>();
+        final List<Entry> exif = new ArrayList<Entry>();
+        final List<Entry> gps = new ArrayList<Entry>();
+        int thumbnailOffset = 0;
+        int thumbnailLength = 0;
+
+        if (exifStart >= 0) {
+            try {
+                readOriginal(jpeg, exifStart + 10, exifEnd, ifd0, exif, gps);
+            } catch (final RuntimeException e) {
+                Log.w(TAG, "Malformed EXIF segment, the original tags are dropped", e);
+                ifd0.clear();
+                exif.clear();
+                gps.clear();
+            }
+
+            final int[] range = CaptureThumbnail.findExifThumbnail(jpeg);
+            if (null != range) {
+                thumbnailOffset = range[0];
+                thumbnailLength = range[1];
+            }
+        }
+
+        final String dateTime = new SimpleDateFormat("yyyy:MM:dd HH:mm:ss", Locale.US).format(new Date(timestamp));
+        put(ifd0, new Entry(TAG_ORIENTATION, TYPE_SHORT, 1, ByteBuffer.allocate(2).putShort((short) toExifOrientation(orientation)).array()));
+        put(ifd0, ascii(TAG_DATE_TIME, dateTime));
+        put(exif, ascii(TAG_DATE_TIME_ORIGINAL, dateTime));
+        put(exif, ascii(TAG_DATE_TIME_DIGITIZED, dateTime));
+        put(exif, new Entry(TAG_PIXEL_X_DIMENSION, TYPE_LONG, 1, ByteBuffer.allocate(4).putInt(width).array()));
+        put(exif, new Entry(TAG_PIXEL_Y_DIMENSION, TYPE_LONG, 1, ByteBuffer.allocate(4).putInt(height).array()));
+
+        if (null != location) {
+            gps.clear();
+            putLocation(gps, location);
+        }
+
+        byte[] segment = buildSegment(ifd0, exif, gps, jpeg, thumbnailOffset, thumbnailLength);
+        if (segment.length - 2 > MAX_SEGMENT_LENGTH) {
+            // drop the thumbnail rather than the metadata
+            segment = buildSegment(ifd0, exif, gps, jpeg, 0, 0);
+            if (segment.length - 2 > MAX_SEGMENT_LENGTH) {
+                Log.w(TAG, "EXIF segment too large");
+                return jpeg;
+            }
+        }
+
+        // One copy of the image data with the new segment in place of the old one
+        final int removed = exifStart >= 0 ? exifEnd - exifStart : 0;
+        final byte[] out = new byte[jpeg.length - removed + segment.length];
+        int o = 0;
+
+        System.arraycopy(jpeg, 0, out, o, insert);
+        o += insert;
+        System.arraycopy(segment, 0, out, o, segment.length);
+        o += segment.length;
+
+        if (exifStart >= insert) {
+            System.arraycopy(jpeg, insert, out, o, exifStart - insert);
+            o += exifStart - insert;
+            System.arraycopy(jpeg, exifEnd, out, o, jpeg.length - exifEnd);
+        } else {
+            System.arraycopy(jpeg, insert, out, o, jpeg.length - insert);
+        }
+
+        return out;
+    }
+
+    /**
+     * Converts the rotation in degrees into the EXIF orientation
+     */
+    static int toExifOrientation(final int degrees) {
+        switch (((degrees % 360) + 360) % 360) {
+            case 90:
+                return 6;
+            case 180:
+                return 3;
+            case 270:
+                return 8;
+            default:
+                return 1;
+        }
+    }
+
+    private static boolean isExif(final byte[] jpeg, final int start, final int end) {
+        if (end - start < EXIF_HEADER.length + 8) {
+            return false;
+        }
+
+        for (int i = 0; i < EXIF_HEADER.length; i++) {
+            if (jpeg[start + i] != EXIF_HEADER[i]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Reads the entries of IFD0, EXIF IFD and GPS IFD of the original segment
+     * in big endian, the pointers and maker note are dropped
+     *
+     * @see #isOffset(int)
+     */
+    private static void readOriginal(final byte[] jpeg, final int tiff, final int end, final List<Entry> ifd0, final List<Entry> exif, final List<Entry> gps) {
+        final boolean littleEndian = 'I' == jpeg[tiff] && 'I' == jpeg[tiff + 1];
+        final int ifd0Offset = CaptureThumbnail.readInt(jpeg, tiff + 4, littleEndian);
+        final List<Entry> entries = new ArrayList<Entry>();
+        readIfd(jpeg, tiff, end, ifd0Offset, littleEndian, entries);
+
+        for (final Entry entry : entries) {
+            switch (entry.tag) {
+                case TAG_EXIF_IFD_POINTER: {
+                    final List<Entry> exifEntries = new ArrayList<Entry>();
+                    readIfd(jpeg, tiff, end, ByteBuffer.wrap(entry.value).getInt(), littleEndian, exifEntries);
+                    for (final Entry e : exifEntries) {
+                        if (!isOffset(e.tag)) {
+                            exif.add(e);
+                        }
+                    }
+                    break;
+                }
+                case TAG_GPS_IFD_POINTER:
+                    readIfd(jpeg, tiff, end, ByteBuffer.wrap(entry.value).getInt(), littleEndian, gps);
+                    break;
+                default:
+                    if (!isOffset(entry.tag)) {
+                        ifd0.add(entry);
+                    }
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Returns whether the value of the specified tag is, or contains, an
+     * offset into the original segment, the entries of type IFD are never
+     * read
+     */
+    private static boolean isOffset(final int tag) {
+        switch (tag) {
+            case TAG_STRIP_OFFSETS:
+            case TAG_FREE_OFFSETS:
+            case TAG_TILE_OFFSETS:
+            case TAG_SUB_IFDS:
+            case TAG_JPEG_INTERCHANGE_FORMAT:
+            case TAG_JPEG_INTERCHANGE_FORMAT_LENGTH:
+            case TAG_JPEG_Q_TABLES:
+            case TAG_JPEG_DC_TABLES:
+            case TAG_JPEG_AC_TABLES:
+            case TAG_EXIF_IFD_POINTER:
+            case TAG_GPS_IFD_POINTER:
+            case TAG_MAKER_NOTE:
+            case TAG_INTEROPERABILITY_IFD_POINTER:
+            case TAG_PRINT_IM:
+            case TAG_DNG_PRIVATE_DATA:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private static void readIfd(final byte[] jpeg, final int tiff, final int end, final int offset, final boolean littleEndian, final List<Entry> entries) {
+        final int ifd = tiff + offset;
+        final int count = CaptureThumbnail.readShort(jpeg, ifd, littleEndian);
+        if (ifd + 2 + count * 12 > end) {
+            throw new IndexOutOfBoundsException("IFD out of segment");
+        }
+
+        for (int i = 0; i < count; i++) {
+            final int pos = ifd + 2 + i * 12;
+            final int tag = CaptureThumbnail.readShort(jpeg, pos, littleEndian);
+            final int type = CaptureThumbnail.readShort(jpeg, pos + 2, littleEndian);
+            final int components = CaptureThumbnail.readInt(jpeg, pos + 4, littleEndian);
+            if (type <= 0 || type >= TYPE_SIZES.length || components < 0) {
+                continue;
+            }
+
+            final int size = TYPE_SIZES[type] * components;
+            final int valueOffset = size <= 4 ? pos + 8 : tiff + CaptureThumbnail.readInt(jpeg, pos + 8, littleEndian);
+            if (size < 0 || valueOffset + size > end) {
+                continue;
+            }
+
+            final byte[] value = new byte[size];
+            System.arraycopy(jpeg, valueOffset, value, 0, size);
+
+            if (littleEndian) {
+                final int unit = TYPE_UNITS[type];
+                for (int u = 0; u + unit <= size; u += unit) {
+                    for (int l = u, r = u + unit - 1; l < r; l++, r--) {
+                        final byte b = value[l];
+                        value[l] = value[r];
+                        value[r] = b;
+                    }
+                }
+            }
+
+            entries.add(new Entry(tag, type, components, value));
+        }
+    }
+
+    private static void putLocation(final List<Entry> gps, final Location location) {
+        final double latitude = location.getLatitude();
+        final double longitude = location.getLongitude();
+
+        put(gps, new Entry(TAG_GPS_VERSION_ID, TYPE_BYTE, 4, new byte[] { 2, 2, 0, 0 }));
+        put(gps, ascii(TAG_GPS_LATITUDE_REF, latitude < 0 ? "S" : "N"));
+        put(gps, new Entry(TAG_GPS_LATITUDE, TYPE_RATIONAL, 3, toDegreesMinutesSeconds(Math.abs(latitude))));
+        put(gps, ascii(TAG_GPS_LONGITUDE_REF, longitude < 0 ? "W" : "E"));
+        put(gps, new Entry(TAG_GPS_LONGITUDE, TYPE_RATIONAL, 3, toDegreesMinutesSeconds(Math.abs(longitude))));
+
+        if (location.hasAltitude()) {
+            final double altitude = location.getAltitude();
+            put(gps, new Entry(TAG_GPS_ALTITUDE_REF, TYPE_BYTE, 1, new byte[] { (byte) (altitude < 0 ? 1 : 0) }));
+            put(gps, new Entry(TAG_GPS_ALTITUDE, TYPE_RATIONAL, 1, ByteBuffer.allocate(8).putInt((int) Math.round(Math.abs(altitude) * 100)).putInt(100).array()));
+        }
+
+        if (location.getTime() > 0) {
+            final SimpleDateFormat format = new SimpleDateFormat("yyyy:MM:dd HH:mm:ss", Locale.US);
+            format.setTimeZone(TimeZone.getTimeZone("UTC"));
+            final String utc = format.format(new Date(location.getTime()));
+            final ByteBuffer time = ByteBuffer.allocate(24);
+            time.putInt(Integer.parseInt(utc.substring(11, 13))).putInt(1);
+            time.putInt(Integer.parseInt(utc.substring(14, 16))).putInt(1);
+            time.putInt(Integer.parseInt(utc.substring(17, 19))).putInt(1);
+            put(gps, new Entry(TAG_GPS_TIME_STAMP, TYPE_RATIONAL, 3, time.array()));
+            put(gps, ascii(TAG_GPS_DATE_STAMP, utc.substring(0, 10)));
+        }
+    }
+
+    private static byte[] toDegreesMinutesSeconds(final double value) {
+        final int degrees = (int) value;
+        final double remaining = (value - degrees) * 60;
+        final int minutes = (int) remaining;
+        final int seconds = (int) Math.round((remaining - minutes) * 60 * 1000);
+        return ByteBuffer.allocate(24).putInt(degrees).putInt(1).putInt(minutes).putInt(1).putInt(seconds).putInt(1000).array();
+    }
+
+    /**
+     * Builds the APP1 segment in big endian, the IFDs are laid out in order
+     * of IFD0, EXIF IFD, GPS IFD and IFD1 followed by the thumbnail
+     */
+    private static byte[] buildSegment(final List<Entry> ifd0, final List<Entry> exif, final List<Entry> gps, final byte[] thumbnail, final int thumbnailOffset, final int thumbnailLength) {
+        final List<Entry> ifd0Entries = new ArrayList<Entry>(ifd0);
+        final Entry exifPointer = new Entry(TAG_EXIF_IFD_POINTER, TYPE_LONG, 1, new byte[4]);
+        final Entry gpsPointer = gps.isEmpty() ? null : new Entry(TAG_GPS_IFD_POINTER, TYPE_LONG, 1, new byte[4]);
+        ifd0Entries.add(exifPointer);
+        if (null != gpsPointer) {
+            ifd0Entries.add(gpsPointer);
+        }
+
+        final List<Entry> ifd1 = new ArrayList<Entry>();
+        final Entry thumbnailPointer = new Entry(TAG_JPEG_INTERCHANGE_FORMAT, TYPE_LONG, 1, new byte[4]);
+        if (thumbnailLength > 0) {
+            ifd1.add(new Entry(TAG_COMPRESSION, TYPE_SHORT, 1, new byte[] { 0, 6 }));
+            ifd1.add(thumbnailPointer);
+            ifd1.add(new Entry(TAG_JPEG_INTERCHANGE_FORMAT_LENGTH, TYPE_LONG, 1, ByteBuffer.allocate(4).putInt(thumbnailLength).array()));
+        }
+
+        final int ifd0Offset = 8;
+        final int exifOffset = ifd0Offset + sizeOf(ifd0Entries);
+        final int gpsOffset = exifOffset + sizeOf(exif);
+        final int ifd1Offset = gpsOffset + (null != gpsPointer ? sizeOf(gps) : 0);
+        final int thumbnailStart = ifd1Offset + (ifd1.isEmpty() ? 0 : sizeOf(ifd1));
+        final int tiffLength = thumbnailStart + thumbnailLength;
+
+        ByteBuffer.wrap(exifPointer.value).putInt(exifOffset);
+        if (null != gpsPointer) {
+            ByteBuffer.wrap(gpsPointer.value).putInt(gpsOffset);
+        }
+        ByteBuffer.wrap(thumbnailPointer.value).putInt(thumbnailStart);
+
+        final ByteBuffer buffer = ByteBuffer.allocate(4 + EXIF_HEADER.length + tiffLength).order(ByteOrder.BIG_ENDIAN);
+        buffer.put((byte) 0xff).put((byte) MARKER_APP1).putShort((short) (2 + EXIF_HEADER.length + tiffLength));
+        buffer.put(EXIF_HEADER);
+
+        final int tiff = buffer.position();
+        buffer.put((byte) 'M').put((byte) 'M').putShort((short) 42).putInt(ifd0Offset);
+        writeIfd(buffer, tiff, ifd0Entries, ifd1.isEmpty() ? 0 : ifd1Offset);
+        writeIfd(buffer, tiff, exif, 0);
+        if (null != gpsPointer) {
+            writeIfd(buffer, tiff, gps, 0);
+        }
+        if (!ifd1.isEmpty()) {
+            writeIfd(buffer, tiff, ifd1, 0);
+            buffer.put(thumbnail, thumbnailOffset, thumbnailLength);
+        }
+
+        return buffer.array();
+    }
+
+    private static int sizeOf(final List<Entry> entries) {
+        int size = 2 + entries.size() * 12 + 4;
+        for (final Entry entry : entries) {
+            if (entry.value.length > 4) {
+                size += (entry.value.length + 1) & ~1;
+            }
+        }
+        return size;
+    }
+
+    private static void writeIfd(final ByteBuffer buffer, final int tiff, final List<Entry> entries, final int next) {
+        Collections.sort(entries, ENTRY_COMPARATOR);
+
+        final int start = buffer.position() - tiff;
+        int data = start + 2 + entries.size() * 12 + 4;
+
+        buffer.putShort((short) entries.size());
+        for (final Entry entry : entries) {
+            buffer.putShort((short) entry.tag).putShort((short) entry.type).putInt(entry.count);
+
+            if (entry.value.length > 4) {
+                buffer.putInt(data);
+                data += (entry.value.length + 1) & ~1;
+            } else {
+                buffer.put(entry.value);
+                for (int i = entry.value.length; i < 4; i++) {
+                    buffer.put((byte) 0);
+                }
+            }
+        }
+        buffer.putInt(next);
+
+        for (final Entry entry : entries) {
+            if (entry.value.length > 4) {
+                buffer.put(entry.value);
+                if ((entry.value.length & 1) != 0) {
+                    buffer.put((byte) 0);
+                }
+            }
+        }
+    }
+
+    private static Entry ascii(final int tag, final String value) {
+        final byte[] bytes = new byte[value.length() + 1];
+        for (int i = 0; i < value.length(); i++) {
+            bytes[i] = (byte) value.charAt(i);
+        }
+        return new Entry(tag, TYPE_ASCII, bytes.length, bytes);
+    }
+
+    /**
+     * Puts the specified entry in place of the one with the same tag
+     */
+    private static void put(final List<Entry> entries, final Entry entry) {
+        for (int i = 0; i < entries.size(); i++) {
+            if (entries.get(i).tag == entry.tag) {
+                entries.set(i, entry);
+                return;
+            }
+        }
+        entries.add(entry);
+    }
+
+    /**
+     * An IFD entry with the value in big endian
+     */
+    private static final class Entry {
+
+        final int tag;
+        final int type;
+        final int count;
+        final byte[] value;
+
+        Entry(final int tag, final int type, final int count, final byte[] value) {
+            this.tag = tag;
+            this.type = type;
+            this.count = count;
+            this.value = value;
+        }
+    }
+
+}
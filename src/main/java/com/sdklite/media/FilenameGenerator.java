@@ -0,0 +1,86 @@
+package com.sdklite.media;
+
+import java.util.Calendar;
+import java.util.TimeZone;
+
+/**
+ * Generates unique filenames in {@code yyyyMMddHHmmssSSS} format of the local
+ * time, the names generated in the same millisecond are suffixed with a
+ * sequence number, e.g. {@code 20161016093000123_1}
+ *
+ * <p>
+ * The names never go backwards even if the clock does, the date time fields
+ * are formatted once per second into a cached buffer.
+ * </p>
+ */
+final class FilenameGenerator {
+
+    private static final int SECOND_LENGTH = 14;
+
+    private final char[] mBuffer = new char[SECOND_LENGTH + 3];
+
+    private Calendar mCalendar;
+    private long mSecond = Long.MIN_VALUE;
+    private long mLastTime = Long.MIN_VALUE;
+    private int mSequence;
+
+    /**
+     * Returns the next unique filename without extension
+     *
+     * @param time
+     *            The current time in milliseconds
+     */
+    synchronized String next(final long time) {
+        // Stay on the last millisecond if the clock goes backwards
+        final long now = Math.max(time, this.mLastTime);
+        if (now == this.mLastTime) {
+            this.mSequence++;
+        } else {
+            this.mLastTime = now;
+            this.mSequence = 0;
+        }
+
+        final long second = now / 1000;
+        if (second != this.mSecond) {
+            formatSecond(now);
+            this.mSecond = second;
+        }
+
+        final int millis = (int) (now % 1000);
+        this.mBuffer[SECOND_LENGTH] = (char) ('0' + millis / 100);
+        this.mBuffer[SECOND_LENGTH + 1] = (char) ('0' + millis / 10 % 10);
+        this.mBuffer[SECOND_LENGTH + 2] = (char) ('0' + millis % 10);
+
+        if (0 == this.mSequence) {
+            return new String(this.mBuffer);
+        }
+
+        return new StringBuilder(this.mBuffer.length + 4).append(this.mBuffer).append('_').append(this.mSequence).toString();
+    }
+
+    private void formatSecond(final long time) {
+        // Pick up the time zone change once per second
+        final TimeZone zone = TimeZone.getDefault();
+        if (null == this.mCalendar || !zone.equals(this.mCalendar.getTimeZone())) {
+            this.mCalendar = Calendar.getInstance(zone);
+        }
+
+        final Calendar calendar = this.mCalendar;
+        calendar.setTimeInMillis(time);
+        format(calendar.get(Calendar.YEAR), 0, 4);
+        format(calendar.get(Calendar.MONTH) + 1, 4, 2);
+        format(calendar.get(Calendar.DAY_OF_MONTH), 6, 2);
+        format(calendar.get(Calendar.HOUR_OF_DAY), 8, 2);
+        format(calendar.get(Calendar.MINUTE), 10, 2);
+        format(calendar.get(Calendar.SECOND), 12, 2);
+    }
+
+    private void format(final int value, final int offset, final int digits) {
+        int v = value;
+        for (int i = offset + digits - 1; i >= offset; i--) {
+            this.mBuffer[i] = (char) ('0' + v % 10);
+            v /= 10;
+        }
+    }
+
+}
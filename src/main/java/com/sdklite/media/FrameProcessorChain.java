@@ -0,0 +1,419 @@
+package com.sdklite.media;
+
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A chain of frame processors which runs on a worker executor instead of the camera thread.
+ *
+ * <p>
+ * Each preview frame is copied into a preallocated frame and then passed through the
+ * processors stage by stage, every stage has its own bounded queue, once a queue is full,
+ * frames are dropped according to the {@link BackpressurePolicy}.
+ * </p>
+ *
+ * <pre>
+ * final FrameProcessorChain chain = new FrameProcessorChain(FrameProcessorChain.BackpressurePolicy.DROP_OLDEST, 2);
+ * chain.addProcessor(analyzer);
+ * chain.addProcessor(encoder);
+ * camera.addOnPreviewFrameCallback(chain);
+ * </pre>
+ */
+public class FrameProcessorChain implements CameraDevice.OnPreviewFrameCallback {
+
+    private static final String TAG = "FrameProcessorChain";
+
+    /**
+     * The policy for dropping frames when a stage can not keep up
+     */
+    public enum BackpressurePolicy {
+
+        /**
+         * Drops the oldest pending frame when the stage queue is full
+         */
+        DROP_OLDEST,
+
+        /**
+         * Keeps the latest frame only, any pending frame is replaced by the newer one
+         */
+        LATEST_ONLY
+    }
+
+    /**
+     * Frame processor
+     */
+    public interface Processor {
+        /**
+         * Processes the specified frame, the frame is passed to the next stage
+         * once this method returns, so do not keep any reference to it
+         *
+         * @param camera
+         *            The camera device which the frame comes from
+         * @param frame
+         *            The frame to process
+         */
+        void process(final CameraDevice camera, final Frame frame);
+    }
+
+    /**
+     * A preview frame owned by the chain
+     */
+    public static final class Frame {
+
+        byte[] data;
+        int width;
+        int height;
+        long timestamp;
+        long sequence;
+        CameraDevice camera;
+
+        private Frame() {
+        }
+
+        /**
+         * Returns the frame data in NV21 format
+         */
+        public byte[] getData() {
+            return this.data;
+        }
+
+        /**
+         * Returns the frame width in pixel
+         */
+        public int getWidth() {
+            return this.width;
+        }
+
+        /**
+         * Returns the frame height in pixel
+         */
+        public int getHeight() {
+            return this.height;
+        }
+
+        /**
+         * Returns the time in nanoseconds when the frame arrived
+         *
+         * @see System#nanoTime()
+         */
+        public long getTimestamp() {
+            return this.timestamp;
+        }
+
+        /**
+         * Returns the sequence number of the frame
+         */
+        public long getSequence() {
+            return this.sequence;
+        }
+    }
+
+    /**
+     * A stage of the chain
+     */
+    public final class Stage implements Runnable {
+
+        private final Processor mProcessor;
+        private final int mIndex;
+        private final ArrayDeque<Frame> mQueue;
+
+        private boolean mScheduled;
+        private long mProcessedCount;
+        private long mDropCount;
+
+        private Stage(final int index, final Processor processor) {
+            this.mIndex = index;
+            this.mProcessor = processor;
+            this.mQueue = new ArrayDeque<Frame>(mCapacity);
+        }
+
+        /**
+         * Returns the index of this stage in the chain
+         */
+        public int getIndex() {
+            return this.mIndex;
+        }
+
+        /**
+         * Returns the number of frames waiting in the queue of this stage
+         */
+        public synchronized int getQueueDepth() {
+            return this.mQueue.size();
+        }
+
+        /**
+         * Returns the number of frames dropped by this stage
+         */
+        public synchronized long getDropCount() {
+            return this.mDropCount;
+        }
+
+        /**
+         * Returns the number of frames processed by this stage
+         */
+        public synchronized long getProcessedCount() {
+            return this.mProcessedCount;
+        }
+
+        private void offer(final Frame frame) {
+            Frame dropped = null;
+            boolean schedule = false;
+
+            synchronized (this) {
+                if (this.mQueue.size() >= (BackpressurePolicy.LATEST_ONLY == mPolicy ? 1 : mCapacity)) {
+                    dropped = this.mQueue.pollFirst();
+                    this.mDropCount++;
+                }
+
+                this.mQueue.offerLast(frame);
+
+                if (!this.mScheduled) {
+                    this.mScheduled = true;
+                    schedule = true;
+                }
+            }
+
+            if (null != dropped) {
+                recycle(dropped);
+            }
+
+            if (schedule) {
+                mExecutor.execute(this);
+            }
+        }
+
+        /**
+         * Drops the oldest pending frame
+         *
+         * @return the dropped frame or null if no frame pending
+         */
+        private Frame reclaim() {
+            synchronized (this) {
+                final Frame frame = this.mQueue.pollFirst();
+                if (null != frame) {
+                    this.mDropCount++;
+                }
+                return frame;
+            }
+        }
+
+        @Override
+        public void run() {
+            for (;;) {
+                final Frame frame;
+
+                synchronized (this) {
+                    frame = this.mQueue.pollFirst();
+                    if (null == frame) {
+                        this.mScheduled = false;
+                        return;
+                    }
+                }
+
+                try {
+                    this.mProcessor.process(frame.camera, frame);
+                } catch (final Throwable t) {
+                    Log.e(TAG, "Failed to process frame #" + frame.sequence + " at stage " + this.mIndex, t);
+                }
+
+                synchronized (this) {
+                    this.mProcessedCount++;
+                }
+
+                final Stage[] stages = mStages;
+                if (this.mIndex + 1 < stages.length) {
+                    stages[this.mIndex + 1].offer(frame);
+                } else {
+                    recycle(frame);
+                }
+            }
+        }
+    }
+
+    private static final Stage[] NO_STAGES = new Stage[0];
+
+    private final BackpressurePolicy mPolicy;
+    private final int mCapacity;
+    private final Executor mExecutor;
+    private final ExecutorService mOwnedExecutor;
+    private final ArrayDeque<Frame> mFreeFrames = new ArrayDeque<Frame>();
+
+    private volatile Stage[] mStages = NO_STAGES;
+
+    private long mSequence;
+    private long mSourceDropCount;
+
+    /**
+     * Create a chain with its own worker threads
+     *
+     * @param policy
+     *            The backpressure policy
+     * @param capacity
+     *            The queue capacity of each stage
+     */
+    public FrameProcessorChain(final BackpressurePolicy policy, final int capacity) {
+        this(policy, capacity, null);
+    }
+
+    /**
+     * Create a chain running on the specified executor
+     *
+     * @param policy
+     *            The backpressure policy
+     * @param capacity
+     *            The queue capacity of each stage
+     * @param executor
+     *            The executor to run stages on, each stage runs serially, so
+     *            stages run concurrently only if the executor has more than one
+     *            thread
+     */
+    public FrameProcessorChain(final BackpressurePolicy policy, final int capacity, final Executor executor) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity < 1");
+        }
+
+        this.mPolicy = null == policy ? BackpressurePolicy.DROP_OLDEST : policy;
+        this.mCapacity = capacity;
+
+        if (null == executor) {
+            this.mOwnedExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+                final AtomicInteger mCount = new AtomicInteger();
+
+                @Override
+                public Thread newThread(final Runnable r) {
+                    return new Thread(r, "FrameProcessor-" + this.mCount.incrementAndGet());
+                }
+            });
+            this.mExecutor = this.mOwnedExecutor;
+        } else {
+            this.mOwnedExecutor = null;
+            this.mExecutor = executor;
+        }
+    }
+
+    /**
+     * Appends a processor to the end of the chain
+     *
+     * @param processor
+     *            The frame processor
+     * @return the stage of the processor
+     */
+    public synchronized Stage addProcessor(final Processor processor) {
+        if (null == processor) {
+            throw new NullPointerException("processor is null");
+        }
+
+        final Stage[] stages = this.mStages;
+        final Stage[] newStages = new Stage[stages.length + 1];
+        System.arraycopy(stages, 0, newStages, 0, stages.length);
+        newStages[stages.length] = new Stage(stages.length, processor);
+
+        synchronized (this.mFreeFrames) {
+            // every stage holds at most capacity frames in queue and one in process
+            for (int i = 0, n = (BackpressurePolicy.LATEST_ONLY == this.mPolicy ? 1 : this.mCapacity) + 1; i < n; i++) {
+                this.mFreeFrames.offer(new Frame());
+            }
+        }
+
+        this.mStages = newStages;
+        return newStages[stages.length];
+    }
+
+    /**
+     * Returns the number of stages
+     */
+    public int getStageCount() {
+        return this.mStages.length;
+    }
+
+    /**
+     * Returns the stage at the specified index
+     *
+     * @param index
+     *            The index of stage
+     */
+    public Stage getStage(final int index) {
+        return this.mStages[index];
+    }
+
+    /**
+     * Returns the backpressure policy
+     */
+    public BackpressurePolicy getBackpressurePolicy() {
+        return this.mPolicy;
+    }
+
+    /**
+     * Returns the number of frames dropped before entering the chain because
+     * all frames were in process
+     */
+    public long getSourceDropCount() {
+        synchronized (this.mFreeFrames) {
+            return this.mSourceDropCount;
+        }
+    }
+
+    /**
+     * Shuts down the worker threads if they are owned by this chain
+     */
+    public void shutdown() {
+        if (null != this.mOwnedExecutor) {
+            this.mOwnedExecutor.shutdown();
+        }
+    }
+
+    @Override
+    public void onPreviewFrame(final CameraDevice camera, final byte[] data, final int width, final int height) {
+        final Stage[] stages = this.mStages;
+        if (stages.length <= 0) {
+            return;
+        }
+
+        Frame frame;
+        final long sequence;
+
+        synchronized (this.mFreeFrames) {
+            sequence = this.mSequence++;
+            frame = this.mFreeFrames.poll();
+        }
+
+        if (null == frame) {
+            // all frames are in use, drop the oldest one waiting for the first stage
+            frame = stages[0].reclaim();
+        }
+
+        if (null == frame) {
+            synchronized (this.mFreeFrames) {
+                this.mSourceDropCount++;
+            }
+            return;
+        }
+
+        if (null == frame.data || frame.data.length != data.length) {
+            frame.data = new byte[data.length];
+        }
+
+        System.arraycopy(data, 0, frame.data, 0, data.length);
+        frame.width = width;
+        frame.height = height;
+        frame.timestamp = System.nanoTime();
+        frame.sequence = sequence;
+        frame.camera = camera;
+        stages[0].offer(frame);
+    }
+
+    private void recycle(final Frame frame) {
+        frame.camera = null;
+
+        synchronized (this.mFreeFrames) {
+            this.mFreeFrames.offer(frame);
+        }
+    }
+
+}
@@ -0,0 +1,53 @@
+package com.sdklite.media;
+
+/**
+ * Measures the achieved frame rate of preview over a sliding window of about
+ * one second
+ */
+final class FrameRateMeter {
+
+    private static final long WINDOW_NANOS = 1000000000L;
+
+    private long mWindowStart;
+    private int mFrames;
+    private volatile float mFrameRate;
+
+    /**
+     * Counts a frame, it is called on the thread delivering frames
+     */
+    void onFrame() {
+        final long now = System.nanoTime();
+        if (0 == this.mWindowStart) {
+            this.mWindowStart = now;
+            this.mFrames = 0;
+            return;
+        }
+
+        this.mFrames++;
+
+        final long elapsed = now - this.mWindowStart;
+        if (elapsed >= WINDOW_NANOS) {
+            this.mFrameRate = this.mFrames * 1e9f / elapsed;
+            this.mWindowStart = now;
+            this.mFrames = 0;
+        }
+    }
+
+    /**
+     * Restarts measuring, e.g. the frame rate range changed or preview stopped
+     */
+    void reset() {
+        this.mWindowStart = 0;
+        this.mFrames = 0;
+        this.mFrameRate = 0;
+    }
+
+    /**
+     * Returns the frame rate measured in the last window, or 0 if not
+     * measured yet
+     */
+    float getFrameRate() {
+        return this.mFrameRate;
+    }
+
+}
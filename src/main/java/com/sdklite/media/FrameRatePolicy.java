@@ -0,0 +1,92 @@
+package com.sdklite.media;
+
+import java.util.List;
+
+/**
+ * Defines an enumeration for preview frame rate policies, the frame rate range
+ * is selected from the supported ranges of the camera
+ *
+ * @see CameraCapabilities#getPreviewFpsRanges()
+ */
+public enum FrameRatePolicy {
+
+    /**
+     * The highest minimum frame rate for the steadiest frame analysis, a
+     * fixed range is preferred over a variable one of the same minimum
+     */
+    MAX_THROUGHPUT,
+
+    /**
+     * The widest range with the highest maximum, so that the exposure time
+     * can be extended in low light
+     */
+    LOW_LIGHT,
+
+    /**
+     * The lowest maximum which keeps the preview smooth, with the lowest
+     * minimum
+     */
+    POWER_SAVING;
+
+    /**
+     * The minimum frame rate of a smooth preview, scaled by 1000
+     */
+    static final int MIN_SMOOTH_FPS = 15000;
+
+    /**
+     * Selects the frame rate range of this policy from the specified ranges
+     *
+     * @param ranges
+     *            The supported frame rate ranges scaled by 1000
+     * @return the selected range or null if there is no range
+     */
+    int[] select(final List<int[]> ranges) {
+        int[] retRange = null;
+
+        for (final int[] range : ranges) {
+            if (null == retRange || isPreferred(range, retRange)) {
+                retRange = range;
+            }
+        }
+
+        return retRange;
+    }
+
+    private boolean isPreferred(final int[] range, final int[] current) {
+        final int min = range[0];
+        final int max = range[1];
+        final int curMin = current[0];
+        final int curMax = current[1];
+
+        switch (this) {
+            case MAX_THROUGHPUT: {
+                if (min != curMin) {
+                    return min > curMin;
+                }
+                final boolean fixed = min == max;
+                final boolean curFixed = curMin == curMax;
+                if (fixed != curFixed) {
+                    return fixed;
+                }
+                return max > curMax;
+            }
+            case LOW_LIGHT:
+                return max != curMax ? max > curMax : min < curMin;
+            case POWER_SAVING: {
+                final boolean smooth = max >= MIN_SMOOTH_FPS;
+                final boolean curSmooth = curMax >= MIN_SMOOTH_FPS;
+                if (smooth != curSmooth) {
+                    return smooth;
+                }
+                if (max != curMax) {
+                    // the lowest smooth maximum, or the highest one if none is smooth
+                    return smooth ? max < curMax : max > curMax;
+                }
+                return min < curMin;
+            }
+            default:
+                return false;
+        }
+    }
+
+}
@@ -0,0 +1,126 @@
+package com.sdklite.media;
+
+/**
+ * The histogram of latencies with exponential buckets, the bucket at index
+ * {@code i} counts the latencies in range [2<sup>i</sup>, 2<sup>i+1</sup>)
+ * microseconds
+ */
+public final class LatencyHistogram {
+
+    /**
+     * The number of buckets, the last bucket counts all latencies larger than
+     * about 35 minutes
+     */
+    public static final int BUCKET_COUNT = 32;
+
+    private final long[] mBuckets = new long[BUCKET_COUNT];
+
+    private long mCount;
+    private long mTotal;
+    private long mMin = Long.MAX_VALUE;
+    private long mMax;
+
+    LatencyHistogram() {
+    }
+
+    /**
+     * Records the specified latency
+     *
+     * @param latency
+     *            The latency in nanoseconds
+     */
+    synchronized void record(final long latency) {
+        final long micros = Math.max(1, latency / 1000);
+        final int index = Math.min(BUCKET_COUNT - 1, 63 - Long.numberOfLeadingZeros(micros));
+        this.mBuckets[index]++;
+        this.mCount++;
+        this.mTotal += latency;
+        this.mMin = Math.min(this.mMin, latency);
+        this.mMax = Math.max(this.mMax, latency);
+    }
+
+    /**
+     * Returns the number of recorded latencies
+     */
+    public synchronized long getCount() {
+        return this.mCount;
+    }
+
+    /**
+     * Returns the minimum latency in nanoseconds or 0 if nothing recorded
+     */
+    public synchronized long getMin() {
+        return this.mCount > 0 ? this.mMin : 0;
+    }
+
+    /**
+     * Returns the maximum latency in nanoseconds
+     */
+    public synchronized long getMax() {
+        return this.mMax;
+    }
+
+    /**
+     * Returns the mean latency in nanoseconds or 0 if nothing recorded
+     */
+    public synchronized long getMean() {
+        return this.mCount > 0 ? this.mTotal / this.mCount : 0;
+    }
+
+    /**
+     * Returns the approximate latency at the specified percentile, which is
+     * the upper bound of the bucket it falls in
+     *
+     * @param percentile
+     *            The percentile in range [0, 100]
+     * @return the latency in nanoseconds or 0 if nothing recorded
+     */
+    public synchronized long getPercentile(final float percentile) {
+        if (this.mCount <= 0) {
+            return 0;
+        }
+
+        final long rank = (long) Math.ceil(this.mCount * Math.max(0f, Math.min(100f, percentile)) / 100f);
+        long count = 0;
+
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            count += this.mBuckets[i];
+            if (count >= rank && this.mBuckets[i] > 0) {
+                return Math.min(this.mMax, (2L << i) * 1000);
+            }
+        }
+
+        return this.mMax;
+    }
+
+    /**
+     * Returns a copy of the bucket counts
+     */
+    public synchronized long[] getBuckets() {
+        return this.mBuckets.clone();
+    }
+
+    /**
+     * Clears all recorded latencies
+     */
+    public synchronized void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            this.mBuckets[i] = 0;
+        }
+
+        this.mCount = 0;
+        this.mTotal = 0;
+        this.mMin = Long.MAX_VALUE;
+        this.mMax = 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "count=" + this.mCount
+                + ", mean=" + getMean() / 1000000f + "ms"
+                + ", p50=" + getPercentile(50) / 1000000f + "ms"
+                + ", p90=" + getPercentile(90) / 1000000f + "ms"
+                + ", max=" + this.mMax / 1000000f + "ms";
+    }
+
+}
@@ -0,0 +1,47 @@
+package com.sdklite.media;
+
+/**
+ * Defines an enumeration for the timed stages of camera
+ */
+public enum LatencyStage {
+
+    /**
+     * From opening the camera until it is opened
+     */
+    OPEN("Camera.open"),
+
+    /**
+     * From opening the camera until the first preview frame arrived
+     */
+    FIRST_PREVIEW_FRAME("Camera.firstPreviewFrame"),
+
+    /**
+     * From starting auto focus until it finished
+     */
+    AUTO_FOCUS("Camera.autoFocus"),
+
+    /**
+     * From pressing the shutter until the JPEG data arrived
+     */
+    SHUTTER_TO_JPEG("Camera.shutterToJpeg"),
+
+    /**
+     * Writing the JPEG data into file
+     */
+    WRITE_FILE("MediaStorage.writeFile"),
+
+    /**
+     * Inserting the picture into media store
+     */
+    ADD_IMAGE("MediaStorage.addImage");
+
+    /**
+     * The section name shown in systrace
+     */
+    public final String sectionName;
+
+    LatencyStage(final String sectionName) {
+        this.sectionName = sectionName;
+    }
+
+}
@@ -0,0 +1,192 @@
+package com.sdklite.media;
+
+import android.os.Build;
+import android.os.Trace;
+import android.util.Log;
+
+import java.lang.reflect.Method;
+
+/**
+ * Times the {@link LatencyStage}s of a camera device, the stages are timed
+ * only if there is a listener attached or systrace is capturing, otherwise
+ * nothing but a volatile read and, on Android Q and later, a systrace check is
+ * performed
+ */
+final class LatencyTracker {
+
+    private static final String TAG = "LatencyTracker";
+
+    /**
+     * The async sections and {@code Trace.isEnabled()} are available since
+     * Android Q, which is above the compile SDK, so they are called by
+     * reflection, and the methods are null on the earlier versions
+     */
+    private static final Method TRACE_IS_ENABLED;
+    private static final Method TRACE_BEGIN_ASYNC_SECTION;
+    private static final Method TRACE_END_ASYNC_SECTION;
+
+    static {
+        Method isEnabled = null;
+        Method beginAsyncSection = null;
+        Method endAsyncSection = null;
+
+        if (Build.VERSION.SDK_INT >= 29) {
+            try {
+                isEnabled = Trace.class.getMethod("isEnabled");
+                beginAsyncSection = Trace.class.getMethod("beginAsyncSection", String.class, int.class);
+                endAsyncSection = Trace.class.getMethod("endAsyncSection", String.class, int.class);
+            } catch (final Throwable t) {
+                Log.w(TAG, "Async trace sections unavailable", t);
+                isEnabled = null;
+                beginAsyncSection = null;
+                endAsyncSection = null;
+            }
+        }
+
+        TRACE_IS_ENABLED = isEnabled;
+        TRACE_BEGIN_ASYNC_SECTION = beginAsyncSection;
+        TRACE_END_ASYNC_SECTION = endAsyncSection;
+    }
+
+    private final CameraDevice mDevice;
+    private final LatencyHistogram[] mHistograms;
+
+    private volatile CameraDevice.OnLatencyListener mListener;
+
+    LatencyTracker(final CameraDevice device) {
+        final LatencyStage[] stages = LatencyStage.values();
+        this.mDevice = device;
+        this.mHistograms = new LatencyHistogram[stages.length];
+
+        for (int i = 0; i < stages.length; i++) {
+            this.mHistograms[i] = new LatencyHistogram();
+        }
+    }
+
+    void setListener(final CameraDevice.OnLatencyListener listener) {
+        this.mListener = listener;
+    }
+
+    LatencyHistogram getHistogram(final LatencyStage stage) {
+        return this.mHistograms[stage.ordinal()];
+    }
+
+    /**
+     * Begins the specified stage which ends on the same thread
+     *
+     * @param stage
+     *            The stage to time
+     * @return the start time in nanoseconds or 0 if not timed
+     */
+    long begin(final LatencyStage stage) {
+        if (!isEnabled()) {
+            return 0;
+        }
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            Trace.beginSection(stage.sectionName);
+        }
+
+        return System.nanoTime();
+    }
+
+    /**
+     * Ends the specified stage begun by {@link #begin(LatencyStage)}
+     *
+     * @param stage
+     *            The stage to time
+     * @param start
+     *            The start time returned by {@link #begin(LatencyStage)}
+     */
+    void end(final LatencyStage stage, final long start) {
+        if (0 == start) {
+            return;
+        }
+
+        final long latency = System.nanoTime() - start;
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            Trace.endSection();
+        }
+
+        record(stage, latency);
+    }
+
+    /**
+     * Begins the specified stage which may end on another thread
+     *
+     * @param stage
+     *            The stage to time
+     * @return the start time in nanoseconds or 0 if not timed
+     */
+    long beginAsync(final LatencyStage stage) {
+        if (!isEnabled()) {
+            return 0;
+        }
+
+        if (null != TRACE_BEGIN_ASYNC_SECTION) {
+            invoke(TRACE_BEGIN_ASYNC_SECTION, stage.sectionName, getCookie(stage));
+        }
+
+        return System.nanoTime();
+    }
+
+    /**
+     * Ends the specified stage begun by {@link #beginAsync(LatencyStage)}
+     *
+     * @param stage
+     *            The stage to time
+     * @param start
+     *            The start time returned by {@link #beginAsync(LatencyStage)}
+     */
+    void endAsync(final LatencyStage stage, final long start) {
+        if (0 == start) {
+            return;
+        }
+
+        final long latency = System.nanoTime() - start;
+
+        if (null != TRACE_END_ASYNC_SECTION) {
+            invoke(TRACE_END_ASYNC_SECTION, stage.sectionName, getCookie(stage));
+        }
+
+        record(stage, latency);
+    }
+
+    private boolean isEnabled() {
+        return null != this.mListener || (null != TRACE_IS_ENABLED && Boolean.TRUE.equals(invoke(TRACE_IS_ENABLED)));
+    }
+
+    private void record(final LatencyStage stage, final long latency) {
+        final LatencyHistogram histogram = this.mHistograms[stage.ordinal()];
+        histogram.record(latency);
+
+        final CameraDevice.OnLatencyListener listener = this.mListener;
+        if (null == listener) {
+            return;
+        }
+
+        try {
+            listener.onLatency(this.mDevice, stage, latency, histogram);
+        } catch (final Throwable t) {
+            Log.e(TAG, "Failed to report latency of " + stage, t);
+        }
+    }
+
+    /**
+     * Returns the cookie to distinguish the async sections of different devices
+     */
+    private int getCookie(final LatencyStage stage) {
+        return System.identityHashCode(this.mDevice) * 31 + stage.ordinal();
+    }
+
+    private static Object invoke(final Method method, final Object... args) {
+        try {
+            return method.invoke(null, args);
+        } catch (final Throwable t) {
+            Log.e(TAG, "Failed to invoke " + method.getName(), t);
+            return null;
+        }
+    }
+
+}
@@ -1,20 +1,28 @@
 package com.sdklite.media;
 
 import android.annotation.SuppressLint;
+import android.annotation.TargetApi;
 import android.content.ContentResolver;
+import android.content.ContentUris;
 import android.content.ContentValues;
 import android.database.Cursor;
 import android.location.Location;
 import android.net.Uri;
+import android.os.Build;
 import android.os.Environment;
 import android.os.StatFs;
 import android.provider.MediaStore;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
 import android.util.Log;
 
 import java.io.File;
+import java.io.FileDescriptor;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.text.SimpleDateFormat;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.Date;
 
 /**
@@ -28,10 +36,44 @@ public class MediaStorage {
     public static final long DISK_PREPARING = -2L;
     public static final long DISK_UNKNOWN_SIZE = -3L;
 
+    /**
+     * Defines an enumeration for how durable a written file is against power
+     * loss, the file is never left partial by a crash of the process
+     */
+    public enum Durability {
+
+        /**
+         * The file is left in the page cache of the kernel
+         */
+        NONE,
+
+        /**
+         * The file content is flushed to the storage before the file is
+         * renamed into place
+         */
+        DATA,
+
+        /**
+         * The file content and metadata are flushed before the file is
+         * renamed into place, and the directory is flushed after that
+         */
+        FULL
+    }
+
+    private static volatile Durability sDurability = Durability.DATA;
+
+    private static final FilenameGenerator FILENAME_GENERATOR = new FilenameGenerator();
+
+    private static final StorageMonitor STORAGE_MONITOR = new StorageMonitor();
+
+    private static final StorageQuota STORAGE_QUOTA = new StorageQuota();
+
     private static final boolean HAS_MEDIA_COLUMNS_WIDTH_AND_HEIGHT = hasField(MediaStore.MediaColumns.class, "WIDTH") && hasField(MediaStore.MediaColumns.class, "HEIGHT");
 
     private static final String DCIM_CAMERA = Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DCIM).toString() + File.separator + "Camera";
 
+    private static final String DCIM_THUMBNAILS = Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DCIM).toString() + File.separator + ".thumbnails";
+
     private static boolean hasField(final Class<?> clazz, final String field) {
         try {
             clazz.getDeclaredField(field);
@@ -70,20 +112,47 @@ public class MediaStorage {
 
         try {
             final StatFs stat = new StatFs(dir.getPath());
-            return stat.getAvailableBlocks() * (long) stat.getBlockSize();
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+                return getAvailableBytes(stat);
+            }
+            return (long) stat.getAvailableBlocks() * stat.getBlockSize();
         } catch (final Exception e) {
             return DISK_UNKNOWN_SIZE;
         }
     }
 
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+    private static long getAvailableBytes(final StatFs stat) {
+        return stat.getAvailableBytes();
+    }
+
     /**
-     * Generate a filename without extension
+     * Returns the monitor which caches the available space of external
+     * storage, the files written by {@link #writeFile(String, ByteBuffer, Durability)}
+     * are deducted from the cached space
+     */
+    public static StorageMonitor getStorageMonitor() {
+        return STORAGE_MONITOR;
+    }
+
+    /**
+     * Returns the quota which evicts the oldest captures of this library once
+     * they exceed the budget, it is disabled by default
+     */
+    public static StorageQuota getStorageQuota() {
+        return STORAGE_QUOTA;
+    }
+
+    /**
+     * Generate a unique filename without extension in
+     * {@code yyyyMMddHHmmssSSS} format, the filenames generated in the same
+     * millisecond are suffixed with a sequence number, so that the pictures
+     * of a burst never overwrite each other
      *
      * @return a filename without extension
      */
     public static String generateFilename() {
-        final SimpleDateFormat sdf = new SimpleDateFormat("yyyyMMddHHmmss");
-        return sdf.format(new Date());
+        return FILENAME_GENERATOR.next(System.currentTimeMillis());
     }
 
     public static String generateFilename(final String ext) {
@@ -110,6 +179,35 @@ public class MediaStorage {
         return buildFilePath(DCIM_CAMERA, filename);
     }
 
+    /**
+     * Generate a video path under {@code Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DCIM)/Camera} with the specified filename
+     *
+     * @param filename
+     *            The filename
+     * @return a video path
+     */
+    public static String generateVideoPath(final String filename) {
+        return buildFilePath(DCIM_CAMERA, filename);
+    }
+
+    /**
+     * Generate a thumbnail path under {@code Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DCIM)/.thumbnails} with the specified filename
+     *
+     * @param filename
+     *            The filename
+     * @return a thumbnail path
+     */
+    public static String generateThumbnailPath(final String filename) {
+        return buildFilePath(DCIM_THUMBNAILS, filename);
+    }
+
+    /**
+     * Returns the directory of the captured pictures and videos
+     */
+    static String getCaptureDirectory() {
+        return DCIM_CAMERA;
+    }
+
     /**
      * Generate a file path with the specified directory and filename
      *
@@ -147,8 +245,39 @@ public class MediaStorage {
      * @param height
      *            The image height in pixel
      * @return a content uri
+     * @see MediaStoreInserter
      */
     public static Uri addImage(final ContentResolver resolver, final String title, final Date date, final Location location, final int orientation, final long size, final String path, final int width, final int height) {
+        try {
+            return resolver.insert(MediaStore.Images.Media.EXTERNAL_CONTENT_URI, buildImageValues(title, date, location, orientation, size, path, width, height));
+        } catch (final Throwable t) {
+            Log.e(TAG, "Failed to add image into media store", t);
+            return null;
+        }
+    }
+
+    /**
+     * Build the media store row of an image
+     *
+     * @param title
+     *            The image title
+     * @param date
+     *            The date time when image taken
+     * @param location
+     *            The location where image taken
+     * @param orientation
+     *            The orientation of image
+     * @param size
+     *            The image size in bytes
+     * @param path
+     *            The image file path
+     * @param width
+     *            The image width in pixel
+     * @param height
+     *            The image height in pixel
+     * @return the values to insert into {@code MediaStore.Images.Media.EXTERNAL_CONTENT_URI}
+     */
+    public static ContentValues buildImageValues(final String title, final Date date, final Location location, final int orientation, final long size, final String path, final int width, final int height) {
         final ContentValues values = new ContentValues(9);
         values.put(MediaStore.Images.ImageColumns.TITLE, title);
         values.put(MediaStore.Images.ImageColumns.DISPLAY_NAME, title + ".jpeg");
@@ -168,14 +297,119 @@ public class MediaStorage {
             values.put(MediaStore.Images.ImageColumns.LONGITUDE, location.getLongitude());
         }
 
+        return values;
+    }
+
+    /**
+     * Add the mini thumbnail of an image into media store
+     *
+     * @param resolver
+     *            The content resolver
+     * @param image
+     *            The content uri of the image
+     * @param path
+     *            The thumbnail file path
+     * @param width
+     *            The thumbnail width in pixel
+     * @param height
+     *            The thumbnail height in pixel
+     * @return a content uri
+     */
+    public static Uri addThumbnail(final ContentResolver resolver, final Uri image, final String path, final int width, final int height) {
+        final ContentValues values = new ContentValues(5);
+        values.put(MediaStore.Images.Thumbnails.IMAGE_ID, ContentUris.parseId(image));
+        values.put(MediaStore.Images.Thumbnails.KIND, MediaStore.Images.Thumbnails.MINI_KIND);
+        values.put(MediaStore.Images.Thumbnails.DATA, path);
+        values.put(MediaStore.Images.Thumbnails.WIDTH, width);
+        values.put(MediaStore.Images.Thumbnails.HEIGHT, height);
+
         try {
-            return resolver.insert(MediaStore.Images.Media.EXTERNAL_CONTENT_URI, values);
+            return resolver.insert(MediaStore.Images.Thumbnails.EXTERNAL_CONTENT_URI, values);
         } catch (final Throwable t) {
-            Log.e(TAG, "Failed to add image into media store", t);
+            Log.e(TAG, "Failed to add thumbnail into media store", t);
+            return null;
+        }
+    }
+
+    /**
+     * Add video into media store
+     *
+     * @param resolver
+     *            The content resolver
+     * @param title
+     *            The video title
+     * @param date
+     *            The date time when video taken
+     * @param location
+     *            The location where video taken
+     * @param duration
+     *            The video duration in milliseconds
+     * @param size
+     *            The video size in bytes
+     * @param path
+     *            The video file path
+     * @param width
+     *            The video width in pixel
+     * @param height
+     *            The video height in pixel
+     * @return a content uri
+     * @see MediaStoreInserter
+     */
+    public static Uri addVideo(final ContentResolver resolver, final String title, final Date date, final Location location, final long duration, final long size, final String path, final int width, final int height) {
+        try {
+            return resolver.insert(MediaStore.Video.Media.EXTERNAL_CONTENT_URI, buildVideoValues(title, date, location, duration, size, path, width, height));
+        } catch (final Throwable t) {
+            Log.e(TAG, "Failed to add video into media store", t);
             return null;
         }
     }
 
+    /**
+     * Build the media store row of a video
+     *
+     * @param title
+     *            The video title
+     * @param date
+     *            The date time when video taken
+     * @param location
+     *            The location where video taken
+     * @param duration
+     *            The video duration in milliseconds
+     * @param size
+     *            The video size in bytes
+     * @param path
+     *            The video file path
+     * @param width
+     *            The video width in pixel
+     * @param height
+     *            The video height in pixel
+     * @return the values to insert into {@code MediaStore.Video.Media.EXTERNAL_CONTENT_URI}
+     */
+    public static ContentValues buildVideoValues(final String title, final Date date, final Location location, final long duration, final long size, final String path, final int width, final int height) {
+        final String filename = new File(path).getName();
+        final ContentValues values = new ContentValues(10);
+        values.put(MediaStore.Video.VideoColumns.TITLE, title);
+        values.put(MediaStore.Video.VideoColumns.DISPLAY_NAME, filename);
+        values.put(MediaStore.Video.VideoColumns.DATE_TAKEN, date.getTime());
+        values.put(MediaStore.Video.VideoColumns.MIME_TYPE, filename.endsWith(".3gp") ? "video/3gpp" : "video/mp4");
+        values.put(MediaStore.Video.VideoColumns.DATA, path);
+        values.put(MediaStore.Video.VideoColumns.SIZE, size);
+        values.put(MediaStore.Video.VideoColumns.DURATION, duration);
+        values.put(MediaStore.Video.VideoColumns.RESOLUTION, width + "x" + height);
+
+        if (HAS_MEDIA_COLUMNS_WIDTH_AND_HEIGHT) {
+            values.put(MediaStore.Video.VideoColumns.WIDTH, width);
+            values.put(MediaStore.Video.VideoColumns.HEIGHT, height);
+        }
+
+        if (null != location) {
+            values.put(MediaStore.Video.VideoColumns.LATITUDE, location.getLatitude());
+            values.put(MediaStore.Video.VideoColumns.LONGITUDE, location.getLongitude());
+        }
+
+        return values;
+    }
+
     /**
      * Query media by the specified uri
      *
@@ -243,6 +477,27 @@ public class MediaStorage {
         }
     }
 
+    /**
+     * Sets the default durability of the written files
+     *
+     * @param durability
+     *            The durability, {@link Durability#DATA} by default
+     */
+    public static void setDurability(final Durability durability) {
+        if (null == durability) {
+            throw new NullPointerException("durability is null");
+        }
+
+        sDurability = durability;
+    }
+
+    /**
+     * Returns the default durability of the written files
+     */
+    public static Durability getDurability() {
+        return sDurability;
+    }
+
     /**
      * Write {@code data} into {@code path}
      *
@@ -250,16 +505,97 @@ public class MediaStorage {
      *            The binary data
      * @param path
      *            File path
+     * @return true if written
+     * @see #writeFile(String, byte[])
+     */
+    public static boolean write(final byte[] data, final String path) {
+        return writeFile(path, data);
+    }
+
+    /**
+     * Write {@code data} into {@code path} with the default durability
+     *
+     * @param path
+     *            File path
+     * @param data
+     *            The binary data
+     * @return true if written
+     */
+    public static boolean writeFile(final String path, final byte[] data) {
+        return writeFile(path, ByteBuffer.wrap(data), sDurability);
+    }
+
+    /**
+     * Write the remaining bytes of {@code data} into {@code path} with the
+     * default durability
+     *
+     * @param path
+     *            File path
+     * @param data
+     *            The binary data
+     * @return true if written
      */
-    public static void write(final byte[] data, final String path) {
+    public static boolean writeFile(final String path, final ByteBuffer data) {
+        return writeFile(path, data, sDurability);
+    }
+
+    /**
+     * Write {@code data} into {@code path} with the specified durability
+     *
+     * @param path
+     *            File path
+     * @param data
+     *            The binary data
+     * @param durability
+     *            The durability
+     * @return true if written
+     */
+    public static boolean writeFile(final String path, final byte[] data, final Durability durability) {
+        return writeFile(path, ByteBuffer.wrap(data), durability);
+    }
+
+    /**
+     * Write the remaining bytes of {@code data} into {@code path} without
+     * copying them into heap. The bytes are written into a temporary file in
+     * the same directory, which is renamed to {@code path} once written, so
+     * that {@code path} never refers to a partial file
+     *
+     * @param path
+     *            File path
+     * @param data
+     *            The binary data
+     * @param durability
+     *            The durability
+     * @return true if written, the temporary file is deleted if failed
+     */
+    public static boolean writeFile(final String path, final ByteBuffer data, final Durability durability) {
+        final File file = new File(path).getAbsoluteFile();
+        final File temp = new File(file.getParentFile(), "." + file.getName() + ".tmp");
+        final long size = data.remaining();
         FileOutputStream out = null;
+        boolean written = false;
 
         try {
-            out = new FileOutputStream(path);
-            out.write(data);
-            out.flush();
-        } catch (final Exception e) {
-            Log.e(TAG, "Failed to write " + path, e);
+            out = new FileOutputStream(temp);
+            final FileChannel channel = out.getChannel();
+            while (data.hasRemaining()) {
+                channel.write(data);
+            }
+
+            if (Durability.NONE != durability) {
+                channel.force(Durability.FULL == durability);
+            }
+
+            out.close();
+            out = null;
+
+            if (!temp.renameTo(file)) {
+                throw new IOException("Failed to rename " + temp + " to " + file);
+            }
+
+            written = true;
+        } catch (final IOException e) {
+            Log.e(TAG, "Failed to write file " + path, e);
         } finally {
             if (null != out) {
                 try {
@@ -267,25 +603,45 @@ public class MediaStorage {
                 } catch (final IOException e) {
                 }
             }
+
+            if (!written) {
+                temp.delete();
+            }
+        }
+
+        if (!written) {
+            return false;
+        }
+
+        STORAGE_MONITOR.onBytesWritten(size);
+
+        if (Durability.FULL == durability) {
+            syncDirectory(file.getParentFile());
         }
+
+        return true;
     }
 
-    public static void writeFile(final String path, byte[] data) {
-        FileOutputStream out = null;
+    /**
+     * Flushes the directory entries, e.g. the file renamed into the
+     * directory, it is not supported before Lollipop
+     */
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private static void syncDirectory(final File dir) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            return;
+        }
 
         try {
-            out = new FileOutputStream(path);
-            out.write(data);
-            out.flush();
-        } catch (final IOException e) {
-            Log.e(TAG, "Failed to write file " + path, e);
-        } finally {
-            if (null != out) {
-                try {
-                    out.close();
-                } catch (final IOException e) {
-                }
+            final FileDescriptor fd = Os.open(dir.getPath(), OsConstants.O_RDONLY, 0);
+            try {
+                Os.fsync(fd);
+            } finally {
+                Os.close(fd);
             }
+        } catch (final ErrnoException e) {
+            Log.w(TAG, "Failed to sync directory " + dir, e);
         }
     }
+
 }
@@ -0,0 +1,307 @@
+package com.sdklite.media;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.net.Uri;
+import android.util.Log;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Inserts rows into media store in batches, the rows are buffered and
+ * inserted with {@link ContentResolver#applyBatch(String, ArrayList)} once
+ * the batch is full or the oldest row has been buffered for the maximum
+ * delay, so that hundreds of pictures cost a few provider transactions
+ * instead of one per picture
+ *
+ * <pre>
+ * final MediaStoreInserter inserter = new MediaStoreInserter(context.getContentResolver());
+ * try {
+ *     for (final String path : paths) {
+ *         inserter.insert(MediaStore.Images.Media.EXTERNAL_CONTENT_URI, MediaStorage.buildImageValues(...), callback);
+ *     }
+ * } finally {
+ *     inserter.close();
+ * }
+ * </pre>
+ *
+ * <p>
+ * The buffered rows are always inserted on {@link #close()}, the rows are
+ * inserted one by one if the batch is rejected, so that every row gets its
+ * own result.
+ * </p>
+ */
+public final class MediaStoreInserter implements Closeable {
+
+    private static final String TAG = "MediaStoreInserter";
+
+    /**
+     * The default maximum number of rows in a batch
+     */
+    public static final int DEFAULT_MAX_BATCH_SIZE = 50;
+
+    /**
+     * The default maximum delay in milliseconds of a buffered row
+     */
+    public static final long DEFAULT_MAX_DELAY = 500L;
+
+    /**
+     * Callback to receive the result of an inserted row
+     */
+    public interface OnInsertedCallback {
+        /**
+         * Called once the row inserted, on the thread which flushes the batch
+         *
+         * @param values
+         *            The values of the row
+         * @param uri
+         *            The content uri of the row or null if failed
+         */
+        void onInserted(final ContentValues values, final Uri uri);
+    }
+
+    private static final class Row {
+
+        final Uri table;
+        final ContentValues values;
+        final OnInsertedCallback callback;
+
+        Row(final Uri table, final ContentValues values, final OnInsertedCallback callback) {
+            this.table = table;
+            this.values = values;
+            this.callback = callback;
+        }
+    }
+
+    private final ContentResolver mResolver;
+    private final int mMaxBatchSize;
+    private final long mMaxDelay;
+
+    /**
+     * Serializes the flushes, so that the rows are inserted in order
+     */
+    private final Object mFlushLock = new Object();
+
+    private ArrayList<Row> mRows = new ArrayList<Row>();
+    private ScheduledExecutorService mTimer;
+    private ScheduledFuture<?> mScheduledFlush;
+    private boolean mClosed;
+
+    private final Runnable mFlushTask = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    /**
+     * Create an inserter with the default batch size and delay
+     *
+     * @param resolver
+     *            The content resolver
+     */
+    public MediaStoreInserter(final ContentResolver resolver) {
+        this(resolver, DEFAULT_MAX_BATCH_SIZE, DEFAULT_MAX_DELAY);
+    }
+
+    /**
+     * Create an inserter
+     *
+     * @param resolver
+     *            The content resolver
+     * @param maxBatchSize
+     *            The maximum number of rows in a batch, the batch is inserted
+     *            on the inserting thread once full
+     * @param maxDelay
+     *            The maximum delay in milliseconds of a buffered row, the
+     *            batch is inserted on a timer thread once expired, 0 means
+     *            no time threshold
+     */
+    public MediaStoreInserter(final ContentResolver resolver, final int maxBatchSize, final long maxDelay) {
+        if (null == resolver) {
+            throw new NullPointerException("resolver is null");
+        }
+
+        if (maxBatchSize < 1) {
+            throw new IllegalArgumentException("maxBatchSize < 1");
+        }
+
+        if (maxDelay < 0) {
+            throw new IllegalArgumentException("maxDelay < 0");
+        }
+
+        this.mResolver = resolver;
+        this.mMaxBatchSize = maxBatchSize;
+        this.mMaxDelay = maxDelay;
+    }
+
+    /**
+     * Buffers a row to be inserted into the specified table
+     *
+     * @param table
+     *            The content uri of the table, e.g.
+     *            {@code MediaStore.Images.Media.EXTERNAL_CONTENT_URI}
+     * @param values
+     *            The values of the row
+     * @param callback
+     *            The callback to receive the content uri of the row, or null
+     * @throws IllegalStateException
+     *             if this inserter has been closed
+     */
+    public void insert(final Uri table, final ContentValues values, final OnInsertedCallback callback) {
+        if (null == table || null == values) {
+            throw new NullPointerException("table or values is null");
+        }
+
+        final boolean full;
+
+        synchronized (this) {
+            if (this.mClosed) {
+                throw new IllegalStateException("Inserter closed");
+            }
+
+            this.mRows.add(new Row(table, values, callback));
+            full = this.mRows.size() >= this.mMaxBatchSize;
+
+            if (!full && this.mMaxDelay > 0 && null == this.mScheduledFlush) {
+                if (null == this.mTimer) {
+                    this.mTimer = newTimer();
+                }
+
+                this.mScheduledFlush = this.mTimer.schedule(this.mFlushTask, this.mMaxDelay, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        if (full) {
+            flush();
+        }
+    }
+
+    /**
+     * Inserts the buffered rows on the calling thread
+     */
+    public void flush() {
+        synchronized (this.mFlushLock) {
+            final ArrayList<Row> rows;
+
+            synchronized (this) {
+                if (this.mRows.isEmpty()) {
+                    return;
+                }
+
+                rows = this.mRows;
+                this.mRows = new ArrayList<Row>();
+
+                if (null != this.mScheduledFlush) {
+                    this.mScheduledFlush.cancel(false);
+                    this.mScheduledFlush = null;
+                }
+            }
+
+            // The operations of a batch must share the same authority
+            int start = 0;
+            for (int i = 1; i <= rows.size(); i++) {
+                if (i == rows.size() || !equals(rows.get(start).table.getAuthority(), rows.get(i).table.getAuthority())) {
+                    apply(rows.subList(start, i));
+                    start = i;
+                }
+            }
+        }
+    }
+
+    /**
+     * Inserts the buffered rows and releases the timer thread, the rows
+     * inserted after closed are rejected
+     */
+    @Override
+    public void close() {
+        final ScheduledExecutorService timer;
+
+        synchronized (this) {
+            if (this.mClosed) {
+                return;
+            }
+
+            this.mClosed = true;
+            timer = this.mTimer;
+            this.mTimer = null;
+        }
+
+        flush();
+
+        if (null != timer) {
+            timer.shutdown();
+        }
+    }
+
+    private void apply(final List<Row> rows) {
+        final ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>(rows.size());
+        for (final Row row : rows) {
+            operations.add(ContentProviderOperation.newInsert(row.table).withValues(row.values).build());
+        }
+
+        ContentProviderResult[] results = null;
+
+        // The media provider applies a batch in a transaction, so a rejected batch inserted nothing
+        try {
+            results = this.mResolver.applyBatch(rows.get(0).table.getAuthority(), operations);
+        } catch (final Throwable t) {
+            Log.e(TAG, "Failed to insert " + rows.size() + " rows, fall back to insert one by one", t);
+        }
+
+        for (int i = 0; i < rows.size(); i++) {
+            final Row row = rows.get(i);
+            final Uri uri;
+
+            if (null != results && i < results.length && null != results[i]) {
+                uri = results[i].uri;
+            } else {
+                uri = insertRow(row);
+            }
+
+            if (null != row.callback) {
+                try {
+                    row.callback.onInserted(row.values, uri);
+                } catch (final Throwable t) {
+                    Log.e(TAG, "Failed to deliver inserted row", t);
+                }
+            }
+        }
+    }
+
+    private Uri insertRow(final Row row) {
+        try {
+            return this.mResolver.insert(row.table, row.values);
+        } catch (final Throwable t) {
+            Log.e(TAG, "Failed to insert row into " + row.table, t);
+            return null;
+        }
+    }
+
+    private static boolean equals(final String a, final String b) {
+        return null == a ? null == b : a.equals(b);
+    }
+
+    private static ScheduledExecutorService newTimer() {
+        final ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                final Thread thread = new Thread(r, TAG);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        timer.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        return timer;
+    }
+
+}
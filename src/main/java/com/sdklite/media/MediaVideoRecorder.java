@@ -0,0 +1,97 @@
+package com.sdklite.media;
+
+import android.annotation.TargetApi;
+import android.hardware.Camera;
+import android.media.MediaRecorder;
+import android.os.Build;
+import android.view.Surface;
+
+import java.io.IOException;
+
+/**
+ * The {@link VideoRecorder} based on {@link MediaRecorder}
+ */
+final class MediaVideoRecorder implements VideoRecorder {
+
+    private MediaRecorder mRecorder;
+    private boolean mSurfaceSource;
+
+    @Override
+    public void prepare(final Camera camera, final Surface previewSurface, final VideoProfile profile, final boolean audio, final int orientation, final String path) throws IOException {
+        release();
+
+        final MediaRecorder recorder = new MediaRecorder();
+        this.mRecorder = recorder;
+        this.mSurfaceSource = null == camera;
+
+        if (null != camera) {
+            recorder.setCamera(camera);
+        }
+
+        if (audio) {
+            recorder.setAudioSource(MediaRecorder.AudioSource.CAMCORDER);
+        }
+
+        if (null != camera) {
+            recorder.setVideoSource(MediaRecorder.VideoSource.CAMERA);
+        } else {
+            setSurfaceSource(recorder);
+        }
+
+        recorder.setOutputFormat(profile.fileFormat);
+        recorder.setVideoFrameRate(profile.videoFrameRate);
+        recorder.setVideoSize(profile.videoFrameWidth, profile.videoFrameHeight);
+        recorder.setVideoEncodingBitRate(profile.videoBitRate);
+        recorder.setVideoEncoder(profile.videoCodec);
+
+        if (audio) {
+            recorder.setAudioEncodingBitRate(profile.audioBitRate);
+            recorder.setAudioChannels(profile.audioChannels);
+            recorder.setAudioSamplingRate(profile.audioSampleRate);
+            recorder.setAudioEncoder(profile.audioCodec);
+        }
+
+        recorder.setOutputFile(path);
+        recorder.setOrientationHint(orientation);
+
+        if (null != previewSurface) {
+            recorder.setPreviewDisplay(previewSurface);
+        }
+
+        recorder.prepare();
+    }
+
+    @Override
+    public Surface getSurface() {
+        return null != this.mRecorder && this.mSurfaceSource ? getSurface(this.mRecorder) : null;
+    }
+
+    @Override
+    public void start() {
+        this.mRecorder.start();
+    }
+
+    @Override
+    public void stop() {
+        this.mRecorder.stop();
+    }
+
+    @Override
+    public void release() {
+        if (null != this.mRecorder) {
+            this.mRecorder.release();
+            this.mRecorder = null;
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private static void setSurfaceSource(final MediaRecorder recorder) {
+        recorder.setVideoSource(MediaRecorder.VideoSource.SURFACE);
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private static Surface getSurface(final MediaRecorder recorder) {
+        return recorder.getSurface();
+    }
+
+}
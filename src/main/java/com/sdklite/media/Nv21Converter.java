@@ -0,0 +1,374 @@
+package com.sdklite.media;
+
+import android.graphics.Bitmap;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Converts NV21 frames into ARGB pixels with lookup tables, the rows are split
+ * into strips which are converted concurrently.
+ *
+ * <p>
+ * The conversion core depends on nothing but the JDK, so it can be tested and
+ * benchmarked on a plain JVM, only
+ * {@link #convert(byte[], int, int, int, Bitmap, int[])} requires Android.
+ * </p>
+ *
+ * <pre>
+ * final Nv21Converter converter = new Nv21Converter(Runtime.getRuntime().availableProcessors());
+ * final int[] argb = new int[Nv21Converter.getOutputSize(width, height, 2)];
+ * converter.convert(data, width, height, 2, argb);
+ * </pre>
+ */
+public final class Nv21Converter {
+
+    /**
+     * The minimum number of output rows in a strip, smaller images are not
+     * worth splitting
+     */
+    private static final int MIN_STRIP_ROWS = 32;
+
+    private static final int SHIFT = 10;
+
+    private static final int CLAMP_OFFSET = 384;
+
+    private static final int[] Y_TABLE = new int[256];
+    private static final int[] RV_TABLE = new int[256];
+    private static final int[] GU_TABLE = new int[256];
+    private static final int[] GV_TABLE = new int[256];
+    private static final int[] BU_TABLE = new int[256];
+    private static final int[] CLAMP_TABLE = new int[1024];
+
+    static {
+        // BT.601 video range in fixed point
+        for (int i = 0; i < 256; i++) {
+            // the rounding offset is folded into the luma table, the luma
+            // below black goes negative and is clamped with the sum
+            Y_TABLE[i] = Math.round(1.164f * (i - 16) * (1 << SHIFT)) + (1 << (SHIFT - 1));
+            RV_TABLE[i] = Math.round(1.596f * (i - 128) * (1 << SHIFT));
+            GU_TABLE[i] = Math.round(-0.391f * (i - 128) * (1 << SHIFT));
+            GV_TABLE[i] = Math.round(-0.813f * (i - 128) * (1 << SHIFT));
+            BU_TABLE[i] = Math.round(2.018f * (i - 128) * (1 << SHIFT));
+        }
+
+        for (int i = 0; i < CLAMP_TABLE.length; i++) {
+            CLAMP_TABLE[i] = Math.max(0, Math.min(255, i - CLAMP_OFFSET));
+        }
+    }
+
+    private final Executor mExecutor;
+    private final ExecutorService mOwnedExecutor;
+    private final int mParallelism;
+    private final Strip[] mStrips;
+
+    /**
+     * Create a converter which converts on the calling thread only
+     */
+    public Nv21Converter() {
+        this(null, 1);
+    }
+
+    /**
+     * Create a converter with its own worker threads
+     *
+     * @param parallelism
+     *            The number of strips converted concurrently, including the
+     *            calling thread
+     */
+    public Nv21Converter(final int parallelism) {
+        this(null, parallelism);
+    }
+
+    /**
+     * Create a converter running on the specified executor
+     *
+     * @param executor
+     *            The executor to convert strips on, or null to create worker
+     *            threads owned by this converter
+     * @param parallelism
+     *            The number of strips converted concurrently, including the
+     *            calling thread
+     */
+    public Nv21Converter(final Executor executor, final int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("parallelism < 1");
+        }
+
+        this.mParallelism = parallelism;
+        this.mStrips = new Strip[parallelism];
+        for (int i = 0; i < parallelism; i++) {
+            this.mStrips[i] = new Strip();
+        }
+
+        if (null != executor || parallelism <= 1) {
+            this.mOwnedExecutor = null;
+            this.mExecutor = executor;
+        } else {
+            this.mOwnedExecutor = Executors.newFixedThreadPool(parallelism - 1, new ThreadFactory() {
+                final AtomicInteger mCount = new AtomicInteger();
+
+                @Override
+                public Thread newThread(final Runnable r) {
+                    final Thread thread = new Thread(r, "Nv21Converter-" + this.mCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            this.mExecutor = this.mOwnedExecutor;
+        }
+    }
+
+    /**
+     * Returns the number of pixels of the output
+     *
+     * @param width
+     *            The frame width in pixel
+     * @param height
+     *            The frame height in pixel
+     * @param scale
+     *            The downscaling factor, 1 means no downscaling
+     */
+    public static int getOutputSize(final int width, final int height, final int scale) {
+        return (width / scale) * (height / scale);
+    }
+
+    /**
+     * Converts the specified NV21 frame into ARGB pixels without downscaling
+     *
+     * @param nv21
+     *            The NV21 frame
+     * @param width
+     *            The frame width in pixel
+     * @param height
+     *            The frame height in pixel
+     * @param out
+     *            The ARGB pixels, row by row
+     */
+    public void convert(final byte[] nv21, final int width, final int height, final int[] out) {
+        convert(nv21, width, height, 1, out);
+    }
+
+    /**
+     * Converts the specified NV21 frame into ARGB pixels, the output size is
+     * {@code (width / scale) x (height / scale)}
+     *
+     * @param nv21
+     *            The NV21 frame
+     * @param width
+     *            The frame width in pixel
+     * @param height
+     *            The frame height in pixel
+     * @param scale
+     *            The downscaling factor, 1 means no downscaling
+     * @param out
+     *            The ARGB pixels, row by row
+     */
+    public synchronized void convert(final byte[] nv21, final int width, final int height, final int scale, final int[] out) {
+        if (scale < 1) {
+            throw new IllegalArgumentException("scale < 1");
+        }
+
+        if (width <= 0 || height <= 0 || (width & 1) != 0 || (height & 1) != 0) {
+            throw new IllegalArgumentException("Invalid frame size " + width + "x" + height);
+        }
+
+        if (nv21.length < width * height * 3 / 2) {
+            throw new IllegalArgumentException("NV21 buffer too small");
+        }
+
+        final int outWidth = width / scale;
+        final int outHeight = height / scale;
+        if (out.length < outWidth * outHeight) {
+            throw new IllegalArgumentException("Output buffer too small");
+        }
+
+        final int count = null == this.mExecutor ? 1 : Math.max(1, Math.min(this.mParallelism, outHeight / MIN_STRIP_ROWS));
+        if (count <= 1) {
+            convertRows(nv21, width, height, scale, out, 0, outHeight);
+            return;
+        }
+
+        final CountDownLatch latch = new CountDownLatch(count - 1);
+        final int rows = (outHeight + count - 1) / count;
+
+        for (int i = 0; i < count; i++) {
+            final Strip strip = this.mStrips[i];
+            strip.set(nv21, width, height, scale, out, i * rows, Math.min(outHeight, (i + 1) * rows), latch);
+
+            if (i < count - 1) {
+                this.mExecutor.execute(strip);
+            }
+        }
+
+        // The last strip is converted on the calling thread
+        this.mStrips[count - 1].convert();
+
+        // The strips are shared with the workers, never leave before all of them finished
+        boolean interrupted = false;
+        while (true) {
+            try {
+                latch.await();
+                break;
+            } catch (final InterruptedException e) {
+                interrupted = true;
+            }
+        }
+
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+
+        for (int i = 0; i < count; i++) {
+            final Strip strip = this.mStrips[i];
+            final RuntimeException error = strip.mError;
+            strip.clear();
+
+            if (null != error) {
+                throw error;
+            }
+        }
+    }
+
+    /**
+     * Converts the specified NV21 frame into the specified bitmap, the bitmap
+     * must be {@code (width / scale) x (height / scale)}
+     *
+     * @param nv21
+     *            The NV21 frame
+     * @param width
+     *            The frame width in pixel
+     * @param height
+     *            The frame height in pixel
+     * @param scale
+     *            The downscaling factor, 1 means no downscaling
+     * @param bitmap
+     *            The mutable bitmap to write into
+     * @param pixels
+     *            The intermediate pixels with at least {@link #getOutputSize(int, int, int)} elements
+     */
+    public void convert(final byte[] nv21, final int width, final int height, final int scale, final Bitmap bitmap, final int[] pixels) {
+        final int outWidth = width / scale;
+        final int outHeight = height / scale;
+        if (bitmap.getWidth() != outWidth || bitmap.getHeight() != outHeight) {
+            throw new IllegalArgumentException("Bitmap size mismatch");
+        }
+
+        convert(nv21, width, height, scale, pixels);
+        bitmap.setPixels(pixels, 0, outWidth, 0, 0, outWidth, outHeight);
+    }
+
+    /**
+     * Shuts down the worker threads if they are owned by this converter
+     */
+    public void shutdown() {
+        if (null != this.mOwnedExecutor) {
+            this.mOwnedExecutor.shutdown();
+        }
+    }
+
+    /**
+     * Converts the output rows in range [fromRow, toRow)
+     */
+    static void convertRows(final byte[] nv21, final int width, final int height, final int scale, final int[] out, final int fromRow, final int toRow) {
+        final int frameSize = width * height;
+        final int outWidth = width / scale;
+
+        for (int oy = fromRow; oy < toRow; oy++) {
+            final int sy = oy * scale;
+            final int yOffset = sy * width;
+            final int uvOffset = frameSize + (sy >> 1) * width;
+            int o = oy * outWidth;
+
+            if (1 == scale) {
+                // two pixels share the same chroma
+                for (int x = 0; x < width; x += 2) {
+                    final int v = nv21[uvOffset + x] & 0xff;
+                    final int u = nv21[uvOffset + x + 1] & 0xff;
+                    final int rv = RV_TABLE[v];
+                    final int guv = GU_TABLE[u] + GV_TABLE[v];
+                    final int bu = BU_TABLE[u];
+
+                    final int y0 = Y_TABLE[nv21[yOffset + x] & 0xff];
+                    out[o++] = toArgb(y0, rv, guv, bu);
+
+                    final int y1 = Y_TABLE[nv21[yOffset + x + 1] & 0xff];
+                    out[o++] = toArgb(y1, rv, guv, bu);
+                }
+            } else {
+                for (int ox = 0; ox < outWidth; ox++) {
+                    final int sx = ox * scale;
+                    final int uv = uvOffset + (sx & ~1);
+                    final int v = nv21[uv] & 0xff;
+                    final int u = nv21[uv + 1] & 0xff;
+                    final int y = Y_TABLE[nv21[yOffset + sx] & 0xff];
+                    out[o++] = toArgb(y, RV_TABLE[v], GU_TABLE[u] + GV_TABLE[v], BU_TABLE[u]);
+                }
+            }
+        }
+    }
+
+    private static int toArgb(final int y, final int rv, final int guv, final int bu) {
+        final int r = CLAMP_TABLE[((y + rv) >> SHIFT) + CLAMP_OFFSET];
+        final int g = CLAMP_TABLE[((y + guv) >> SHIFT) + CLAMP_OFFSET];
+        final int b = CLAMP_TABLE[((y + bu) >> SHIFT) + CLAMP_OFFSET];
+        return 0xff000000 | (r << 16) | (g << 8) | b;
+    }
+
+    /**
+     * A strip of output rows, the strips are reused across conversions
+     */
+    private static final class Strip implements Runnable {
+
+        private byte[] mNv21;
+        private int[] mOut;
+        private int mWidth;
+        private int mHeight;
+        private int mScale;
+        private int mFromRow;
+        private int mToRow;
+        private CountDownLatch mLatch;
+        private volatile RuntimeException mError;
+
+        void set(final byte[] nv21, final int width, final int height, final int scale, final int[] out, final int fromRow, final int toRow, final CountDownLatch latch) {
+            this.mNv21 = nv21;
+            this.mWidth = width;
+            this.mHeight = height;
+            this.mScale = scale;
+            this.mOut = out;
+            this.mFromRow = fromRow;
+            this.mToRow = toRow;
+            this.mLatch = latch;
+            this.mError = null;
+        }
+
+        void clear() {
+            this.mNv21 = null;
+            this.mOut = null;
+            this.mLatch = null;
+            this.mError = null;
+        }
+
+        void convert() {
+            try {
+                convertRows(this.mNv21, this.mWidth, this.mHeight, this.mScale, this.mOut, this.mFromRow, this.mToRow);
+            } catch (final RuntimeException e) {
+                this.mError = e;
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                convert();
+            } finally {
+                this.mLatch.countDown();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,88 @@
+package com.sdklite.media;
+
+import android.graphics.ImageFormat;
+
+/**
+ * A fixed size pool of preview frame buffers which are sized from the negotiated preview size
+ */
+final class PreviewBufferPool {
+
+    /**
+     * The default number of buffers, one for the frame being dispatched, one
+     * for the frame being filled by the camera, and a spare one
+     */
+    static final int DEFAULT_CAPACITY = 3;
+
+    private final int mCapacity;
+
+    private volatile byte[][] mBuffers = new byte[0][];
+    private volatile int mWidth;
+    private volatile int mHeight;
+    private volatile int mBufferSize;
+
+    PreviewBufferPool() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    PreviewBufferPool(final int capacity) {
+        this.mCapacity = capacity;
+    }
+
+    /**
+     * Resizes the buffers with the specified frame size and format, the buffers
+     * are only reallocated if the frame size changed
+     *
+     * @param width
+     *            The frame width in pixel
+     * @param height
+     *            The frame height in pixel
+     * @param format
+     *            The image format
+     * @return true if the buffers reallocated
+     */
+    synchronized boolean resize(final int width, final int height, final int format) {
+        final int size = width * height * ImageFormat.getBitsPerPixel(format) / 8;
+        if (size == this.mBufferSize && this.mBuffers.length == this.mCapacity) {
+            this.mWidth = width;
+            this.mHeight = height;
+            return false;
+        }
+
+        final byte[][] buffers = new byte[this.mCapacity][];
+        for (int i = 0; i < buffers.length; i++) {
+            buffers[i] = new byte[size];
+        }
+
+        this.mBuffers = buffers;
+        this.mBufferSize = size;
+        this.mWidth = width;
+        this.mHeight = height;
+        return true;
+    }
+
+    /**
+     * Returns whether the specified buffer belongs to the current generation of buffers
+     *
+     * @param buffer
+     *            The frame buffer
+     */
+    boolean accept(final byte[] buffer) {
+        return buffer.length == this.mBufferSize;
+    }
+
+    byte[][] getBuffers() {
+        return this.mBuffers;
+    }
+
+    int getWidth() {
+        return this.mWidth;
+    }
+
+    int getHeight() {
+        return this.mHeight;
+    }
+
+    int getBufferSize() {
+        return this.mBufferSize;
+    }
+}
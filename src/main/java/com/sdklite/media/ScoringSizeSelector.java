@@ -0,0 +1,126 @@
+package com.sdklite.media;
+
+import java.util.List;
+
+/**
+ * The default {@link SizeSelector} which scores every size by aspect ratio,
+ * pixel count against the surface, megapixel budget and frame rate, the size
+ * with the lowest score wins
+ */
+public class ScoringSizeSelector implements SizeSelector {
+
+    /**
+     * The default megapixel budget of preview
+     */
+    public static final float DEFAULT_MAX_PREVIEW_MEGAPIXELS = 2.1f;
+
+    /**
+     * The default megapixel budget of picture, which is further capped by {@link CaptureProfile}
+     */
+    public static final float DEFAULT_MAX_PICTURE_MEGAPIXELS = 24.0f;
+
+    /**
+     * The default target frame rate of preview
+     */
+    public static final int DEFAULT_TARGET_FPS = 30;
+
+    private static final float ASPECT_RATIO_WEIGHT = 10f;
+    private static final float UNDERSIZE_WEIGHT = 2f;
+    private static final float OVERSIZE_WEIGHT = 0.5f;
+    private static final float FPS_WEIGHT = 4f;
+    private static final float OVER_BUDGET_PENALTY = 1000f;
+
+    private final int mMaxPreviewPixels;
+    private final int mMaxPicturePixels;
+    private final int mTargetFps;
+
+    /**
+     * Create an instance with the default budgets
+     */
+    public ScoringSizeSelector() {
+        this(DEFAULT_MAX_PREVIEW_MEGAPIXELS, DEFAULT_MAX_PICTURE_MEGAPIXELS, DEFAULT_TARGET_FPS);
+    }
+
+    /**
+     * Create an instance with the specified budgets
+     *
+     * @param maxPreviewMegapixels
+     *            The megapixel budget of preview
+     * @param maxPictureMegapixels
+     *            The megapixel budget of picture
+     * @param targetFps
+     *            The target frame rate of preview
+     */
+    public ScoringSizeSelector(final float maxPreviewMegapixels, final float maxPictureMegapixels, final int targetFps) {
+        this.mMaxPreviewPixels = (int) (maxPreviewMegapixels * 1000000);
+        this.mMaxPicturePixels = (int) (maxPictureMegapixels * 1000000);
+        this.mTargetFps = targetFps;
+    }
+
+    @Override
+    public CameraCapabilities.Size selectPreviewSize(final CameraCapabilities capabilities, final int width, final int height) {
+        final List<CameraCapabilities.Size> sizes = capabilities.getPreviewSizes();
+        final float reqRatio = ((float) width) / height;
+        final int reqPixels = Math.min(width * height, this.mMaxPreviewPixels);
+        float minScore = Float.MAX_VALUE;
+        CameraCapabilities.Size retSize = null;
+
+        for (final CameraCapabilities.Size size : sizes) {
+            final int pixels = size.getPixels();
+            float score = ASPECT_RATIO_WEIGHT * Math.abs(reqRatio - ((float) size.width) / size.height);
+
+            if (pixels < reqPixels) {
+                // looks blurry when scaled up to the surface
+                score += UNDERSIZE_WEIGHT * (reqPixels - pixels) / reqPixels;
+            } else {
+                // wastes bandwidth of camera and preview frame consumers
+                score += OVERSIZE_WEIGHT * Math.min(1f, ((float) (pixels - reqPixels)) / reqPixels);
+            }
+
+            if (pixels > this.mMaxPreviewPixels) {
+                score += OVER_BUDGET_PENALTY + pixels / (float) this.mMaxPreviewPixels;
+            }
+
+            final int fps = capabilities.getMaxPreviewFps(size);
+            if (fps > 0 && fps < this.mTargetFps) {
+                score += FPS_WEIGHT * (this.mTargetFps - fps) / this.mTargetFps;
+            }
+
+            if (score < minScore) {
+                minScore = score;
+                retSize = size;
+            }
+        }
+
+        return retSize;
+    }
+
+    @Override
+    public CameraCapabilities.Size selectPictureSize(final CameraCapabilities capabilities, final CameraCapabilities.Size previewSize, final float maxMegapixels) {
+        final List<CameraCapabilities.Size> sizes = capabilities.getPictureSizes();
+        final int maxPixels = maxMegapixels > 0 ? Math.min(this.mMaxPicturePixels, (int) (maxMegapixels * 1000000)) : this.mMaxPicturePixels;
+        final float reqRatio = ((float) previewSize.width) / previewSize.height;
+        float minScore = Float.MAX_VALUE;
+        CameraCapabilities.Size retSize = null;
+
+        for (final CameraCapabilities.Size size : sizes) {
+            final int pixels = size.getPixels();
+            float score = ASPECT_RATIO_WEIGHT * Math.abs(reqRatio - ((float) size.width) / size.height);
+
+            if (pixels > maxPixels) {
+                score += OVER_BUDGET_PENALTY + pixels / (float) maxPixels;
+            } else {
+                // the larger the better within the budget
+                score += 1f - pixels / (float) maxPixels;
+            }
+
+            if (score < minScore) {
+                minScore = score;
+                retSize = size;
+            }
+        }
+
+        return retSize;
+    }
+
+}
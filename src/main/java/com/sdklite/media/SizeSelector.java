@@ -0,0 +1,37 @@
+package com.sdklite.media;
+
+/**
+ * The policy for selecting preview size and picture size
+ *
+ * @see ScoringSizeSelector
+ */
+public interface SizeSelector {
+
+    /**
+     * Selects the preview size for the specified surface size
+     *
+     * @param capabilities
+     *            The camera capabilities
+     * @param width
+     *            The surface width in terms of camera hardware, which is
+     *            always larger than height unless the surface is square
+     * @param height
+     *            The surface height in terms of camera hardware
+     * @return one of the supported preview sizes
+     */
+    CameraCapabilities.Size selectPreviewSize(final CameraCapabilities capabilities, final int width, final int height);
+
+    /**
+     * Selects the picture size for the specified preview size
+     *
+     * @param capabilities
+     *            The camera capabilities
+     * @param previewSize
+     *            The selected preview size
+     * @param maxMegapixels
+     *            The megapixel cap of the current {@link CaptureProfile}, 0 means unlimited
+     * @return one of the supported picture sizes
+     */
+    CameraCapabilities.Size selectPictureSize(final CameraCapabilities capabilities, final CameraCapabilities.Size previewSize, final float maxMegapixels);
+
+}
@@ -0,0 +1,197 @@
+package com.sdklite.media;
+
+import android.os.Process;
+import android.os.SystemClock;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Caches the available space of external storage, the space is refreshed on
+ * a background thread once it is older than the refresh interval or once the
+ * refresh bytes have been written since the last refresh, in between the
+ * written bytes are deducted from the cached space
+ *
+ * <p>
+ * Reading the space never touches the file system, the stale space is
+ * returned while it is being refreshed, and the space is unknown until the
+ * first refresh finished.
+ * </p>
+ *
+ * @see MediaStorage#getStorageMonitor()
+ */
+public final class StorageMonitor {
+
+    /**
+     * The default refresh interval in milliseconds
+     */
+    public static final long DEFAULT_REFRESH_INTERVAL = 5000L;
+
+    /**
+     * The default bytes written before refreshing
+     */
+    public static final long DEFAULT_REFRESH_BYTES = 32L * 1024 * 1024;
+
+    private static final String TAG = "StorageMonitor";
+
+    private final ExecutorService mExecutor = new ThreadPoolExecutor(0, 1, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable r) {
+            return new Thread(r, TAG) {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    super.run();
+                }
+            };
+        }
+    });
+
+    private final Runnable mRefreshTask = new Runnable() {
+        @Override
+        public void run() {
+            long space = MediaStorage.DISK_UNKNOWN_SIZE;
+
+            try {
+                space = MediaStorage.getAvailableSpace();
+            } finally {
+                synchronized (StorageMonitor.this) {
+                    mAvailableSpace = space;
+                    mRefreshTime = SystemClock.elapsedRealtime();
+                    mRefreshing = false;
+                }
+            }
+        }
+    };
+
+    private long mRefreshInterval = DEFAULT_REFRESH_INTERVAL;
+    private long mRefreshBytes = DEFAULT_REFRESH_BYTES;
+
+    private long mAvailableSpace = MediaStorage.DISK_UNKNOWN_SIZE;
+    private long mRefreshTime;
+    private long mBytesWritten;
+    private boolean mStale = true;
+    private boolean mRefreshing;
+
+    StorageMonitor() {
+    }
+
+    /**
+     * Sets the maximum age of the cached space
+     *
+     * @param interval
+     *            The refresh interval in milliseconds
+     */
+    public synchronized void setRefreshInterval(final long interval) {
+        if (interval < 0) {
+            throw new IllegalArgumentException("interval < 0");
+        }
+
+        this.mRefreshInterval = interval;
+    }
+
+    /**
+     * Sets the bytes written before the cached space is refreshed
+     *
+     * @param bytes
+     *            The refresh bytes
+     */
+    public synchronized void setRefreshBytes(final long bytes) {
+        if (bytes < 0) {
+            throw new IllegalArgumentException("bytes < 0");
+        }
+
+        this.mRefreshBytes = bytes;
+    }
+
+    /**
+     * Returns the cached available space of external storage in bytes, it is
+     * refreshed in background if stale
+     *
+     * @return the available space in bytes or negative value if external
+     *         storage unavailable or the space unknown yet
+     * @see MediaStorage#getAvailableSpace()
+     */
+    public long getAvailableSpace() {
+        final long space;
+
+        synchronized (this) {
+            space = this.mAvailableSpace;
+        }
+
+        refresh();
+        return space;
+    }
+
+    /**
+     * Returns whether the specified bytes can be written with the specified
+     * reserve left, the unknown space is assumed to be enough
+     *
+     * @param bytes
+     *            The bytes to write
+     * @param reserve
+     *            The bytes to keep free
+     */
+    public boolean hasSpace(final long bytes, final long reserve) {
+        final long space = getAvailableSpace();
+        if (MediaStorage.DISK_UNKNOWN_SIZE == space) {
+            return true;
+        }
+
+        return space >= 0 && space - reserve >= bytes;
+    }
+
+    /**
+     * Marks the cached space stale and refreshes it in background, e.g. the
+     * storage mounted or files deleted
+     */
+    public void invalidate() {
+        synchronized (this) {
+            this.mStale = true;
+        }
+
+        refresh();
+    }
+
+    /**
+     * Refreshes the cached space in background if it is stale and not being
+     * refreshed
+     */
+    void refresh() {
+        synchronized (this) {
+            if (this.mRefreshing) {
+                return;
+            }
+
+            final long now = SystemClock.elapsedRealtime();
+            if (!this.mStale && now - this.mRefreshTime < this.mRefreshInterval && this.mBytesWritten < this.mRefreshBytes) {
+                return;
+            }
+
+            // The bytes written from now on count toward the next refresh
+            this.mRefreshing = true;
+            this.mBytesWritten = 0;
+            this.mStale = false;
+        }
+
+        this.mExecutor.execute(this.mRefreshTask);
+    }
+
+    /**
+     * Deducts the written bytes from the cached space
+     *
+     * @param bytes
+     *            The bytes written
+     */
+    synchronized void onBytesWritten(final long bytes) {
+        this.mBytesWritten += bytes;
+
+        if (this.mAvailableSpace > 0) {
+            this.mAvailableSpace = Math.max(0, this.mAvailableSpace - bytes);
+        }
+    }
+
+}
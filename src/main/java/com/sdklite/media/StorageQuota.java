@@ -0,0 +1,460 @@
+package com.sdklite.media;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Process;
+import android.provider.MediaStore;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the captures of this library within a storage budget, the captures
+ * are indexed by the time taken, and the oldest ones are evicted on a
+ * background thread once the budget is exceeded, one capture per task, so
+ * that capturing is never blocked by eviction
+ *
+ * <pre>
+ * MediaStorage.getStorageQuota().setBudget(context, 2L * 1024 * 1024 * 1024);
+ * </pre>
+ *
+ * <p>
+ * The paths of the captures persisted while a budget is set are recorded in
+ * an index file in the private storage of the app, and the index is loaded
+ * from media store once a budget is set, only the rows of the recorded paths
+ * are indexed, so the files of the other apps in {@code DCIM/Camera} are
+ * never evicted, even if they are named the same way. The captures persisted
+ * while the quota is disabled are never evicted either.
+ * </p>
+ *
+ * @see MediaStorage#getStorageQuota()
+ */
+public final class StorageQuota {
+
+    private static final String TAG = "StorageQuota";
+
+    /**
+     * The file in the private storage of the app which records the paths of
+     * the captures, one per line
+     */
+    private static final String INDEX_FILENAME = "storage_quota.index";
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final String[] PROJECTION = {
+        MediaStore.MediaColumns._ID,
+        MediaStore.MediaColumns.DATA,
+        MediaStore.MediaColumns.SIZE,
+        MediaStore.Images.ImageColumns.DATE_TAKEN,
+    };
+
+    private static final Comparator<Capture> OLDEST_FIRST = new Comparator<Capture>() {
+        @Override
+        public int compare(final Capture lhs, final Capture rhs) {
+            if (lhs.dateTaken != rhs.dateTaken) {
+                return lhs.dateTaken < rhs.dateTaken ? -1 : 1;
+            }
+
+            return lhs.serial < rhs.serial ? -1 : (lhs.serial == rhs.serial ? 0 : 1);
+        }
+    };
+
+    private static final class Capture {
+
+        final Uri uri;
+        final String path;
+        final long size;
+        final long dateTaken;
+        final long serial;
+
+        Capture(final Uri uri, final String path, final long size, final long dateTaken, final long serial) {
+            this.uri = uri;
+            this.path = path;
+            this.size = size;
+            this.dateTaken = dateTaken;
+            this.serial = serial;
+        }
+    }
+
+    private final ExecutorService mExecutor = new ThreadPoolExecutor(0, 1, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable r) {
+            return new Thread(r, TAG) {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    super.run();
+                }
+            };
+        }
+    });
+
+    private final TreeSet<Capture> mCaptures = new TreeSet<Capture>(OLDEST_FIRST);
+    private final Map<String, Capture> mCapturesByPath = new HashMap<String, Capture>();
+
+    private ContentResolver mResolver;
+    private File mIndex;
+    private long mBudget;
+    private long mUsage;
+    private long mSerial;
+    private int mGeneration;
+    private boolean mLoaded;
+    private boolean mEvicting;
+
+    private final Runnable mEvictTask = new Runnable() {
+        @Override
+        public void run() {
+            evictOldest();
+        }
+    };
+
+    StorageQuota() {
+    }
+
+    /**
+     * Sets the storage budget of the captures, the index is loaded from
+     * media store in background if the quota was disabled, only the captures
+     * persisted by this library while a budget is set are evicted
+     *
+     * @param context
+     *            The context whose private storage keeps the paths of the
+     *            captures
+     * @param budget
+     *            The maximum bytes of the captures, 0 disables the quota,
+     *            which is the default
+     */
+    public void setBudget(final Context context, final long budget) {
+        if (budget < 0) {
+            throw new IllegalArgumentException("budget < 0");
+        }
+
+        if (budget > 0 && null == context) {
+            throw new NullPointerException("context is null");
+        }
+
+        final ContentResolver resolver = budget > 0 ? context.getContentResolver() : null;
+        final File index = budget > 0 ? new File(context.getFilesDir(), INDEX_FILENAME) : null;
+        final int generation;
+
+        synchronized (this) {
+            if (0 == budget) {
+                this.mResolver = null;
+                this.mIndex = null;
+                this.mBudget = 0;
+                this.mGeneration++;
+                this.mLoaded = false;
+                this.mCaptures.clear();
+                this.mCapturesByPath.clear();
+                this.mUsage = 0;
+                return;
+            }
+
+            final boolean load = null == this.mResolver;
+            this.mResolver = resolver;
+            this.mIndex = index;
+            this.mBudget = budget;
+
+            if (!load) {
+                scheduleEviction();
+                return;
+            }
+
+            generation = ++this.mGeneration;
+        }
+
+        this.mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                load(resolver, index, generation);
+            }
+        });
+    }
+
+    /**
+     * Returns the maximum bytes of the captures, 0 means the quota is
+     * disabled
+     */
+    public synchronized long getBudget() {
+        return this.mBudget;
+    }
+
+    /**
+     * Returns the bytes of the indexed captures
+     */
+    public synchronized long getUsage() {
+        return this.mUsage;
+    }
+
+    /**
+     * Returns the number of the indexed captures
+     */
+    public synchronized int getCount() {
+        return this.mCaptures.size();
+    }
+
+    /**
+     * Indexes a persisted capture, the oldest captures are evicted if the
+     * budget is exceeded
+     *
+     * @param uri
+     *            The content uri of the capture
+     * @param path
+     *            The file path of the capture
+     * @param size
+     *            The file size in bytes
+     * @param dateTaken
+     *            The time in milliseconds when the capture taken
+     */
+    synchronized void onCaptureAdded(final Uri uri, final String path, final long size, final long dateTaken) {
+        if (0 == this.mBudget || null == uri || null == path) {
+            return;
+        }
+
+        if (!add(uri, path, size, dateTaken)) {
+            return;
+        }
+
+        // Recorded in the order of the index rewrites, see writeIndex
+        final File index = this.mIndex;
+        this.mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                appendIndex(index, path);
+            }
+        });
+
+        scheduleEviction();
+    }
+
+    private boolean add(final Uri uri, final String path, final long size, final long dateTaken) {
+        if (this.mCapturesByPath.containsKey(path)) {
+            return false;
+        }
+
+        final Capture capture = new Capture(uri, path, size, dateTaken, this.mSerial++);
+        this.mCaptures.add(capture);
+        this.mCapturesByPath.put(path, capture);
+        this.mUsage += size;
+        return true;
+    }
+
+    private void load(final ContentResolver resolver, final File index, final int generation) {
+        final Set<String> paths = readIndex(index);
+        if (null == paths) {
+            return;
+        }
+
+        final List<Capture> captures = new ArrayList<Capture>();
+        query(resolver, MediaStore.Images.Media.EXTERNAL_CONTENT_URI, paths, captures);
+        query(resolver, MediaStore.Video.Media.EXTERNAL_CONTENT_URI, paths, captures);
+
+        final List<String> indexed;
+
+        synchronized (this) {
+            // The quota has been disabled or reset while loading
+            if (generation != this.mGeneration) {
+                return;
+            }
+
+            for (final Capture capture : captures) {
+                add(capture.uri, capture.path, capture.size, capture.dateTaken);
+            }
+
+            Log.v(TAG, "Indexed " + this.mCaptures.size() + " captures of " + this.mUsage + " bytes");
+            this.mLoaded = true;
+            indexed = new ArrayList<String>(this.mCapturesByPath.keySet());
+            scheduleEviction();
+        }
+
+        // Drop the paths deleted by the user or the other apps
+        writeIndex(index, indexed);
+    }
+
+    /**
+     * Reads the recorded paths of the captures
+     *
+     * @return the recorded paths, or null if the index can not be read
+     */
+    private static Set<String> readIndex(final File index) {
+        final Set<String> paths = new HashSet<String>();
+        BufferedReader reader = null;
+
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(index), UTF_8));
+            for (String line; null != (line = reader.readLine());) {
+                if (line.length() > 0) {
+                    paths.add(line);
+                }
+            }
+        } catch (final FileNotFoundException e) {
+            // Nothing recorded yet
+        } catch (final IOException e) {
+            Log.e(TAG, "Failed to read " + index, e);
+            return null;
+        } finally {
+            if (null != reader) {
+                try {
+                    reader.close();
+                } catch (final IOException e) {
+                }
+            }
+        }
+
+        return paths;
+    }
+
+    /**
+     * Records the path of a capture at the end of the index
+     */
+    private static void appendIndex(final File index, final String path) {
+        FileOutputStream out = null;
+
+        try {
+            out = new FileOutputStream(index, true);
+            out.write((path + "\n").getBytes(UTF_8));
+        } catch (final IOException e) {
+            Log.e(TAG, "Failed to record " + path, e);
+        } finally {
+            if (null != out) {
+                try {
+                    out.close();
+                } catch (final IOException e) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Replaces the index with the specified paths, it runs on the executor,
+     * so the paths appended after the snapshot taken are never lost
+     */
+    private static void writeIndex(final File index, final Collection<String> paths) {
+        final StringBuilder builder = new StringBuilder();
+        for (final String path : paths) {
+            builder.append(path).append('\n');
+        }
+
+        MediaStorage.writeFile(index.getPath(), builder.toString().getBytes(UTF_8), MediaStorage.Durability.NONE);
+    }
+
+    private static void query(final ContentResolver resolver, final Uri table, final Set<String> paths, final List<Capture> captures) {
+        final String selection = MediaStore.MediaColumns.DATA + " LIKE ?";
+        final String[] args = { MediaStorage.getCaptureDirectory() + File.separator + "%" };
+        final Cursor cursor;
+
+        try {
+            cursor = resolver.query(table, PROJECTION, selection, args, null);
+        } catch (final Throwable t) {
+            Log.e(TAG, "Failed to query " + table, t);
+            return;
+        }
+
+        if (null == cursor) {
+            return;
+        }
+
+        try {
+            while (cursor.moveToNext()) {
+                final String path = cursor.getString(1);
+                if (null == path || !paths.contains(path)) {
+                    continue;
+                }
+
+                final long size = cursor.getLong(2);
+                captures.add(new Capture(ContentUris.withAppendedId(table, cursor.getLong(0)), path, size > 0 ? size : new File(path).length(), cursor.getLong(3), 0));
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private void scheduleEviction() {
+        if (this.mEvicting || this.mUsage <= this.mBudget || this.mCaptures.isEmpty()) {
+            return;
+        }
+
+        this.mEvicting = true;
+        this.mExecutor.execute(this.mEvictTask);
+    }
+
+    /**
+     * Evicts the oldest capture, and schedules the next eviction if the
+     * budget is still exceeded
+     */
+    private void evictOldest() {
+        final Capture capture;
+        final ContentResolver resolver;
+        File index = null;
+        List<String> indexed = null;
+
+        synchronized (this) {
+            if (0 == this.mBudget || this.mUsage <= this.mBudget || this.mCaptures.isEmpty()) {
+                this.mEvicting = false;
+                index = this.mLoaded ? this.mIndex : null;
+                indexed = new ArrayList<String>(this.mCapturesByPath.keySet());
+                capture = null;
+                resolver = null;
+            } else {
+                capture = this.mCaptures.pollFirst();
+                this.mCapturesByPath.remove(capture.path);
+                this.mUsage -= capture.size;
+                resolver = this.mResolver;
+            }
+        }
+
+        if (null == capture) {
+            // Drop the evicted paths from the index once the budget met
+            if (null != index) {
+                writeIndex(index, indexed);
+            }
+            return;
+        }
+
+        final File file = new File(capture.path);
+        if (file.exists() && !file.delete()) {
+            Log.w(TAG, "Failed to delete " + capture.path);
+        }
+
+        // The thumbnail of a picture is named after the picture
+        final String name = file.getName();
+        final int dot = name.lastIndexOf('.');
+        final File thumbnail = new File(MediaStorage.generateThumbnailPath((dot < 0 ? name : name.substring(0, dot)) + ".jpg"));
+        if (thumbnail.exists()) {
+            thumbnail.delete();
+        }
+
+        MediaStorage.delete(resolver, capture.uri);
+        MediaStorage.getStorageMonitor().invalidate();
+        Log.v(TAG, "Evicted " + capture.path);
+
+        synchronized (this) {
+            this.mEvicting = false;
+            scheduleEviction();
+        }
+    }
+
+}
@@ -0,0 +1,148 @@
+package com.sdklite.media;
+
+import android.media.CamcorderProfile;
+import android.media.MediaRecorder;
+import android.os.Build;
+import android.util.Log;
+
+import java.util.List;
+
+/**
+ * The immutable encoder profile of video recording
+ */
+public final class VideoProfile {
+
+    private static final String TAG = "VideoProfile";
+
+    /**
+     * The output format
+     *
+     * @see MediaRecorder.OutputFormat
+     */
+    public final int fileFormat;
+
+    /**
+     * The video encoder
+     *
+     * @see MediaRecorder.VideoEncoder
+     */
+    public final int videoCodec;
+
+    /**
+     * The video bit rate in bits per second
+     */
+    public final int videoBitRate;
+
+    /**
+     * The video frame rate in frames per second
+     */
+    public final int videoFrameRate;
+
+    /**
+     * The video frame width in pixel
+     */
+    public final int videoFrameWidth;
+
+    /**
+     * The video frame height in pixel
+     */
+    public final int videoFrameHeight;
+
+    /**
+     * The audio encoder
+     *
+     * @see MediaRecorder.AudioEncoder
+     */
+    public final int audioCodec;
+
+    /**
+     * The audio bit rate in bits per second
+     */
+    public final int audioBitRate;
+
+    /**
+     * The audio sample rate in hertz
+     */
+    public final int audioSampleRate;
+
+    /**
+     * The number of audio channels
+     */
+    public final int audioChannels;
+
+    public VideoProfile(final int fileFormat, final int videoCodec, final int videoBitRate, final int videoFrameRate, final int videoFrameWidth, final int videoFrameHeight,
+            final int audioCodec, final int audioBitRate, final int audioSampleRate, final int audioChannels) {
+        this.fileFormat = fileFormat;
+        this.videoCodec = videoCodec;
+        this.videoBitRate = videoBitRate;
+        this.videoFrameRate = videoFrameRate;
+        this.videoFrameWidth = videoFrameWidth;
+        this.videoFrameHeight = videoFrameHeight;
+        this.audioCodec = audioCodec;
+        this.audioBitRate = audioBitRate;
+        this.audioSampleRate = audioSampleRate;
+        this.audioChannels = audioChannels;
+    }
+
+    /**
+     * Returns the file extension of the output format
+     */
+    public String getFileExtension() {
+        return MediaRecorder.OutputFormat.THREE_GPP == this.fileFormat ? ".3gp" : ".mp4";
+    }
+
+    @Override
+    public String toString() {
+        return this.videoFrameWidth + "x" + this.videoFrameHeight + "@" + this.videoFrameRate + "fps " + this.videoBitRate + "bps";
+    }
+
+    /**
+     * Create the profile from the specified camcorder profile
+     *
+     * @param profile
+     *            The camcorder profile
+     */
+    static VideoProfile from(final CamcorderProfile profile) {
+        return new VideoProfile(profile.fileFormat, profile.videoCodec, profile.videoBitRate, profile.videoFrameRate, profile.videoFrameWidth, profile.videoFrameHeight,
+                profile.audioCodec, profile.audioBitRate, profile.audioSampleRate, profile.audioChannels);
+    }
+
+    /**
+     * Selects the highest quality camcorder profile whose video size is
+     * supported by the specified camera
+     *
+     * @param cameraId
+     *            The camera id
+     * @param capabilities
+     *            The camera capabilities
+     * @return the video profile or null if no camcorder profile available
+     */
+    static VideoProfile select(final int cameraId, final CameraCapabilities capabilities) {
+        final int[] qualities = Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB
+                ? new int[] { CamcorderProfile.QUALITY_1080P, CamcorderProfile.QUALITY_720P, CamcorderProfile.QUALITY_480P, CamcorderProfile.QUALITY_HIGH, CamcorderProfile.QUALITY_LOW }
+                : new int[] { CamcorderProfile.QUALITY_HIGH, CamcorderProfile.QUALITY_LOW };
+        final List<CameraCapabilities.Size> sizes = capabilities.getVideoSizes();
+
+        for (final int quality : qualities) {
+            try {
+                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB && !CamcorderProfile.hasProfile(cameraId, quality)) {
+                    continue;
+                }
+
+                final CamcorderProfile profile = CamcorderProfile.get(cameraId, quality);
+                if (null == profile) {
+                    continue;
+                }
+
+                if (sizes.isEmpty() || sizes.contains(new CameraCapabilities.Size(profile.videoFrameWidth, profile.videoFrameHeight))) {
+                    return from(profile);
+                }
+            } catch (final RuntimeException e) {
+                Log.w(TAG, "Camcorder profile " + quality + " of camera " + cameraId + " unavailable", e);
+            }
+        }
+
+        return null;
+    }
+
+}
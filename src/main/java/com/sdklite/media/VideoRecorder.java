@@ -0,0 +1,60 @@
+package com.sdklite.media;
+
+import android.hardware.Camera;
+import android.view.Surface;
+
+import java.io.IOException;
+
+/**
+ * The video encoder driven by {@link CameraDevice}, all methods are called on
+ * the recording thread of the camera device, the default implementation is
+ * based on {@link android.media.MediaRecorder}, and it can be replaced by a
+ * fake one by {@link CameraDevice#setVideoRecorder(VideoRecorder)}
+ */
+public interface VideoRecorder {
+
+    /**
+     * Prepares recording
+     *
+     * @param camera
+     *            The unlocked legacy camera to record from, or null if the
+     *            frames are delivered to {@link #getSurface()} by camera2
+     * @param previewSurface
+     *            The preview surface of the legacy camera, or null for camera2
+     * @param profile
+     *            The encoder profile
+     * @param audio
+     *            A boolean indicates whether to record audio
+     * @param orientation
+     *            The orientation hint in degrees
+     * @param path
+     *            The output file path
+     * @throws IOException
+     *             if failed to prepare
+     */
+    void prepare(final Camera camera, final Surface previewSurface, final VideoProfile profile, final boolean audio, final int orientation, final String path) throws IOException;
+
+    /**
+     * Returns the input surface after prepared, or null if recording from the legacy camera
+     */
+    Surface getSurface();
+
+    /**
+     * Starts recording
+     */
+    void start();
+
+    /**
+     * Stops recording
+     *
+     * @throws RuntimeException
+     *             if nothing has been recorded
+     */
+    void stop();
+
+    /**
+     * Releases the encoder, it can be prepared again after released
+     */
+    void release();
+
+}
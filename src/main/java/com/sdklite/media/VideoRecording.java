@@ -0,0 +1,189 @@
+package com.sdklite.media;
+
+import android.Manifest;
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.hardware.Camera;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.util.Log;
+import android.view.Surface;
+
+import java.io.File;
+import java.util.Date;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A video recording, the recorder is driven on the recording thread, so that
+ * neither the preview nor the dispatch thread is blocked by the encoder
+ */
+final class VideoRecording {
+
+    private static final String TAG = "VideoRecording";
+
+    /**
+     * The recording thread shared by all devices, which exits once idle
+     */
+    private static final ExecutorService EXECUTOR = new ThreadPoolExecutor(0, 1, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable r) {
+            return new Thread(r, "VideoRecorder");
+        }
+    });
+
+    final CameraDevice device;
+    final Context context;
+    final VideoRecorder recorder;
+    final VideoProfile profile;
+    final CameraDevice.OnRecordingCallback callback;
+    final int orientation;
+    final String title;
+    final String path;
+    final long timestamp;
+
+    /**
+     * Whether the recorder has been asked to start, accessed on the camera thread only
+     */
+    boolean startRequested;
+
+    /**
+     * Whether the recorder has been asked to stop, accessed on the camera thread only
+     */
+    boolean stopRequested;
+
+    private volatile boolean mStarted;
+    private boolean mStopped;
+    private long mStartTime;
+    private long mDuration;
+
+    VideoRecording(final CameraDevice device, final Context context, final VideoRecorder recorder, final VideoProfile profile, final int orientation, final CameraDevice.OnRecordingCallback callback) {
+        this.device = device;
+        this.context = context;
+        this.recorder = recorder;
+        this.profile = profile;
+        this.orientation = orientation;
+        this.callback = callback;
+        this.title = MediaStorage.generateFilename();
+        this.path = MediaStorage.generateVideoPath(this.title + profile.getFileExtension());
+        this.timestamp = System.currentTimeMillis();
+    }
+
+    /**
+     * Executes the specified task on the recording thread
+     *
+     * @param task
+     *            The task to execute
+     */
+    static void execute(final Runnable task) {
+        EXECUTOR.execute(task);
+    }
+
+    /**
+     * Submits the specified task to the recording thread
+     *
+     * @param task
+     *            The task to execute
+     * @return the future of the task
+     */
+    static Future<?> submit(final Runnable task) {
+        return EXECUTOR.submit(task);
+    }
+
+    /**
+     * Prepares the recorder on the recording thread
+     *
+     * @param camera
+     *            The unlocked legacy camera or null for camera2
+     * @param previewSurface
+     *            The preview surface of the legacy camera or null for camera2
+     * @return true if prepared
+     */
+    boolean prepare(final Camera camera, final Surface previewSurface) {
+        final boolean audio = PackageManager.PERMISSION_GRANTED == this.context.checkCallingOrSelfPermission(Manifest.permission.RECORD_AUDIO);
+
+        try {
+            this.recorder.prepare(camera, previewSurface, this.profile, audio, this.orientation, this.path);
+            return true;
+        } catch (final Exception e) {
+            Log.e(TAG, "Failed to prepare video recorder", e);
+            this.recorder.release();
+            return false;
+        }
+    }
+
+    /**
+     * Starts the prepared recorder on the recording thread
+     *
+     * @return true if started
+     */
+    boolean start() {
+        try {
+            this.recorder.start();
+            this.mStartTime = SystemClock.uptimeMillis();
+            this.mStarted = true;
+        } catch (final RuntimeException e) {
+            Log.e(TAG, "Failed to start video recorder", e);
+            this.recorder.release();
+            return false;
+        }
+
+        if (null != this.callback) {
+            this.callback.onRecordingStarted(this.device);
+        }
+
+        return true;
+    }
+
+    /**
+     * Stops and releases the recorder on the recording thread, it does
+     * nothing if stopped already
+     */
+    void stop() {
+        if (this.mStopped) {
+            return;
+        }
+
+        this.mStopped = true;
+
+        try {
+            if (this.mStarted) {
+                this.recorder.stop();
+                this.mDuration = SystemClock.uptimeMillis() - this.mStartTime;
+            }
+        } catch (final RuntimeException e) {
+            // nothing has been recorded
+            Log.e(TAG, "Failed to stop video recorder", e);
+            this.mStarted = false;
+            new File(this.path).delete();
+        } finally {
+            this.recorder.release();
+        }
+    }
+
+    /**
+     * Inserts the recorded video into media store on the recording thread,
+     * and then notifies the callback
+     */
+    void persist() {
+        Uri uri = null;
+
+        if (this.mStarted) {
+            final File file = new File(this.path);
+            final long size = file.length();
+            MediaStorage.getStorageMonitor().onBytesWritten(size);
+            uri = MediaStorage.addVideo(this.context.getContentResolver(), this.title, new Date(this.timestamp), this.device.getLocation(), this.mDuration, size, this.path,
+                    this.profile.videoFrameWidth, this.profile.videoFrameHeight);
+            MediaStorage.getStorageQuota().onCaptureAdded(uri, this.path, size, this.timestamp);
+        }
+
+        if (null != this.callback) {
+            this.callback.onRecordingFinished(this.device, uri);
+        }
+    }
+
+}
@@ -0,0 +1,204 @@
+package com.sdklite.media;
+
+import android.util.Log;
+
+/**
+ * A ring buffer of the latest NV21 preview frames for zero shutter lag
+ * capture, the frames are copied into preallocated slots whose total size never
+ * exceeds the memory budget
+ */
+final class ZeroShutterLagBuffer {
+
+    private static final String TAG = "ZeroShutterLagBuffer";
+
+    /**
+     * The maximum memory budget used by default
+     */
+    static final long MAX_DEFAULT_MEMORY_BUDGET = 32L * 1024 * 1024;
+
+    /**
+     * The frames older than this in milliseconds are not eligible for capture
+     */
+    static final long MAX_FRAME_AGE = 1000L;
+
+    private static final byte[][] NO_FRAMES = new byte[0][];
+
+    /**
+     * A frame acquired for capture, it is not overwritten until released
+     */
+    static final class Frame {
+
+        final byte[] data;
+        final int width;
+        final int height;
+        final long timestamp;
+
+        private final ZeroShutterLagBuffer mBuffer;
+        private final int mIndex;
+        private final byte[][] mGeneration;
+
+        private Frame(final ZeroShutterLagBuffer buffer, final byte[][] generation, final int index, final int width, final int height, final long timestamp) {
+            this.mBuffer = buffer;
+            this.mGeneration = generation;
+            this.mIndex = index;
+            this.data = generation[index];
+            this.width = width;
+            this.height = height;
+            this.timestamp = timestamp;
+        }
+
+        /**
+         * Returns this frame to the ring
+         */
+        void release() {
+            this.mBuffer.release(this);
+        }
+    }
+
+    private int mMaxFrames;
+    private long mMemoryBudget;
+
+    private byte[][] mFrames = NO_FRAMES;
+    private long[] mTimestamps = new long[0];
+    private boolean[] mLocked = new boolean[0];
+    private int mWidth;
+    private int mHeight;
+    private int mNext;
+
+    /**
+     * Returns the default memory budget, an eighth of the heap limit and no
+     * more than {@link #MAX_DEFAULT_MEMORY_BUDGET}
+     */
+    static long getDefaultMemoryBudget() {
+        return Math.min(Runtime.getRuntime().maxMemory() / 8, MAX_DEFAULT_MEMORY_BUDGET);
+    }
+
+    /**
+     * Configures the maximum number of frames and the memory budget, the
+     * frames are released if the buffer is disabled
+     *
+     * @param maxFrames
+     *            The maximum number of frames, 0 disables the buffer
+     * @param memoryBudget
+     *            The maximum bytes of all frames
+     */
+    synchronized void configure(final int maxFrames, final long memoryBudget) {
+        if (maxFrames < 0 || memoryBudget < 0) {
+            throw new IllegalArgumentException("Negative frames or budget");
+        }
+
+        if (maxFrames == this.mMaxFrames && memoryBudget == this.mMemoryBudget) {
+            return;
+        }
+
+        this.mMaxFrames = maxFrames;
+        this.mMemoryBudget = memoryBudget;
+        clear();
+    }
+
+    synchronized boolean isEnabled() {
+        return this.mMaxFrames > 0 && this.mMemoryBudget > 0;
+    }
+
+    /**
+     * Copies the specified frame into the oldest unlocked slot, the slots are
+     * reallocated if the frame size changed
+     *
+     * @param data
+     *            The NV21 frame
+     * @param width
+     *            The frame width in pixel
+     * @param height
+     *            The frame height in pixel
+     * @param timestamp
+     *            The uptime in milliseconds when the frame arrived
+     */
+    synchronized void offer(final byte[] data, final int width, final int height, final long timestamp) {
+        if (!isEnabled()) {
+            return;
+        }
+
+        if (width != this.mWidth || height != this.mHeight) {
+            allocate(width, height, data.length);
+        }
+
+        final byte[][] frames = this.mFrames;
+        for (int i = 0; i < frames.length; i++) {
+            final int index = (this.mNext + i) % frames.length;
+            if (this.mLocked[index]) {
+                continue;
+            }
+
+            System.arraycopy(data, 0, frames[index], 0, Math.min(data.length, frames[index].length));
+            this.mTimestamps[index] = timestamp;
+            this.mNext = (index + 1) % frames.length;
+            return;
+        }
+    }
+
+    /**
+     * Acquires the frame closest to the specified time
+     *
+     * @param time
+     *            The uptime in milliseconds when the capture triggered
+     * @return the frame or null if there is no recent frame
+     */
+    synchronized Frame acquire(final long time) {
+        int best = -1;
+        long bestDistance = MAX_FRAME_AGE;
+
+        for (int i = 0; i < this.mFrames.length; i++) {
+            if (this.mLocked[i] || 0 == this.mTimestamps[i]) {
+                continue;
+            }
+
+            final long distance = Math.abs(this.mTimestamps[i] - time);
+            if (distance <= bestDistance) {
+                best = i;
+                bestDistance = distance;
+            }
+        }
+
+        if (best < 0) {
+            return null;
+        }
+
+        this.mLocked[best] = true;
+        return new Frame(this, this.mFrames, best, this.mWidth, this.mHeight, this.mTimestamps[best]);
+    }
+
+    private synchronized void release(final Frame frame) {
+        if (frame.mGeneration == this.mFrames) {
+            this.mLocked[frame.mIndex] = false;
+        }
+    }
+
+    private void allocate(final int width, final int height, final int frameSize) {
+        clear();
+
+        final int count = (int) Math.min(this.mMaxFrames, this.mMemoryBudget / frameSize);
+        if (count <= 0) {
+            Log.w(TAG, "A frame of " + width + "x" + height + " exceeds the memory budget " + this.mMemoryBudget);
+        } else {
+            this.mFrames = new byte[count][frameSize];
+            this.mTimestamps = new long[count];
+            this.mLocked = new boolean[count];
+        }
+
+        this.mWidth = width;
+        this.mHeight = height;
+    }
+
+    /**
+     * Releases the frames, the acquired ones are kept alive by their holders
+     */
+    private void clear() {
+        this.mFrames = NO_FRAMES;
+        this.mTimestamps = new long[0];
+        this.mLocked = new boolean[0];
+        this.mWidth = 0;
+        this.mHeight = 0;
+        this.mNext = 0;
+    }
+
+}
@@ -106,6 +106,7 @@ public class CameraView extends SurfaceView {
     @Override
     protected void onDetachedFromWindow() {
         this.mSensorManager.unregisterListener(this.mSensorListener, this.mAccelerometer);
+        this.mCameraDevice.close();
         super.onDetachedFromWindow();
     }
 }
@@ -0,0 +1,278 @@
+package com.sdklite.media;
+
+import android.hardware.camera2.CameraDevice.StateCallback;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Environment;
+import android.provider.MediaStore;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowContentResolver;
+import org.robolectric.shadows.ShadowEnvironment;
+import org.robolectric.shadows.ShadowStatFs;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = Build.VERSION_CODES.M)
+public class Camera2DeviceTest {
+
+    private static final long TIMEOUT = 5000L;
+
+    private FakeCamera2Backend mBackend;
+    private Camera2Device mDevice;
+
+    /**
+     * Records the recording callbacks
+     */
+    static final class RecordingResults implements CameraDevice.OnRecordingCallback {
+
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch finished = new CountDownLatch(1);
+        final AtomicReference<Uri> uri = new AtomicReference<Uri>();
+
+        @Override
+        public void onRecordingStarted(final CameraDevice camera) {
+            this.started.countDown();
+        }
+
+        @Override
+        public void onRecordingFinished(final CameraDevice camera, final Uri uri) {
+            this.uri.set(uri);
+            this.finished.countDown();
+        }
+    }
+
+    @Before
+    public void setUp() {
+        // Plenty of space, so that the captures are admitted
+        ShadowEnvironment.setExternalStorageState(Environment.MEDIA_MOUNTED);
+        ShadowStatFs.registerStats(Environment.getExternalStorageDirectory(), 1 << 20, 1 << 20, 1 << 20);
+
+        this.mBackend = new FakeCamera2Backend("0", "1");
+        this.mDevice = new Camera2Device(RuntimeEnvironment.application, this.mBackend);
+    }
+
+    @After
+    public void tearDown() {
+        this.mDevice.close();
+    }
+
+    @Test
+    public void startPreviewOpensCameraAndConfiguresSession() throws Exception {
+        final CameraCapabilities capabilities = this.mDevice.startPreviewAsync(new FakeCamera2Backend.FakeSurfaceHolder(), 1).get(TIMEOUT, TimeUnit.MILLISECONDS);
+
+        assertEquals(1, capabilities.getCameraId());
+        assertSame(capabilities, this.mDevice.getCapabilities());
+        assertEquals(1, this.mBackend.cameras.size());
+        assertEquals("1", this.mBackend.cameras.get(0).getId());
+        assertEquals(1, this.mBackend.sessions.size());
+
+        // preview, preview frames and pictures
+        assertEquals(3, this.mBackend.sessions.get(0).outputs.size());
+    }
+
+    @Test
+    public void startPreviewTwiceReusesOpenedCamera() throws Exception {
+        final FakeCamera2Backend.FakeSurfaceHolder holder = new FakeCamera2Backend.FakeSurfaceHolder();
+        this.mDevice.startPreviewAsync(holder, 0).get(TIMEOUT, TimeUnit.MILLISECONDS);
+        this.mDevice.startPreviewAsync(holder, 0).get(TIMEOUT, TimeUnit.MILLISECONDS);
+
+        assertEquals(1, this.mBackend.cameras.size());
+        assertEquals(1, this.mBackend.sessions.size());
+    }
+
+    @Test
+    public void stopPreviewClosesCameraAndSession() throws Exception {
+        this.mDevice.startPreviewAsync(new FakeCamera2Backend.FakeSurfaceHolder(), 0).get(TIMEOUT, TimeUnit.MILLISECONDS);
+        this.mDevice.stopPreviewAsync().get(TIMEOUT, TimeUnit.MILLISECONDS);
+
+        assertTrue(this.mBackend.sessions.get(0).closed);
+        assertTrue(this.mBackend.cameras.get(0).closed);
+    }
+
+    @Test
+    public void restartAfterCloseWaitsForCameraReleased() throws Exception {
+        final FakeCamera2Backend.FakeSurfaceHolder holder = new FakeCamera2Backend.FakeSurfaceHolder();
+        this.mDevice.startPreviewAsync(holder, 0).get(TIMEOUT, TimeUnit.MILLISECONDS);
+        this.mDevice.close();
+        this.mDevice.startPreviewAsync(holder, 0).get(TIMEOUT, TimeUnit.MILLISECONDS);
+
+        assertEquals(2, this.mBackend.cameras.size());
+        assertTrue(this.mBackend.cameras.get(0).closed);
+        assertFalse(this.mBackend.openedWhileInUse);
+    }
+
+    @Test
+    public void noCameraFailsPreview() throws Exception {
+        final Camera2Device device = new Camera2Device(RuntimeEnvironment.application, new FakeCamera2Backend());
+
+        try {
+            device.startPreviewAsync(new FakeCamera2Backend.FakeSurfaceHolder(), 0).get(TIMEOUT, TimeUnit.MILLISECONDS);
+            fail("Preview started without camera");
+        } catch (final ExecutionException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        } finally {
+            device.close();
+        }
+    }
+
+    @Test
+    public void supersededAutoFocusIsCompleted() throws Exception {
+        this.mDevice.startPreviewAsync(new FakeCamera2Backend.FakeSurfaceHolder(), 0).get(TIMEOUT, TimeUnit.MILLISECONDS);
+
+        final CameraFuture<Boolean> first = this.mDevice.autoFocusAsync();
+        final CameraFuture<Boolean> second = this.mDevice.autoFocusAsync();
+
+        // The fake camera can not build requests, so auto focus fails
+        assertFalse(first.get(TIMEOUT, TimeUnit.MILLISECONDS));
+        assertFalse(second.get(TIMEOUT, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void failedCaptureFailsPicture() throws Exception {
+        this.mDevice.startPreviewAsync(new FakeCamera2Backend.FakeSurfaceHolder(), 0).get(TIMEOUT, TimeUnit.MILLISECONDS);
+
+        // The fake camera can not build requests, so the capture fails
+        try {
+            this.mDevice.takePictureAsync().get(TIMEOUT, TimeUnit.MILLISECONDS);
+            fail("Picture taken without capture request");
+        } catch (final ExecutionException e) {
+            assertTrue(e.getCause() instanceof IOException);
+        }
+
+        // The camera is ready for the next picture
+        try {
+            this.mDevice.takePictureAsync().get(TIMEOUT, TimeUnit.MILLISECONDS);
+            fail("Picture taken without capture request");
+        } catch (final ExecutionException e) {
+            assertTrue(e.getCause() instanceof IOException);
+        }
+    }
+
+    @Test
+    public void failedBurstFrameCompletesBurst() throws Exception {
+        this.mDevice.startPreviewAsync(new FakeCamera2Backend.FakeSurfaceHolder(), 0).get(TIMEOUT, TimeUnit.MILLISECONDS);
+
+        final CountDownLatch completed = new CountDownLatch(1);
+        final AtomicInteger captured = new AtomicInteger(-1);
+        assertTrue(this.mDevice.takeBurst(3, 0, new CameraDevice.OnBurstCallback() {
+            @Override
+            public void onBurstFrame(final CameraDevice camera, final int index, final Uri uri) {
+            }
+
+            @Override
+            public void onBurstCompleted(final CameraDevice camera, final int count, final float fps) {
+                captured.set(count);
+                completed.countDown();
+            }
+        }));
+
+        // The fake camera can not build requests, so the first frame ends the burst
+        assertTrue(completed.await(TIMEOUT, TimeUnit.MILLISECONDS));
+        assertEquals(0, captured.get());
+    }
+
+    @Test
+    public void recordingDrivesRecorderAndInsertsVideo() throws Exception {
+        final MediaStoreInserterTest.FakeProvider media = new MediaStoreInserterTest.FakeProvider();
+        ShadowContentResolver.registerProvider(MediaStore.AUTHORITY, media);
+
+        final FakeCamera2Backend.FakeVideoRecorder recorder = new FakeCamera2Backend.FakeVideoRecorder();
+        this.mDevice.setVideoRecorder(recorder);
+        this.mDevice.startPreviewAsync(new FakeCamera2Backend.FakeSurfaceHolder(), 0).get(TIMEOUT, TimeUnit.MILLISECONDS);
+
+        final RecordingResults results = new RecordingResults();
+        assertTrue(this.mDevice.startRecording(results));
+        assertTrue(results.started.await(TIMEOUT, TimeUnit.MILLISECONDS));
+        assertTrue(this.mDevice.isRecording());
+        assertEquals(Arrays.asList("prepare", "start"), recorder.calls);
+
+        // The recorder takes the place of the picture reader in a new session
+        assertEquals(2, this.mBackend.sessions.size());
+        assertTrue(this.mBackend.sessions.get(0).closed);
+        assertSame(recorder.getSurface(), this.mBackend.sessions.get(1).outputs.get(2));
+
+        assertTrue(this.mDevice.stopRecording());
+        assertTrue(results.finished.await(TIMEOUT, TimeUnit.MILLISECONDS));
+        assertFalse(this.mDevice.isRecording());
+        assertEquals(Arrays.asList("prepare", "start", "stop", "release"), recorder.calls);
+
+        // The video is inserted into media store once the recording finished
+        assertEquals(1, media.rows.size());
+        assertEquals(media.rows.get(0), results.uri.get());
+    }
+
+    @Test
+    public void startRecordingWhileRecordingIsRefused() throws Exception {
+        final FakeCamera2Backend.FakeVideoRecorder recorder = new FakeCamera2Backend.FakeVideoRecorder();
+        this.mDevice.setVideoRecorder(recorder);
+        this.mDevice.startPreviewAsync(new FakeCamera2Backend.FakeSurfaceHolder(), 0).get(TIMEOUT, TimeUnit.MILLISECONDS);
+
+        final RecordingResults results = new RecordingResults();
+        final RecordingResults refused = new RecordingResults();
+        assertTrue(this.mDevice.startRecording(results));
+        assertFalse(this.mDevice.startRecording(refused));
+        assertTrue(results.started.await(TIMEOUT, TimeUnit.MILLISECONDS));
+        assertFalse(this.mDevice.startRecording(refused));
+
+        assertTrue(this.mDevice.stopRecording());
+        assertTrue(results.finished.await(TIMEOUT, TimeUnit.MILLISECONDS));
+
+        // The refused recordings never reach the recorder
+        assertEquals(1, Collections.frequency(recorder.calls, "prepare"));
+        assertEquals(1, refused.started.getCount());
+        assertEquals(1, refused.finished.getCount());
+    }
+
+    @Test
+    public void noVideoProfileFinishesRecording() throws Exception {
+        this.mBackend.videoProfile = null;
+        final FakeCamera2Backend.FakeVideoRecorder recorder = new FakeCamera2Backend.FakeVideoRecorder();
+        this.mDevice.setVideoRecorder(recorder);
+        this.mDevice.startPreviewAsync(new FakeCamera2Backend.FakeSurfaceHolder(), 0).get(TIMEOUT, TimeUnit.MILLISECONDS);
+
+        final RecordingResults results = new RecordingResults();
+        assertTrue(this.mDevice.startRecording(results));
+        assertTrue(results.finished.await(TIMEOUT, TimeUnit.MILLISECONDS));
+        assertNull(results.uri.get());
+        assertTrue(recorder.calls.isEmpty());
+    }
+
+    @Test
+    public void openErrorFailsPreview() throws Exception {
+        this.mBackend.openError = StateCallback.ERROR_CAMERA_IN_USE;
+
+        try {
+            this.mDevice.startPreviewAsync(new FakeCamera2Backend.FakeSurfaceHolder(), 0).get(TIMEOUT, TimeUnit.MILLISECONDS);
+            fail("Preview started with camera in use");
+        } catch (final ExecutionException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+
+        assertTrue(this.mBackend.cameras.get(0).closed);
+        assertTrue(this.mBackend.sessions.isEmpty());
+        assertNull(this.mDevice.getCapabilities());
+    }
+
+}
@@ -0,0 +1,250 @@
+package com.sdklite.media;
+
+import android.location.Location;
+import android.os.Build;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = Build.VERSION_CODES.M)
+public class ExifWriterTest {
+
+    private static final int TAG_MAKE = 0x010f;
+    private static final int TAG_ORIENTATION = 0x0112;
+    private static final int TAG_SUB_IFDS = 0x014a;
+    private static final int TAG_JPEG_INTERCHANGE_FORMAT = 0x0201;
+    private static final int TAG_JPEG_INTERCHANGE_FORMAT_LENGTH = 0x0202;
+    private static final int TAG_EXPOSURE_TIME = 0x829a;
+    private static final int TAG_EXIF_IFD_POINTER = 0x8769;
+    private static final int TAG_GPS_IFD_POINTER = 0x8825;
+    private static final int TAG_MAKER_NOTE = 0x927c;
+    private static final int TAG_PIXEL_X_DIMENSION = 0xa002;
+    private static final int TAG_PIXEL_Y_DIMENSION = 0xa003;
+    private static final int TAG_PRINT_IM = 0xc4a5;
+
+    private static final int TAG_GPS_LATITUDE_REF = 0x0001;
+    private static final int TAG_GPS_LATITUDE = 0x0002;
+    private static final int TAG_GPS_LONGITUDE_REF = 0x0003;
+    private static final int TAG_GPS_LONGITUDE = 0x0004;
+    private static final int TAG_GPS_ALTITUDE_REF = 0x0005;
+    private static final int TAG_GPS_ALTITUDE = 0x0006;
+    private static final int TAG_GPS_TIME_STAMP = 0x0007;
+    private static final int TAG_GPS_DATE_STAMP = 0x001d;
+
+    private static final int[] TYPE_SIZES = { 0, 1, 1, 2, 4, 8, 1, 1, 2, 4, 8, 4, 8 };
+
+    private static final byte[] APP0 = { (byte) 0xff, (byte) 0xe0, 0, 16, 'J', 'F', 'I', 'F', 0, 1, 1, 0, 0, 1, 0, 1, 0, 0 };
+
+    private static final byte[] IMAGE = { (byte) 0xff, (byte) 0xdb, 0, 4, 0, 0, (byte) 0xff, (byte) 0xda, 0, 2, 0x11, 0x22, 0x33, (byte) 0xff, (byte) 0xd9 };
+
+    private static final byte[] THUMBNAIL = { (byte) 0xff, (byte) 0xd8, 1, 2, 3, (byte) 0xff, (byte) 0xd9 };
+
+    /**
+     * The offset of the TIFF header written after SOI and APP0
+     */
+    private static final int TIFF = 2 + APP0.length + 10;
+
+    @Test
+    public void injectsSegmentWithoutApp1() {
+        final byte[] jpeg = jpeg(APP0, IMAGE);
+        final byte[] out = ExifWriter.write(jpeg, 90, 0, 640, 480, null);
+
+        // The segment follows APP0 and the image data is untouched
+        assertArrayEquals(Arrays.copyOf(jpeg, 2 + APP0.length), Arrays.copyOf(out, 2 + APP0.length));
+        assertEquals(0xe1, out[2 + APP0.length + 1] & 0xff);
+        assertArrayEquals(IMAGE, Arrays.copyOfRange(out, out.length - IMAGE.length, out.length));
+        assertEquals('M', out[TIFF]);
+
+        final ByteBuffer ifd0 = ifd(out, CaptureThumbnail.readInt(out, TIFF + 4, false));
+        assertEquals(6, value(out, ifd0, TAG_ORIENTATION).getShort());
+        assertEquals(-1, find(ifd0, TAG_GPS_IFD_POINTER));
+        assertEquals(0, next(ifd0));
+
+        final ByteBuffer exif = ifd(out, value(out, ifd0, TAG_EXIF_IFD_POINTER).getInt());
+        assertEquals(640, value(out, exif, TAG_PIXEL_X_DIMENSION).getInt());
+        assertEquals(480, value(out, exif, TAG_PIXEL_Y_DIMENSION).getInt());
+    }
+
+    @Test
+    public void replacesLittleEndianSegment() {
+        final byte[] jpeg = jpeg(APP0, littleEndianExif(), IMAGE);
+        final byte[] out = ExifWriter.write(jpeg, 180, 0, 640, 480, null);
+
+        // The original segment is replaced in place
+        final int segmentEnd = 2 + APP0.length + 2 + CaptureThumbnail.readShort(out, 2 + APP0.length + 2, false);
+        assertArrayEquals(IMAGE, Arrays.copyOfRange(out, segmentEnd, out.length));
+        assertEquals('M', out[TIFF]);
+
+        final ByteBuffer ifd0 = ifd(out, CaptureThumbnail.readInt(out, TIFF + 4, false));
+        assertEquals("Test", ascii(value(out, ifd0, TAG_MAKE)));
+        assertEquals(3, value(out, ifd0, TAG_ORIENTATION).getShort());
+        assertEquals(-1, find(ifd0, TAG_SUB_IFDS));
+        assertEquals(-1, find(ifd0, TAG_PRINT_IM));
+
+        final ByteBuffer exif = ifd(out, value(out, ifd0, TAG_EXIF_IFD_POINTER).getInt());
+        final ByteBuffer exposure = value(out, exif, TAG_EXPOSURE_TIME);
+        assertEquals(1, exposure.getInt());
+        assertEquals(100, exposure.getInt());
+        assertEquals(-1, find(exif, TAG_MAKER_NOTE));
+
+        // The thumbnail is carried over into IFD1
+        final int[] range = CaptureThumbnail.findExifThumbnail(out);
+        assertNotNull(range);
+        assertArrayEquals(THUMBNAIL, Arrays.copyOfRange(out, range[0], range[0] + range[1]));
+    }
+
+    @Test
+    public void writesLocation() {
+        final Location location = new Location("test");
+        location.setLatitude(-33.5);
+        location.setLongitude(151.25);
+        location.setAltitude(-12.5);
+        location.setTime(1462330921000L); // 2016:05:04 03:02:01 UTC
+
+        final byte[] out = ExifWriter.write(jpeg(APP0, littleEndianExif(), IMAGE), 0, 0, 640, 480, location);
+        final ByteBuffer ifd0 = ifd(out, CaptureThumbnail.readInt(out, TIFF + 4, false));
+        final ByteBuffer gps = ifd(out, value(out, ifd0, TAG_GPS_IFD_POINTER).getInt());
+
+        assertEquals("S", ascii(value(out, gps, TAG_GPS_LATITUDE_REF)));
+        assertArrayEquals(new int[] { 33, 1, 30, 1, 0, 1000 }, rationals(value(out, gps, TAG_GPS_LATITUDE)));
+        assertEquals("E", ascii(value(out, gps, TAG_GPS_LONGITUDE_REF)));
+        assertArrayEquals(new int[] { 151, 1, 15, 1, 0, 1000 }, rationals(value(out, gps, TAG_GPS_LONGITUDE)));
+        assertEquals(1, value(out, gps, TAG_GPS_ALTITUDE_REF).get());
+        assertArrayEquals(new int[] { 1250, 100 }, rationals(value(out, gps, TAG_GPS_ALTITUDE)));
+        assertArrayEquals(new int[] { 3, 1, 2, 1, 1, 1 }, rationals(value(out, gps, TAG_GPS_TIME_STAMP)));
+        assertEquals("2016:05:04", ascii(value(out, gps, TAG_GPS_DATE_STAMP)));
+
+        // The thumbnail still follows the GPS IFD
+        assertTrue(0 != next(ifd0));
+        assertNotNull(CaptureThumbnail.findExifThumbnail(out));
+    }
+
+    private static byte[] jpeg(final byte[]... segments) {
+        int length = 2;
+        for (final byte[] segment : segments) {
+            length += segment.length;
+        }
+
+        final ByteBuffer buffer = ByteBuffer.allocate(length);
+        buffer.put((byte) 0xff).put((byte) 0xd8);
+        for (final byte[] segment : segments) {
+            buffer.put(segment);
+        }
+        return buffer.array();
+    }
+
+    /**
+     * Builds a little endian EXIF segment with the tags pointing into the
+     * segment, a maker note and a thumbnail in IFD1
+     */
+    private static byte[] littleEndianExif() {
+        final int ifd0 = 8;
+        final int make = ifd0 + 2 + 5 * 12 + 4;
+        final int printIm = make + 6;
+        final int exif = printIm + 8;
+        final int exposure = exif + 2 + 2 * 12 + 4;
+        final int ifd1 = exposure + 8;
+        final int thumbnail = ifd1 + 2 + 2 * 12 + 4;
+        final int length = thumbnail + THUMBNAIL.length;
+
+        final ByteBuffer tiff = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        tiff.put((byte) 'I').put((byte) 'I').putShort((short) 42).putInt(ifd0);
+
+        tiff.putShort((short) 5);
+        entry(tiff, TAG_MAKE, 2, 5).putInt(make);
+        entry(tiff, TAG_ORIENTATION, 3, 1).putShort((short) 1).putShort((short) 0);
+        entry(tiff, TAG_SUB_IFDS, 4, 1).putInt(length + 64);
+        entry(tiff, TAG_EXIF_IFD_POINTER, 4, 1).putInt(exif);
+        entry(tiff, TAG_PRINT_IM, 7, 8).putInt(printIm);
+        tiff.putInt(ifd1);
+        tiff.put(new byte[] { 'T', 'e', 's', 't', 0, 0 });
+        tiff.put(new byte[] { 'P', 'r', 'i', 'n', 't', 'I', 'M', 0 });
+
+        tiff.putShort((short) 2);
+        entry(tiff, TAG_EXPOSURE_TIME, 5, 1).putInt(exposure);
+        entry(tiff, TAG_MAKER_NOTE, 7, 4).put(new byte[] { 'a', 'b', 'c', 'd' });
+        tiff.putInt(0);
+        tiff.putInt(1).putInt(100);
+
+        tiff.putShort((short) 2);
+        entry(tiff, TAG_JPEG_INTERCHANGE_FORMAT, 4, 1).putInt(thumbnail);
+        entry(tiff, TAG_JPEG_INTERCHANGE_FORMAT_LENGTH, 4, 1).putInt(THUMBNAIL.length);
+        tiff.putInt(0);
+        tiff.put(THUMBNAIL);
+
+        final ByteBuffer segment = ByteBuffer.allocate(10 + length);
+        segment.put((byte) 0xff).put((byte) 0xe1).putShort((short) (8 + length));
+        segment.put(new byte[] { 'E', 'x', 'i', 'f', 0, 0 });
+        segment.put(tiff.array());
+        return segment.array();
+    }
+
+    private static ByteBuffer entry(final ByteBuffer tiff, final int tag, final int type, final int count) {
+        return tiff.putShort((short) tag).putShort((short) type).putInt(count);
+    }
+
+    /**
+     * Returns the big endian IFD at the specified offset of the TIFF header
+     */
+    private static ByteBuffer ifd(final byte[] jpeg, final int offset) {
+        final ByteBuffer ifd = ByteBuffer.wrap(jpeg);
+        ifd.position(TIFF + offset);
+        return ifd.slice();
+    }
+
+    private static int find(final ByteBuffer ifd, final int tag) {
+        final int count = ifd.getShort(0) & 0xffff;
+        for (int i = 0; i < count; i++) {
+            if ((ifd.getShort(2 + i * 12) & 0xffff) == tag) {
+                return 2 + i * 12;
+            }
+        }
+        return -1;
+    }
+
+    private static int next(final ByteBuffer ifd) {
+        return ifd.getInt(2 + (ifd.getShort(0) & 0xffff) * 12);
+    }
+
+    private static ByteBuffer value(final byte[] jpeg, final ByteBuffer ifd, final int tag) {
+        final int entry = find(ifd, tag);
+        assertTrue("Tag " + Integer.toHexString(tag) + " not found", entry >= 0);
+
+        final int size = TYPE_SIZES[ifd.getShort(entry + 2)] * ifd.getInt(entry + 4);
+        final int offset = size <= 4 ? ifd.arrayOffset() + entry + 8 : TIFF + ifd.getInt(entry + 8);
+        return ByteBuffer.wrap(jpeg, offset, size).slice();
+    }
+
+    private static String ascii(final ByteBuffer value) {
+        final StringBuilder builder = new StringBuilder();
+        while (value.hasRemaining()) {
+            final byte b = value.get();
+            if (0 == b) {
+                break;
+            }
+            builder.append((char) b);
+        }
+        return builder.toString();
+    }
+
+    private static int[] rationals(final ByteBuffer value) {
+        final int[] values = new int[value.remaining() / 4];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = value.getInt();
+        }
+        return values;
+    }
+
+}
@@ -0,0 +1,320 @@
+package com.sdklite.media;
+
+import android.graphics.Canvas;
+import android.graphics.Rect;
+import android.graphics.SurfaceTexture;
+import android.hardware.Camera;
+import android.hardware.camera2.CameraAccessException;
+import android.hardware.camera2.CameraCaptureSession;
+import android.hardware.camera2.CameraDevice;
+import android.hardware.camera2.CaptureRequest;
+import android.hardware.camera2.TotalCaptureResult;
+import android.hardware.camera2.params.InputConfiguration;
+import android.media.MediaRecorder;
+import android.os.Handler;
+import android.view.Surface;
+import android.view.SurfaceHolder;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A fake camera service of {@link Camera2Device}, the cameras are opened and
+ * the sessions are configured synchronously on the calling thread
+ */
+final class FakeCamera2Backend implements Camera2Backend {
+
+    static final CameraCapabilities.Size PREVIEW_SIZE = new CameraCapabilities.Size(640, 480);
+
+    final List<FakeCamera> cameras = new ArrayList<FakeCamera>();
+    final List<FakeSession> sessions = new ArrayList<FakeSession>();
+
+    private final String[] mCameraIds;
+
+    /**
+     * The error delivered on opening camera, 0 means no error
+     */
+    int openError;
+
+    /**
+     * Whether a camera has been opened before the previous one closed
+     */
+    volatile boolean openedWhileInUse;
+
+    /**
+     * The video profile of every camera, null means no profile available
+     */
+    VideoProfile videoProfile = new VideoProfile(MediaRecorder.OutputFormat.MPEG_4, MediaRecorder.VideoEncoder.H264, 2000000, 30, PREVIEW_SIZE.width, PREVIEW_SIZE.height,
+            MediaRecorder.AudioEncoder.AAC, 96000, 44100, 1);
+
+    FakeCamera2Backend(final String... cameraIds) {
+        this.mCameraIds = cameraIds;
+    }
+
+    @Override
+    public String[] getCameraIdList() throws CameraAccessException {
+        return this.mCameraIds.clone();
+    }
+
+    @Override
+    public CameraCapabilities getCapabilities(final int cameraIndex, final String cameraId) throws CameraAccessException {
+        final List<CameraCapabilities.Size> sizes = Collections.singletonList(PREVIEW_SIZE);
+        return new CameraCapabilities(cameraIndex, Camera.CameraInfo.CAMERA_FACING_BACK, 90,
+                sizes, sizes, sizes, sizes,
+                Collections.singletonList(Camera.Parameters.FOCUS_MODE_AUTO),
+                Collections.singletonList(new int[] { 15000, 30000 }),
+                Collections.<CameraCapabilities.Size, Integer>emptyMap(),
+                true, true);
+    }
+
+    @Override
+    public void openCamera(final String cameraId, final CameraDevice.StateCallback callback) throws CameraAccessException {
+        for (final FakeCamera opened : this.cameras) {
+            this.openedWhileInUse |= !opened.closed;
+        }
+
+        final FakeCamera camera = new FakeCamera(cameraId);
+        this.cameras.add(camera);
+
+        if (0 != this.openError) {
+            callback.onError(camera, this.openError);
+        } else {
+            callback.onOpened(camera);
+        }
+    }
+
+    @Override
+    public void createCaptureSession(final CameraDevice camera, final List<Surface> outputs, final CameraCaptureSession.StateCallback callback) throws CameraAccessException {
+        final FakeSession session = new FakeSession(camera, outputs);
+        this.sessions.add(session);
+        callback.onConfigured(session);
+    }
+
+    @Override
+    public VideoProfile getVideoProfile(final int cameraIndex, final String cameraId, final CameraCapabilities capabilities) {
+        return this.videoProfile;
+    }
+
+    static final class FakeCamera extends CameraDevice {
+
+        final String id;
+        volatile boolean closed;
+
+        FakeCamera(final String id) {
+            this.id = id;
+        }
+
+        @Override
+        public String getId() {
+            return this.id;
+        }
+
+        /**
+         * Returns null since the builder can not be created out of the
+         * framework, so no request is sent to the fake session
+         */
+        @Override
+        public CaptureRequest.Builder createCaptureRequest(final int templateType) throws CameraAccessException {
+            return null;
+        }
+
+        @Override
+        public CaptureRequest.Builder createReprocessCaptureRequest(final TotalCaptureResult inputResult) throws CameraAccessException {
+            return null;
+        }
+
+        @Override
+        public void createCaptureSession(final List<Surface> outputs, final CameraCaptureSession.StateCallback callback, final Handler handler) throws CameraAccessException {
+            throw new UnsupportedOperationException("Sessions are created by the backend");
+        }
+
+        @Override
+        public void createReprocessableCaptureSession(final InputConfiguration inputConfig, final List<Surface> outputs, final CameraCaptureSession.StateCallback callback, final Handler handler) throws CameraAccessException {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void createConstrainedHighSpeedCaptureSession(final List<Surface> outputs, final CameraCaptureSession.StateCallback callback, final Handler handler) throws CameraAccessException {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void close() {
+            this.closed = true;
+        }
+    }
+
+    static final class FakeSession extends CameraCaptureSession {
+
+        final CameraDevice camera;
+        final List<Surface> outputs;
+        boolean closed;
+
+        FakeSession(final CameraDevice camera, final List<Surface> outputs) {
+            this.camera = camera;
+            this.outputs = outputs;
+        }
+
+        @Override
+        public CameraDevice getDevice() {
+            return this.camera;
+        }
+
+        @Override
+        public void prepare(final Surface surface) throws CameraAccessException {
+        }
+
+        @Override
+        public int capture(final CaptureRequest request, final CaptureCallback listener, final Handler handler) throws CameraAccessException {
+            return 0;
+        }
+
+        @Override
+        public int captureBurst(final List<CaptureRequest> requests, final CaptureCallback listener, final Handler handler) throws CameraAccessException {
+            return 0;
+        }
+
+        @Override
+        public int setRepeatingRequest(final CaptureRequest request, final CaptureCallback listener, final Handler handler) throws CameraAccessException {
+            return 0;
+        }
+
+        @Override
+        public int setRepeatingBurst(final List<CaptureRequest> requests, final CaptureCallback listener, final Handler handler) throws CameraAccessException {
+            return 0;
+        }
+
+        @Override
+        public void stopRepeating() throws CameraAccessException {
+        }
+
+        @Override
+        public void abortCaptures() throws CameraAccessException {
+        }
+
+        @Override
+        public boolean isReprocessable() {
+            return false;
+        }
+
+        @Override
+        public Surface getInputSurface() {
+            return null;
+        }
+
+        @Override
+        public void close() {
+            this.closed = true;
+        }
+    }
+
+    /**
+     * A video recorder which records the calls, its input surface is backed
+     * by a surface texture
+     */
+    static final class FakeVideoRecorder implements VideoRecorder {
+
+        final List<String> calls = Collections.synchronizedList(new ArrayList<String>());
+        volatile String path;
+        private volatile Surface mSurface;
+
+        @Override
+        public void prepare(final Camera camera, final Surface previewSurface, final VideoProfile profile, final boolean audio, final int orientation, final String path) throws IOException {
+            this.calls.add("prepare");
+            this.path = path;
+            this.mSurface = new Surface(new SurfaceTexture(0));
+        }
+
+        @Override
+        public Surface getSurface() {
+            return this.mSurface;
+        }
+
+        @Override
+        public void start() {
+            this.calls.add("start");
+        }
+
+        @Override
+        public void stop() {
+            this.calls.add("stop");
+        }
+
+        @Override
+        public void release() {
+            this.calls.add("release");
+
+            final Surface surface = this.mSurface;
+            if (null != surface) {
+                surface.release();
+                this.mSurface = null;
+            }
+        }
+    }
+
+    /**
+     * A surface holder which is already of the preview size
+     */
+    static final class FakeSurfaceHolder implements SurfaceHolder {
+
+        @Override
+        public void addCallback(final Callback callback) {
+        }
+
+        @Override
+        public void removeCallback(final Callback callback) {
+        }
+
+        @Override
+        public boolean isCreating() {
+            return false;
+        }
+
+        @Override
+        public void setType(final int type) {
+        }
+
+        @Override
+        public void setFixedSize(final int width, final int height) {
+        }
+
+        @Override
+        public void setSizeFromLayout() {
+        }
+
+        @Override
+        public void setFormat(final int format) {
+        }
+
+        @Override
+        public void setKeepScreenOn(final boolean screenOn) {
+        }
+
+        @Override
+        public Canvas lockCanvas() {
+            return null;
+        }
+
+        @Override
+        public Canvas lockCanvas(final Rect dirty) {
+            return null;
+        }
+
+        @Override
+        public void unlockCanvasAndPost(final Canvas canvas) {
+        }
+
+        @Override
+        public Surface getSurface() {
+            return null;
+        }
+
+        @Override
+        public Rect getSurfaceFrame() {
+            return new Rect(0, 0, PREVIEW_SIZE.width, PREVIEW_SIZE.height);
+        }
+    }
+
+}
@@ -0,0 +1,97 @@
+package com.sdklite.media;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class FilenameGeneratorTest {
+
+    /**
+     * 2016-10-16 09:30:00.123 UTC
+     */
+    private static final long TIME = 1476610200123L;
+
+    private TimeZone mTimeZone;
+
+    @Before
+    public void setUp() {
+        this.mTimeZone = TimeZone.getDefault();
+        TimeZone.setDefault(TimeZone.getTimeZone("UTC"));
+    }
+
+    @After
+    public void tearDown() {
+        TimeZone.setDefault(this.mTimeZone);
+    }
+
+    @Test
+    public void formatsLocalTime() {
+        final FilenameGenerator generator = new FilenameGenerator();
+        assertEquals("20161016093000123", generator.next(TIME));
+        assertEquals("20161016093001007", generator.next(TIME + 884));
+    }
+
+    @Test
+    public void burstInOneMillisecondIsSuffixed() {
+        final FilenameGenerator generator = new FilenameGenerator();
+        assertEquals("20161016093000123", generator.next(TIME));
+        assertEquals("20161016093000123_1", generator.next(TIME));
+        assertEquals("20161016093000123_2", generator.next(TIME));
+        assertEquals("20161016093000124", generator.next(TIME + 1));
+    }
+
+    @Test
+    public void clockRollbackStaysMonotonic() {
+        final FilenameGenerator generator = new FilenameGenerator();
+        assertEquals("20161016093000123", generator.next(TIME));
+        assertEquals("20161016093000123_1", generator.next(TIME - 5000));
+        assertEquals("20161016093000123_2", generator.next(TIME - 1));
+        assertEquals("20161016093000124", generator.next(TIME + 1));
+    }
+
+    @Test
+    public void concurrentNamesAreDistinct() throws Exception {
+        final int threads = 8;
+        final int names = 1000;
+        final FilenameGenerator generator = new FilenameGenerator();
+        final Set<String> generated = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+
+        for (int i = 0; i < threads; i++) {
+            final Thread worker = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+
+                        // A few milliseconds shared by all threads
+                        for (int n = 0; n < names; n++) {
+                            generated.add(generator.next(TIME + n / 250));
+                        }
+                    } catch (final InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            });
+            worker.start();
+        }
+
+        start.countDown();
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals(threads * names, generated.size());
+    }
+
+}
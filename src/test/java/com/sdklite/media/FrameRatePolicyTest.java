@@ -0,0 +1,43 @@
+package com.sdklite.media;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNull;
+
+public class FrameRatePolicyTest {
+
+    private static List<int[]> ranges(final int[]... ranges) {
+        return Arrays.asList(ranges);
+    }
+
+    @Test
+    public void maxThroughputPrefersHigherMinimumOverFixedRange() {
+        assertArrayEquals(new int[] { 24000, 30000 }, FrameRatePolicy.MAX_THROUGHPUT.select(ranges(new int[] { 15000, 15000 }, new int[] { 24000, 30000 })));
+    }
+
+    @Test
+    public void maxThroughputPrefersFixedRangeOfSameMinimum() {
+        assertArrayEquals(new int[] { 30000, 30000 }, FrameRatePolicy.MAX_THROUGHPUT.select(ranges(new int[] { 30000, 60000 }, new int[] { 30000, 30000 }, new int[] { 15000, 30000 })));
+    }
+
+    @Test
+    public void lowLightPrefersWidestRangeOfHighestMaximum() {
+        assertArrayEquals(new int[] { 7000, 30000 }, FrameRatePolicy.LOW_LIGHT.select(ranges(new int[] { 30000, 30000 }, new int[] { 7000, 30000 }, new int[] { 15000, 30000 })));
+    }
+
+    @Test
+    public void powerSavingPrefersLowestSmoothMaximum() {
+        assertArrayEquals(new int[] { 10000, 20000 }, FrameRatePolicy.POWER_SAVING.select(ranges(new int[] { 10000, 10000 }, new int[] { 15000, 30000 }, new int[] { 10000, 20000 })));
+    }
+
+    @Test
+    public void selectWithoutRanges() {
+        assertNull(FrameRatePolicy.MAX_THROUGHPUT.select(Collections.<int[]>emptyList()));
+    }
+
+}
@@ -0,0 +1,220 @@
+package com.sdklite.media;
+
+import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.OperationApplicationException;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Build;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowContentResolver;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = Build.VERSION_CODES.M)
+public class MediaStoreInserterTest {
+
+    private static final Uri IMAGES = Uri.parse("content://fake.media/images");
+    private static final Uri VIDEOS = Uri.parse("content://fake.media/videos");
+    private static final Uri OTHERS = Uri.parse("content://fake.other/files");
+
+    /**
+     * A provider which records the batches and rows, the row ids start from 1
+     */
+    static final class FakeProvider extends ContentProvider {
+
+        final List<Integer> batches = Collections.synchronizedList(new ArrayList<Integer>());
+        final List<Uri> rows = Collections.synchronizedList(new ArrayList<Uri>());
+        volatile boolean rejectBatches;
+
+        @Override
+        public boolean onCreate() {
+            return true;
+        }
+
+        @Override
+        public ContentProviderResult[] applyBatch(final ArrayList<ContentProviderOperation> operations) throws OperationApplicationException {
+            if (this.rejectBatches) {
+                throw new OperationApplicationException("Batch rejected");
+            }
+
+            this.batches.add(operations.size());
+            return super.applyBatch(operations);
+        }
+
+        @Override
+        public Uri insert(final Uri uri, final ContentValues values) {
+            final Uri row = ContentUris.withAppendedId(uri, this.rows.size() + 1);
+            this.rows.add(row);
+            return row;
+        }
+
+        @Override
+        public Cursor query(final Uri uri, final String[] projection, final String selection, final String[] selectionArgs, final String sortOrder) {
+            return null;
+        }
+
+        @Override
+        public String getType(final Uri uri) {
+            return null;
+        }
+
+        @Override
+        public int delete(final Uri uri, final String selection, final String[] selectionArgs) {
+            return 0;
+        }
+
+        @Override
+        public int update(final Uri uri, final ContentValues values, final String selection, final String[] selectionArgs) {
+            return 0;
+        }
+    }
+
+    /**
+     * Records the uris in the order of the rows inserted
+     */
+    static final class Results implements MediaStoreInserter.OnInsertedCallback {
+
+        final List<Uri> uris = Collections.synchronizedList(new ArrayList<Uri>());
+        final CountDownLatch latch;
+
+        Results(final int count) {
+            this.latch = new CountDownLatch(count);
+        }
+
+        @Override
+        public void onInserted(final ContentValues values, final Uri uri) {
+            this.uris.add(uri);
+            this.latch.countDown();
+        }
+
+        void await() throws InterruptedException {
+            assertTrue("rows not inserted", this.latch.await(5, TimeUnit.SECONDS));
+        }
+    }
+
+    private ContentResolver mResolver;
+    private FakeProvider mMedia;
+    private FakeProvider mOther;
+
+    @Before
+    public void setUp() {
+        this.mResolver = RuntimeEnvironment.application.getContentResolver();
+        this.mMedia = new FakeProvider();
+        this.mOther = new FakeProvider();
+        ShadowContentResolver.registerProvider(IMAGES.getAuthority(), this.mMedia);
+        ShadowContentResolver.registerProvider(OTHERS.getAuthority(), this.mOther);
+    }
+
+    @Test
+    public void fullBatchIsInsertedOnInsertingThread() {
+        final MediaStoreInserter inserter = new MediaStoreInserter(this.mResolver, 3, 0);
+        final Results results = new Results(3);
+
+        inserter.insert(IMAGES, new ContentValues(), results);
+        inserter.insert(IMAGES, new ContentValues(), results);
+        assertTrue(this.mMedia.batches.isEmpty());
+
+        inserter.insert(IMAGES, new ContentValues(), results);
+        assertEquals(Collections.singletonList(3), this.mMedia.batches);
+
+        // every row gets its own uri
+        assertEquals(this.mMedia.rows, results.uris);
+        inserter.close();
+    }
+
+    @Test
+    public void bufferedRowsAreInsertedAfterDelay() throws Exception {
+        final MediaStoreInserter inserter = new MediaStoreInserter(this.mResolver, 50, 50);
+        final Results results = new Results(2);
+
+        inserter.insert(IMAGES, new ContentValues(), results);
+        inserter.insert(VIDEOS, new ContentValues(), results);
+        results.await();
+
+        assertEquals(Collections.singletonList(2), this.mMedia.batches);
+        assertEquals(this.mMedia.rows, results.uris);
+        inserter.close();
+    }
+
+    @Test
+    public void bufferedRowsAreInsertedOnClose() {
+        final MediaStoreInserter inserter = new MediaStoreInserter(this.mResolver, 50, 60000);
+        final Results results = new Results(2);
+
+        inserter.insert(IMAGES, new ContentValues(), results);
+        inserter.insert(IMAGES, new ContentValues(), results);
+        inserter.close();
+
+        assertEquals(Collections.singletonList(2), this.mMedia.batches);
+        assertEquals(this.mMedia.rows, results.uris);
+
+        try {
+            inserter.insert(IMAGES, new ContentValues(), results);
+            fail("Row inserted after closed");
+        } catch (final IllegalStateException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void batchesAreSplitByAuthority() {
+        final MediaStoreInserter inserter = new MediaStoreInserter(this.mResolver, 50, 0);
+        final Results results = new Results(4);
+
+        inserter.insert(IMAGES, new ContentValues(), results);
+        inserter.insert(VIDEOS, new ContentValues(), results);
+        inserter.insert(OTHERS, new ContentValues(), results);
+        inserter.insert(IMAGES, new ContentValues(), results);
+        inserter.flush();
+
+        assertEquals(2, this.mMedia.batches.size());
+        assertEquals(2, (int) this.mMedia.batches.get(0));
+        assertEquals(1, (int) this.mMedia.batches.get(1));
+        assertEquals(Collections.singletonList(1), this.mOther.batches);
+
+        // the results are delivered in the order of the rows
+        assertEquals(this.mMedia.rows.get(0), results.uris.get(0));
+        assertEquals(this.mMedia.rows.get(1), results.uris.get(1));
+        assertEquals(this.mOther.rows.get(0), results.uris.get(2));
+        assertEquals(this.mMedia.rows.get(2), results.uris.get(3));
+        inserter.close();
+    }
+
+    @Test
+    public void rowsAreInsertedOneByOneAfterBatchRejected() {
+        final MediaStoreInserter inserter = new MediaStoreInserter(this.mResolver, 50, 0);
+        final Results results = new Results(2);
+        this.mMedia.rejectBatches = true;
+
+        inserter.insert(IMAGES, new ContentValues(), results);
+        inserter.insert(IMAGES, new ContentValues(), results);
+        inserter.close();
+
+        assertTrue(this.mMedia.batches.isEmpty());
+        assertEquals(2, this.mMedia.rows.size());
+        assertNotNull(results.uris.get(0));
+        assertEquals(this.mMedia.rows, results.uris);
+    }
+
+}
@@ -0,0 +1,104 @@
+package com.sdklite.media;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+public class Nv21ConverterTest {
+
+    private static final int WIDTH = 64;
+
+    /**
+     * Not a multiple of the strip count, so the last strip is shorter
+     */
+    private static final int HEIGHT = 202;
+
+    private static byte[] frame(final int width, final int height) {
+        final byte[] nv21 = new byte[width * height * 3 / 2];
+        new Random(601).nextBytes(nv21);
+        return nv21;
+    }
+
+    /**
+     * Converts the specified pixel with BT.601 video range in floating point
+     */
+    private static int[] reference(final byte[] nv21, final int width, final int height, final int x, final int y) {
+        final int uv = width * height + (y >> 1) * width + (x & ~1);
+        final float luma = 1.164f * ((nv21[y * width + x] & 0xff) - 16);
+        final int v = (nv21[uv] & 0xff) - 128;
+        final int u = (nv21[uv + 1] & 0xff) - 128;
+        return new int[] {
+            clamp(luma + 1.596f * v),
+            clamp(luma - 0.391f * u - 0.813f * v),
+            clamp(luma + 2.018f * u),
+        };
+    }
+
+    private static int clamp(final float value) {
+        return Math.max(0, Math.min(255, Math.round(value)));
+    }
+
+    private static void assertMatchesReference(final byte[] nv21, final int width, final int height, final int scale, final int[] out) {
+        final int outWidth = width / scale;
+        final int outHeight = height / scale;
+
+        for (int oy = 0; oy < outHeight; oy++) {
+            for (int ox = 0; ox < outWidth; ox++) {
+                final int argb = out[oy * outWidth + ox];
+                final int[] expected = reference(nv21, width, height, ox * scale, oy * scale);
+                final int[] actual = { (argb >> 16) & 0xff, (argb >> 8) & 0xff, argb & 0xff };
+
+                assertTrue("Pixel (" + ox + ", " + oy + ") not opaque", (argb >>> 24) == 0xff);
+                for (int c = 0; c < 3; c++) {
+                    assertTrue("Pixel (" + ox + ", " + oy + ") channel " + c + ": expected " + expected[c] + " but was " + actual[c], Math.abs(expected[c] - actual[c]) <= 1);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void convertRowsMatchesReference() {
+        final byte[] nv21 = frame(WIDTH, HEIGHT);
+        final int[] out = new int[Nv21Converter.getOutputSize(WIDTH, HEIGHT, 1)];
+        Nv21Converter.convertRows(nv21, WIDTH, HEIGHT, 1, out, 0, HEIGHT);
+        assertMatchesReference(nv21, WIDTH, HEIGHT, 1, out);
+    }
+
+    @Test
+    public void downscaledRowsMatchReference() {
+        final byte[] nv21 = frame(WIDTH, HEIGHT);
+
+        for (int scale = 2; scale <= 3; scale++) {
+            final int[] out = new int[Nv21Converter.getOutputSize(WIDTH, HEIGHT, scale)];
+            Nv21Converter.convertRows(nv21, WIDTH, HEIGHT, scale, out, 0, HEIGHT / scale);
+            assertMatchesReference(nv21, WIDTH, HEIGHT, scale, out);
+        }
+    }
+
+    @Test
+    public void stripsMatchSingleThread() {
+        final byte[] nv21 = frame(WIDTH, HEIGHT);
+        final Nv21Converter single = new Nv21Converter();
+        final Nv21Converter parallel = new Nv21Converter(3);
+
+        try {
+            for (int scale = 1; scale <= 3; scale++) {
+                final int size = Nv21Converter.getOutputSize(WIDTH, HEIGHT, scale);
+                final int[] expected = new int[size];
+                final int[] actual = new int[size];
+
+                single.convert(nv21, WIDTH, HEIGHT, scale, expected);
+                parallel.convert(nv21, WIDTH, HEIGHT, scale, actual);
+
+                assertArrayEquals(expected, actual);
+                assertMatchesReference(nv21, WIDTH, HEIGHT, scale, actual);
+            }
+        } finally {
+            parallel.shutdown();
+        }
+    }
+
+}